@@ -0,0 +1,735 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.bson.BasicBSONObject;
+
+/**
+ * In-memory stand-in for a MongoDB server, listening on the loopback
+ * interface.
+ * <p>
+ * The server speaks the legacy wire protocol, which is all the 2.x Java
+ * driver needs, so the store can be exercised end to end without a
+ * <em>mongod</em>.  It understands just enough of the query language for the
+ * store's own queries: equality, <em>$in</em>, comparisons and <em>$exists</em>
+ * on top level fields, <em>$or</em>, field projections, whole document replacement and
+ * <em>$set</em> / <em>$unset</em> updates.  Every request is answered from
+ * memory, so timings measure the driver, the network stack and the store,
+ * not a storage engine.
+ * </p>
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class LoopbackMongoServer implements Runnable {
+
+	private static final int OP_REPLY = 1;
+	private static final int OP_UPDATE = 2001;
+	private static final int OP_INSERT = 2002;
+	private static final int OP_QUERY = 2004;
+	private static final int OP_GET_MORE = 2005;
+	private static final int OP_DELETE = 2006;
+	private static final int OP_KILL_CURSORS = 2007;
+
+	/**
+	 * Documents by namespace, then by id.
+	 */
+	private final Map<String, Map<Object, BSONObject>> namespaces = new LinkedHashMap<String, Map<Object, BSONObject>>();
+
+	private final ServerSocket serverSocket;
+	private final List<Socket> connections = new ArrayList<Socket>();
+	private volatile boolean running = true;
+
+	/**
+	 * Start a server on a free port of the loopback interface.
+	 *
+	 * @throws IOException if the server socket cannot be opened
+	 */
+	public LoopbackMongoServer() throws IOException {
+		this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread acceptor = new Thread(this, "LoopbackMongoServer-" + this.getPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getPort() {
+		return this.serverSocket.getLocalPort();
+	}
+
+	/**
+	 * @return the host and port to connect to
+	 */
+	public String getHosts() {
+		return "127.0.0.1:" + this.getPort();
+	}
+
+	/**
+	 * Stop the server and close all connections.
+	 */
+	public void stop() {
+		this.running = false;
+		try {
+			this.serverSocket.close();
+		} catch (IOException e) {
+			/* closing anyway */
+		}
+		synchronized (this.connections) {
+			for (Socket socket : this.connections) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					/* closing anyway */
+				}
+			}
+			this.connections.clear();
+		}
+	}
+
+	/**
+	 * Accept connections, each served by its own thread.
+	 */
+	@Override
+	public void run() {
+		while (this.running) {
+			try {
+				final Socket socket = this.serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				synchronized (this.connections) {
+					this.connections.add(socket);
+				}
+				Thread connection = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				}, "LoopbackMongoServer-Connection");
+				connection.setDaemon(true);
+				connection.start();
+			} catch (IOException e) {
+				/* the server socket was closed */
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Answer the messages sent over a connection until it is closed.
+	 *
+	 * @param socket Connection
+	 */
+	private void serve(Socket socket) {
+		/* the result of the last write, reported by getlasterror */
+		BasicBSONObject lastError = new BasicBSONObject("n", 0);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			while (this.running) {
+				int length = readInt(in);
+				byte[] message = new byte[length - 4];
+				in.readFully(message);
+				Message request = new Message(message);
+				int requestId = request.readInt();
+				request.readInt();
+				int opCode = request.readInt();
+
+				switch (opCode) {
+				case OP_QUERY:
+					request.readInt();
+					String ns = request.readCString();
+					int skip = request.readInt();
+					int numberToReturn = request.readInt();
+					BSONObject query = request.readDocument();
+					BSONObject fields = request.hasMore() ? request.readDocument() : null;
+					List<BSONObject> results = ns.endsWith(".$cmd")
+							? this.command(ns.substring(0, ns.length() - 5), query, lastError)
+							: this.query(ns, query, fields, skip, numberToReturn);
+					reply(out, requestId, results);
+					break;
+				case OP_GET_MORE:
+					/* every reply holds all the results, so there are no open cursors */
+					reply(out, requestId, new ArrayList<BSONObject>());
+					break;
+				case OP_INSERT:
+					request.readInt();
+					String insertNs = request.readCString();
+					while (request.hasMore()) {
+						this.insert(insertNs, request.readDocument());
+					}
+					lastError = new BasicBSONObject("n", 0);
+					break;
+				case OP_UPDATE:
+					request.readInt();
+					String updateNs = request.readCString();
+					int flags = request.readInt();
+					lastError = this.update(updateNs, request.readDocument(), request.readDocument(),
+							(flags & 1) != 0, (flags & 2) != 0);
+					break;
+				case OP_DELETE:
+					request.readInt();
+					String deleteNs = request.readCString();
+					int deleteFlags = request.readInt();
+					lastError = new BasicBSONObject("n", this.delete(deleteNs, request.readDocument(), (deleteFlags & 1) != 0));
+					break;
+				case OP_KILL_CURSORS:
+					break;
+				default:
+					throw new IOException("Unsupported op code " + opCode);
+				}
+				out.flush();
+			}
+		} catch (EOFException e) {
+			/* the client closed the connection */
+		} catch (SocketException e) {
+			/* the connection was closed */
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				/* closing anyway */
+			}
+			synchronized (this.connections) {
+				this.connections.remove(socket);
+			}
+		}
+	}
+
+	/**
+	 * Run a command.
+	 *
+	 * @param db Database name
+	 * @param command Command document
+	 * @param lastError Result of the last write on the connection
+	 * @return the command result
+	 */
+	private List<BSONObject> command(String db, BSONObject command, BSONObject lastError) {
+		if (command.containsField("$query")) {
+			command = (BSONObject)command.get("$query");
+		}
+		String name = command.keySet().iterator().next();
+		BasicBSONObject result = new BasicBSONObject();
+		if ("ismaster".equalsIgnoreCase(name)) {
+			result.put("ismaster", true);
+			result.put("maxBsonObjectSize", 16 * 1024 * 1024);
+			result.put("maxMessageSizeBytes", 48 * 1000 * 1000);
+			result.put("maxWireVersion", 0);
+			result.put("minWireVersion", 0);
+		} else if ("getlasterror".equalsIgnoreCase(name)) {
+			result.putAll(lastError);
+			result.put("err", null);
+		} else if ("count".equals(name)) {
+			BSONObject query = (BSONObject)command.get("query");
+			result.put("n", (double)this.find(db + "." + command.get("count"), query).size());
+		} else if ("buildinfo".equalsIgnoreCase(name)) {
+			result.put("version", "2.4.0");
+			result.put("versionArray", new int[] { 2, 4, 0, 0 });
+		}
+		/* anything else, such as ping, dropIndexes or collMod, just succeeds */
+		result.put("ok", 1.0);
+
+		List<BSONObject> results = new ArrayList<BSONObject>();
+		results.add(result);
+		return results;
+	}
+
+	/**
+	 * Find documents.
+	 *
+	 * @param ns Namespace
+	 * @param query Query, possibly wrapped with query modifiers
+	 * @param fields Fields to return, or null for all
+	 * @param skip Number of documents to skip
+	 * @param numberToReturn Negative to return at most that many documents
+	 * @return matching documents
+	 */
+	private List<BSONObject> query(String ns, BSONObject query, BSONObject fields, int skip, int numberToReturn) {
+		if (query.containsField("$query")) {
+			query = (BSONObject)query.get("$query");
+		}
+		List<BSONObject> matches = this.find(ns, query);
+		List<BSONObject> results = new ArrayList<BSONObject>();
+		int limit = numberToReturn < 0 ? -numberToReturn : Integer.MAX_VALUE;
+		for (int i = skip; i < matches.size() && results.size() < limit; i++) {
+			results.add(project(matches.get(i), fields));
+		}
+		return results;
+	}
+
+	/**
+	 * Find the documents of a namespace matching a query.
+	 *
+	 * @param ns Namespace
+	 * @param query Query, or null for all documents
+	 * @return matching documents
+	 */
+	private synchronized List<BSONObject> find(String ns, BSONObject query) {
+		List<BSONObject> matches = new ArrayList<BSONObject>();
+		Map<Object, BSONObject> documents = this.namespaces.get(ns);
+		if (documents == null) {
+			return matches;
+		}
+
+		/* lookups by id don't need a scan */
+		if (query != null && query.containsField("_id") && !(query.get("_id") instanceof BSONObject)) {
+			BSONObject document = documents.get(key(query.get("_id")));
+			if (document != null && matches(document, query)) {
+				matches.add(document);
+			}
+			return matches;
+		}
+		for (BSONObject document : documents.values()) {
+			if (query == null || matches(document, query)) {
+				matches.add(document);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Insert a document.
+	 *
+	 * @param ns Namespace
+	 * @param document Document
+	 */
+	private synchronized void insert(String ns, BSONObject document) {
+		Object id = document.get("_id");
+		if (id == null) {
+			id = document.toString();
+		}
+		this.documents(ns).put(key(id), document);
+	}
+
+	/**
+	 * Update documents.
+	 *
+	 * @param ns Namespace
+	 * @param query Query selecting the documents
+	 * @param update Replacement document, or update operators
+	 * @param upsert true to insert a document if none matches
+	 * @param multi true to update every matching document
+	 * @return the write result
+	 */
+	private synchronized BasicBSONObject update(String ns, BSONObject query, BSONObject update, boolean upsert, boolean multi) {
+		List<BSONObject> matches = this.find(ns, query);
+		BasicBSONObject result = new BasicBSONObject();
+		if (matches.isEmpty()) {
+			if (!upsert) {
+				result.put("n", 0);
+				result.put("updatedExisting", false);
+				return result;
+			}
+			BasicBSONObject document = new BasicBSONObject();
+			for (String key : query.keySet()) {
+				if (!(query.get(key) instanceof BSONObject)) {
+					document.put(key, query.get(key));
+				}
+			}
+			this.documents(ns).put(key(document.get("_id")), apply(document, update));
+			result.put("n", 1);
+			result.put("updatedExisting", false);
+			result.put("upserted", document.get("_id"));
+			return result;
+		}
+
+		int updated = 0;
+		for (BSONObject document : matches) {
+			this.documents(ns).put(key(document.get("_id")), apply(document, update));
+			updated++;
+			if (!multi) {
+				break;
+			}
+		}
+		result.put("n", updated);
+		result.put("updatedExisting", true);
+		return result;
+	}
+
+	/**
+	 * Delete documents.
+	 *
+	 * @param ns Namespace
+	 * @param query Query selecting the documents
+	 * @param single true to delete at most one document
+	 * @return the number of deleted documents
+	 */
+	private synchronized int delete(String ns, BSONObject query, boolean single) {
+		int deleted = 0;
+		for (BSONObject document : this.find(ns, query)) {
+			this.documents(ns).remove(key(document.get("_id")));
+			deleted++;
+			if (single) {
+				break;
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * @param id Document id
+	 * @return the id as a map key, comparing binary ids by content
+	 */
+	private static Object key(Object id) {
+		return id instanceof byte[] ? ByteBuffer.wrap((byte[])id) : id;
+	}
+
+	/**
+	 * @param ns Namespace
+	 * @return the documents of a namespace, by id
+	 */
+	private Map<Object, BSONObject> documents(String ns) {
+		Map<Object, BSONObject> documents = this.namespaces.get(ns);
+		if (documents == null) {
+			documents = new LinkedHashMap<Object, BSONObject>();
+			this.namespaces.put(ns, documents);
+		}
+		return documents;
+	}
+
+	/**
+	 * Apply an update to a document.  Documents are never changed in place,
+	 * so results already handed out stay as they were.
+	 *
+	 * @param document Current document
+	 * @param update Replacement document, or update operators
+	 * @return updated document
+	 */
+	private static BSONObject apply(BSONObject document, BSONObject update) {
+		boolean operators = !update.keySet().isEmpty() && update.keySet().iterator().next().startsWith("$");
+		BasicBSONObject updated = new BasicBSONObject();
+		updated.put("_id", document.get("_id"));
+		if (!operators) {
+			for (String key : update.keySet()) {
+				updated.put(key, update.get(key));
+			}
+			return updated;
+		}
+
+		for (String key : document.keySet()) {
+			updated.put(key, copy(document.get(key)));
+		}
+		BSONObject set = (BSONObject)update.get("$set");
+		if (set != null) {
+			for (String path : set.keySet()) {
+				setPath(updated, path, set.get(path));
+			}
+		}
+		BSONObject unset = (BSONObject)update.get("$unset");
+		if (unset != null) {
+			for (String path : unset.keySet()) {
+				setPath(updated, path, null);
+			}
+		}
+		return updated;
+	}
+
+	/**
+	 * Set, or remove, a possibly dotted field.
+	 *
+	 * @param document Document
+	 * @param path Field path
+	 * @param value Value, or null to remove the field
+	 */
+	private static void setPath(BSONObject document, String path, Object value) {
+		int dot = path.indexOf('.');
+		if (dot < 0) {
+			if (value == null) {
+				document.removeField(path);
+			} else {
+				document.put(path, value);
+			}
+			return;
+		}
+		String field = path.substring(0, dot);
+		BSONObject child = (BSONObject)document.get(field);
+		if (child == null) {
+			if (value == null) {
+				return;
+			}
+			child = new BasicBSONObject();
+			document.put(field, child);
+		}
+		setPath(child, path.substring(dot + 1), value);
+	}
+
+	/**
+	 * @param value Field value
+	 * @return a copy of embedded documents, other values as they are
+	 */
+	private static Object copy(Object value) {
+		if (!(value instanceof BasicBSONObject)) {
+			return value;
+		}
+		BasicBSONObject copy = new BasicBSONObject();
+		for (String key : ((BSONObject)value).keySet()) {
+			copy.put(key, copy(((BSONObject)value).get(key)));
+		}
+		return copy;
+	}
+
+	/**
+	 * Determine if a document matches a query.
+	 *
+	 * @param document Document
+	 * @param query Query
+	 * @return true if every condition of the query is met
+	 */
+	private static boolean matches(BSONObject document, BSONObject query) {
+		for (String key : query.keySet()) {
+			Object condition = query.get(key);
+			if ("$or".equals(key)) {
+				if (!matchesAny(document, (Collection<?>)condition)) {
+					return false;
+				}
+				continue;
+			}
+			Object value = document.get(key);
+			if (condition instanceof BSONObject && isOperators((BSONObject)condition)) {
+				BSONObject operators = (BSONObject)condition;
+				for (String operator : operators.keySet()) {
+					if (!matches(value, document.containsField(key), operator, operators.get(operator))) {
+						return false;
+					}
+				}
+			} else if (!equal(value, condition)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param document Document
+	 * @param queries Alternative queries
+	 * @return true if the document matches any of the queries
+	 */
+	private static boolean matchesAny(BSONObject document, Collection<?> queries) {
+		for (Object query : queries) {
+			if (matches(document, (BSONObject)query)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Determine if a field meets a single operator condition.
+	 *
+	 * @param value Field value
+	 * @param exists true if the field exists
+	 * @param operator Query operator
+	 * @param operand Operator argument
+	 * @return true if the condition is met
+	 */
+	@SuppressWarnings("unchecked")
+	private static boolean matches(Object value, boolean exists, String operator, Object operand) {
+		if ("$exists".equals(operator)) {
+			boolean wanted = Boolean.TRUE.equals(operand) || (operand instanceof Number && ((Number)operand).intValue() != 0);
+			return exists == wanted;
+		}
+		if ("$in".equals(operator)) {
+			for (Object candidate : (Collection<Object>)operand) {
+				if (equal(value, candidate)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if ("$ne".equals(operator)) {
+			return !equal(value, operand);
+		}
+		if (value == null || !(value instanceof Comparable)) {
+			return false;
+		}
+		int comparison = compare(value, operand);
+		if ("$lt".equals(operator)) {
+			return comparison < 0;
+		} else if ("$lte".equals(operator)) {
+			return comparison <= 0;
+		} else if ("$gt".equals(operator)) {
+			return comparison > 0;
+		} else if ("$gte".equals(operator)) {
+			return comparison >= 0;
+		}
+		throw new IllegalArgumentException("Unsupported query operator " + operator);
+	}
+
+	/**
+	 * @param condition Query condition
+	 * @return true if the condition is made of operators
+	 */
+	private static boolean isOperators(BSONObject condition) {
+		return !condition.keySet().isEmpty() && condition.keySet().iterator().next().startsWith("$");
+	}
+
+	/**
+	 * @return true if two values are equal, comparing numbers by value
+	 */
+	private static boolean equal(Object value, Object other) {
+		if (value instanceof Number && other instanceof Number) {
+			return ((Number)value).doubleValue() == ((Number)other).doubleValue();
+		}
+		if (value instanceof byte[] && other instanceof byte[]) {
+			return Arrays.equals((byte[])value, (byte[])other);
+		}
+		return value == null ? other == null : value.equals(other);
+	}
+
+	/**
+	 * @return the order of two values, comparing numbers by value
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static int compare(Object value, Object other) {
+		if (value instanceof Number && other instanceof Number) {
+			return Double.compare(((Number)value).doubleValue(), ((Number)other).doubleValue());
+		}
+		return ((Comparable)value).compareTo(other);
+	}
+
+	/**
+	 * Keep the requested fields of a document.
+	 *
+	 * @param document Document
+	 * @param fields Fields to keep, or null for all
+	 * @return projected document
+	 */
+	private static BSONObject project(BSONObject document, BSONObject fields) {
+		if (fields == null || fields.keySet().isEmpty()) {
+			return document;
+		}
+		BasicBSONObject projected = new BasicBSONObject();
+		if (!fields.containsField("_id") || !equal(fields.get("_id"), 0)) {
+			projected.put("_id", document.get("_id"));
+		}
+		for (String field : fields.keySet()) {
+			if (!"_id".equals(field) && document.containsField(field)) {
+				projected.put(field, document.get(field));
+			}
+		}
+		return projected;
+	}
+
+	/**
+	 * Send a reply holding all the results.
+	 *
+	 * @param out Connection output
+	 * @param responseTo Id of the request
+	 * @param results Documents to return
+	 * @throws IOException if the reply cannot be sent
+	 */
+	private static void reply(OutputStream out, int responseTo, List<BSONObject> results) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		BasicBSONEncoder encoder = new BasicBSONEncoder();
+		for (BSONObject result : results) {
+			body.write(encoder.encode(result));
+		}
+		ByteArrayOutputStream header = new ByteArrayOutputStream(36);
+		writeInt(header, 36 + body.size());
+		writeInt(header, 0);
+		writeInt(header, responseTo);
+		writeInt(header, OP_REPLY);
+		writeInt(header, 0);
+		writeInt(header, 0);
+		writeInt(header, 0);
+		writeInt(header, 0);
+		writeInt(header, results.size());
+		header.writeTo(out);
+		body.writeTo(out);
+	}
+
+	private static int readInt(InputStream in) throws IOException {
+		int b0 = in.read(), b1 = in.read(), b2 = in.read(), b3 = in.read();
+		if ((b0 | b1 | b2 | b3) < 0) {
+			throw new EOFException();
+		}
+		return b0 | (b1 << 8) | (b2 << 16) | (b3 << 24);
+	}
+
+	private static void writeInt(OutputStream out, int value) throws IOException {
+		out.write(value);
+		out.write(value >>> 8);
+		out.write(value >>> 16);
+		out.write(value >>> 24);
+	}
+
+	/**
+	 * A received message, read from the front.
+	 */
+	private static final class Message {
+		private final byte[] data;
+		private int position = 0;
+
+		private Message(byte[] data) {
+			this.data = data;
+		}
+
+		private boolean hasMore() {
+			return this.position < this.data.length;
+		}
+
+		private int readInt() {
+			int value = (this.data[this.position] & 0xff) | ((this.data[this.position + 1] & 0xff) << 8)
+					| ((this.data[this.position + 2] & 0xff) << 16) | ((this.data[this.position + 3] & 0xff) << 24);
+			this.position += 4;
+			return value;
+		}
+
+		private String readCString() throws IOException {
+			int end = this.position;
+			while (this.data[end] != 0) {
+				end++;
+			}
+			String value = new String(this.data, this.position, end - this.position, "UTF-8");
+			this.position = end + 1;
+			return value;
+		}
+
+		private BSONObject readDocument() {
+			int length = (this.data[this.position] & 0xff) | ((this.data[this.position + 1] & 0xff) << 8)
+					| ((this.data[this.position + 2] & 0xff) << 16) | ((this.data[this.position + 3] & 0xff) << 24);
+			byte[] document = new byte[length];
+			System.arraycopy(this.data, this.position, document, 0, length);
+			this.position += length;
+			return new BasicBSONDecoder().readObject(document);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.session.StandardSession;
+import org.hbr.session.manager.MongoPersistentManager;
+import org.hbr.session.serializer.SessionSerializer;
+import org.hbr.session.store.SessionCompressor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning a session into the bytes stored in MongoDB, and back,
+ * without any I/O.  Together with the Mongo only benchmarks of
+ * {@link StoreBenchmark} this splits the cost of a save or a load into
+ * serialization and MongoDB time.
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+
+	@Param({ "1024", "16384", "131072", "1048576" })
+	public int sessionBytes;
+
+	@Param({ "1", "10", "100", "500" })
+	public int attributeCount;
+
+	@Param({ "org.hbr.session.serializer.JavaSessionSerializer", "org.hbr.session.serializer.KryoSessionSerializer" })
+	public String serializerClassName;
+
+	private MongoPersistentManager manager;
+	private StandardSession session;
+	private SessionSerializer serializer;
+	private SessionCompressor compressor;
+	private byte[] data;
+	private byte[] compressed;
+	private byte[] attribute;
+
+	@Setup
+	public void setUp() throws Exception {
+		/* sessions only need a manager, not a running store */
+		this.manager = new MongoPersistentManager();
+		this.manager.setContainer(new StandardContext());
+		this.manager.getContainer().setName("benchmark");
+		this.manager.getContainer().setParent(new StandardEngine());
+		this.manager.getContainer().getParent().setName("parent");
+
+		this.session = SessionFixture.createSession(this.manager, "serializer", this.sessionBytes, this.attributeCount);
+		this.serializer = (SessionSerializer)Class.forName(this.serializerClassName).newInstance();
+		this.compressor = new SessionCompressor(Deflater.DEFAULT_COMPRESSION, null);
+		this.data = this.serializer.serialize(this.session);
+		this.compressed = this.compressor.compress(this.data);
+		this.attribute = this.serializer.serializeAttribute(this.session.getAttribute("attribute0"));
+	}
+
+	@Benchmark
+	public byte[] serialize() throws IOException {
+		return this.serializer.serialize(this.session);
+	}
+
+	@Benchmark
+	public StandardSession deserialize() throws Exception {
+		StandardSession loaded = (StandardSession)this.manager.createEmptySession();
+		this.serializer.deserialize(this.data, loaded, null);
+		return loaded;
+	}
+
+	@Benchmark
+	public byte[] serializeAttribute() throws IOException {
+		return this.serializer.serializeAttribute(this.session.getAttribute("attribute0"));
+	}
+
+	@Benchmark
+	public Object deserializeAttribute() throws Exception {
+		return this.serializer.deserializeAttribute(this.attribute, null);
+	}
+
+	@Benchmark
+	public byte[] compress() {
+		return this.compressor.compress(this.data);
+	}
+
+	@Benchmark
+	public byte[] decompress() throws IOException {
+		return this.compressor.decompress(this.compressed);
+	}
+}
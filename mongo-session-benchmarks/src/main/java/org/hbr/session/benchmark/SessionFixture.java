@@ -0,0 +1,141 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.session.StandardSession;
+import org.hbr.session.manager.MongoPersistentManager;
+import org.hbr.session.store.MongoStore;
+
+/**
+ * Builds the managers, stores and sessions used by the benchmarks.
+ * <p>
+ * Session contents are generated from a fixed seed, so every run, and every
+ * commit, benchmarks exactly the same data.  Attributes alternate between
+ * text, byte arrays and small maps, which is roughly what applications keep
+ * in their sessions, and the text compresses about as well as real text.
+ * </p>
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public final class SessionFixture {
+
+	private static final String[] WORDS = { "session", "customer", "order", "article", "subscription",
+			"cart", "recommendation", "history", "preference", "locale", "token", "visit" };
+
+	private SessionFixture() {
+	}
+
+	/**
+	 * Start a manager with a {@link MongoStore}.
+	 *
+	 * @param hosts MongoDB hosts, such as those of a {@link LoopbackMongoServer}
+	 * @param storeAttributes true to store each attribute as its own field
+	 * @return the started manager
+	 * @throws LifecycleException if the manager cannot be started
+	 */
+	public static MongoPersistentManager startManager(String hosts, boolean storeAttributes) throws LifecycleException {
+		MongoPersistentManager manager = new MongoPersistentManager();
+		manager.setContainer(new StandardContext());
+		manager.getContainer().setName("benchmark");
+		manager.getContainer().setParent(new StandardEngine());
+		manager.getContainer().getParent().setName("parent");
+
+		MongoStore store = new MongoStore();
+		store.setHosts(hosts);
+		store.setConnectionTimeoutMs(5000);
+		store.setConnectionWaitTimeoutMs(5000);
+		store.setDbName("benchmark");
+		store.setStoreAttributes(storeAttributes);
+		store.setManager(manager);
+		manager.setStore(store);
+		manager.start();
+		return manager;
+	}
+
+	/**
+	 * Create a session filled with generated attributes.
+	 *
+	 * @param manager Manager creating the session
+	 * @param id Session id
+	 * @param sessionBytes Approximate serialized size of the attributes, in bytes
+	 * @param attributeCount Number of attributes
+	 * @return the session
+	 */
+	public static StandardSession createSession(MongoPersistentManager manager, String id, int sessionBytes, int attributeCount) {
+		StandardSession session = (StandardSession)manager.createSession(id);
+		Random random = new Random(sessionBytes * 31L + attributeCount);
+		int attributeBytes = Math.max(1, sessionBytes / attributeCount);
+		for (int i = 0; i < attributeCount; i++) {
+			session.setAttribute("attribute" + i, createValue(random, i, attributeBytes), false);
+		}
+		return session;
+	}
+
+	/**
+	 * Generate an attribute value of about the given size.
+	 *
+	 * @param random Source of the contents
+	 * @param index Attribute index, which picks the type of value
+	 * @param size Approximate size, in bytes
+	 * @return attribute value
+	 */
+	private static Object createValue(Random random, int index, int size) {
+		switch (index % 3) {
+		case 0:
+			return createText(random, size);
+		case 1:
+			byte[] bytes = new byte[size];
+			random.nextBytes(bytes);
+			return bytes;
+		default:
+			Map<String, Object> map = new HashMap<String, Object>();
+			List<Long> ids = new ArrayList<Long>();
+			for (int i = 0; i < Math.max(1, size / 64); i++) {
+				ids.add(random.nextLong());
+			}
+			map.put("ids", ids);
+			map.put("name", createText(random, Math.max(1, size / 2)));
+			map.put("count", random.nextInt());
+			return map;
+		}
+	}
+
+	/**
+	 * Generate text made of common words.
+	 *
+	 * @param random Source of the words
+	 * @param size Approximate length
+	 * @return text
+	 */
+	private static String createText(Random random, int size) {
+		StringBuilder text = new StringBuilder(size + 16);
+		while (text.length() < size) {
+			text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+		}
+		text.setLength(size);
+		return text.toString();
+	}
+}
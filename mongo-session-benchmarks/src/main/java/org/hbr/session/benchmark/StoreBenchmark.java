@@ -0,0 +1,128 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.Session;
+import org.apache.catalina.session.StandardSession;
+import org.hbr.session.manager.MongoPersistentManager;
+import org.hbr.session.store.MongoStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteResult;
+
+/**
+ * End to end cost of {@link MongoStore#save(Session)} and
+ * {@link MongoStore#load(String)} against a {@link LoopbackMongoServer},
+ * and the cost of the MongoDB round trips alone for a document of the
+ * same size.
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+
+	@Param({ "1024", "16384", "131072", "1048576" })
+	public int sessionBytes;
+
+	@Param({ "1", "10", "100", "500" })
+	public int attributeCount;
+
+	@Param({ "false", "true" })
+	public boolean storeAttributes;
+
+	private LoopbackMongoServer server;
+	private MongoPersistentManager manager;
+	private MongoStore store;
+	private StandardSession session;
+	private int saves = 0;
+
+	private MongoClient client;
+	private DBCollection raw;
+	private DBObject rawQuery;
+	private DBObject rawDocument;
+
+	@Setup
+	public void setUp() throws Exception {
+		this.server = new LoopbackMongoServer();
+		this.manager = SessionFixture.startManager(this.server.getHosts(), this.storeAttributes);
+		this.store = (MongoStore)this.manager.getStore();
+		this.session = SessionFixture.createSession(this.manager, "store", this.sessionBytes, this.attributeCount);
+		this.store.save(this.session);
+
+		/* a document as large as the stored session, written without the store */
+		int storedBytes = (int)this.store.getStatistics().getSessionSize().getMax();
+		this.client = new MongoClient(new ServerAddress("127.0.0.1", this.server.getPort()));
+		this.raw = this.client.getDB("benchmark").getCollection("raw");
+		this.rawQuery = new BasicDBObject("_id", "raw");
+		this.rawDocument = new BasicDBObject("_id", "raw").append("data", new byte[storedBytes]);
+		this.raw.update(this.rawQuery, this.rawDocument, true, false);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		this.client.close();
+		this.manager.stop();
+		this.server.stop();
+	}
+
+	/**
+	 * Save the session after a request changed one of its attributes.
+	 */
+	@Benchmark
+	public void save() throws Exception {
+		this.session.setAttribute("attribute0", "request" + this.saves++, false);
+		this.store.save(this.session);
+	}
+
+	@Benchmark
+	public Session load() throws Exception {
+		return this.store.load("store");
+	}
+
+	@Benchmark
+	public WriteResult mongoWrite() {
+		return this.raw.update(this.rawQuery, this.rawDocument, true, false);
+	}
+
+	@Benchmark
+	public DBObject mongoRead() {
+		return this.raw.findOne(this.rawQuery);
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.manager;
+
+import java.io.IOException;
+
+import org.hbr.session.serializer.SessionSerializer;
+
+/**
+ * Serialized value of a {@link MongoSession} attribute that has not been
+ * read since the session was loaded.  The value is deserialized the first
+ * time it is read, and only once, so every request sees the same object.
+ * Until then, the Store writes the attribute back from the bytes it was
+ * loaded with.
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class LazyAttribute {
+
+	private final byte[] data;
+	private final SessionSerializer serializer;
+	private final ClassLoader classLoader;
+	private Object value;
+	private boolean resolved = false;
+
+	/**
+	 * Create a lazily deserialized attribute.
+	 *
+	 * @param data Serialized value, as stored
+	 * @param serializer Serializer that wrote the value
+	 * @param classLoader Class loader of the application, may be null
+	 */
+	public LazyAttribute(byte[] data, SessionSerializer serializer, ClassLoader classLoader) {
+		this.data = data;
+		this.serializer = serializer;
+		this.classLoader = classLoader;
+	}
+
+	/**
+	 * @return the serialized value, as stored
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * Deserialize the value, using the application's class loader.
+	 *
+	 * @return attribute value
+	 * @throws ClassNotFoundException
+	 * @throws IOException
+	 */
+	public synchronized Object getValue() throws ClassNotFoundException, IOException {
+		if (!this.resolved) {
+			ClassLoader currentLoader = Thread.currentThread().getContextClassLoader();
+			try {
+				if (this.classLoader != null) {
+					Thread.currentThread().setContextClassLoader(this.classLoader);
+				}
+				this.value = this.serializer.deserializeAttribute(this.data, this.classLoader);
+				this.resolved = true;
+			} finally {
+				Thread.currentThread().setContextClassLoader(currentLoader);
+			}
+		}
+		return this.value;
+	}
+}
@@ -15,9 +15,29 @@
  */
 package org.hbr.session.manager;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.catalina.LifecycleException;
 import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+import org.apache.catalina.Store;
 import org.apache.catalina.session.PersistentManagerBase;
+import org.apache.catalina.session.StandardSession;
 import org.hbr.session.store.MongoStore;
+import org.hbr.session.store.SessionKeyIterator;
 
 /**
  * {@link Manager} implementation that uses a {@link MongoStore}
@@ -37,6 +57,102 @@ public final class MongoPersistentManager extends PersistentManagerBase {
      */
     protected static String name = "MongoPersistentManager";
     
+    /**
+     * Controls if all the stored sessions are swapped in when the manager 
+     * starts.  Defaults to false, sessions are swapped in when requested.
+     */
+    private boolean loadOnStart = false;
+    
+    /**
+     * Number of threads writing sessions to the Store during the persistence
+     * checks, which is also the most writes in flight at once.  Defaults to 1,
+     * the background thread writes the sessions one at a time.
+     */
+    private int persistenceThreads = 1;
+    
+    /**
+     * Controls if session ids start with the time they were created, using
+     * a {@link TimeOrderedSessionIdGenerator}, so new sessions are stored 
+     * next to each other in the MongoDB indexes.  Defaults to false.
+     */
+    private boolean timeOrderedSessionIds = false;
+    
+    /**
+     * Maximum number of sessions swapped out or backed up by a single pass
+     * of the persistence checks.  The sessions idle the longest go first, 
+     * the others are left to the following passes.  Sessions whose stored
+     * copy is current are not backed up again, so each pass moves on to 
+     * the sessions that still need it.  Defaults to -1, no limit.
+     */
+    private int maxPersistencePerPass = -1;
+    
+    /**
+     * Threads writing sessions during the persistence checks, when there is
+     * more than one.
+     */
+    private ExecutorService persistenceExecutor;
+    
+    /**
+     * Number of sessions the current pass may still swap out or back up.
+     */
+    private int passRemaining = Integer.MAX_VALUE;
+    
+    /**
+     * Number of sessions the current pass has swapped out or backed up.
+     */
+    private final AtomicInteger passPersisted = new AtomicInteger();
+    
+    /**
+     * Number of sessions swapped out or backed up by the last pass.
+     */
+    private volatile int lastPersistencePassSessions = 0;
+    
+    /**
+     * Duration of the last pass, in milliseconds.
+     */
+    private volatile long lastPersistencePassMs = 0L;
+    
+    /**
+     * Duration of the longest pass since the manager started, in milliseconds.
+     */
+    private volatile long maxPersistencePassMs = 0L;
+    
+    /**
+     * Controls if new sessions are kept in memory only until they are 
+     * promoted, which avoids writing the sessions of crawlers and single hit
+     * visitors that are never used again.  A session is promoted once an 
+     * attribute is set, once it has been accessed {@link #persistAfterAccesses}
+     * times, or once it is {@link #persistAfterSeconds} old.  Defaults to false.
+     */
+    private boolean deferNewSessions = false;
+    
+    /**
+     * Number of accesses that promote a new session.  Defaults to 2.
+     */
+    private int persistAfterAccesses = 2;
+    
+    /**
+     * Age, in seconds, that promotes a new session.  Defaults to -1, age 
+     * does not promote sessions.
+     */
+    private int persistAfterSeconds = -1;
+    
+    /**
+     * Number of session writes skipped because the session was not promoted.
+     */
+    private final AtomicLong deferredWrites = new AtomicLong();
+    
+    /**
+     * Number of sessions that ended without ever being written to the Store.
+     */
+    private final AtomicLong unpersistedSessions = new AtomicLong();
+    
+    /**
+     * Set while a session that was never written is removed, so the Store
+     * is not asked to remove it.
+     */
+    private final ThreadLocal<Boolean> removingUnpersisted = new ThreadLocal<Boolean>();
+    
     /**
      * Return descriptive information about this Manager implementation and
      * the corresponding version number, in the format
@@ -54,4 +170,567 @@ public final class MongoPersistentManager extends PersistentManagerBase {
     public String getName() {
         return (name);
     }
+    
+    /**
+     * Create a {@link MongoSession}, which tracks its changed attributes
+     * so the {@link MongoStore} can save them individually.
+     */
+    @Override
+    protected StandardSession getNewSession() {
+    	return new MongoSession(this);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected synchronized void startInternal() throws LifecycleException {
+    	super.startInternal();
+    	
+    	/* replace Tomcat's random session ids with time ordered ones */
+    	if (this.timeOrderedSessionIds) {
+    		TimeOrderedSessionIdGenerator generator = new TimeOrderedSessionIdGenerator();
+    		generator.setJvmRoute(this.getJvmRoute());
+    		generator.setSecureRandomAlgorithm(this.getSecureRandomAlgorithm());
+    		generator.setSecureRandomClass(this.getSecureRandomClass());
+    		generator.setSecureRandomProvider(this.getSecureRandomProvider());
+    		generator.setSessionIdLength(this.getSessionIdLength());
+    		
+    		/* initialize the random number generator now, as Tomcat does */
+    		generator.generateSessionId();
+    		this.sessionIdGenerator = generator;
+    	}
+    	
+    	/* threads sharing the writes of the persistence checks */
+    	if (this.persistenceThreads > 1) {
+    		final String threadName = name + "-Persist[" + this.getContainer().getName() + "]-";
+    		this.persistenceExecutor = Executors.newFixedThreadPool(this.persistenceThreads, new ThreadFactory() {
+    			private final AtomicInteger count = new AtomicInteger();
+    			
+    			@Override
+    			public Thread newThread(Runnable runnable) {
+    				Thread thread = new Thread(runnable, threadName + count.incrementAndGet());
+    				thread.setDaemon(true);
+    				return thread;
+    			}
+    		});
+    	}
+    	this.maxPersistencePassMs = 0L;
+    	
+    	if (this.loadOnStart) {
+    		this.load();
+    	}
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected synchronized void stopInternal() throws LifecycleException {
+    	if (this.persistenceExecutor != null) {
+    		this.persistenceExecutor.shutdown();
+    		this.persistenceExecutor = null;
+    	}
+    	super.stopInternal();
+    }
+    
+    /**
+     * Run the persistence checks, and record how long they took.  A pass
+     * taking longer than the container's background processor delay is 
+     * logged, as the checks then fall behind.
+     */
+    @Override
+    public void processPersistenceChecks() {
+    	long startTime = System.currentTimeMillis();
+    	this.passRemaining = this.maxPersistencePerPass < 0 ? Integer.MAX_VALUE : this.maxPersistencePerPass;
+    	this.passPersisted.set(0);
+    	
+    	super.processPersistenceChecks();
+    	
+    	long passMs = System.currentTimeMillis() - startTime;
+    	int passSessions = this.passPersisted.get();
+    	this.lastPersistencePassMs = passMs;
+    	this.lastPersistencePassSessions = passSessions;
+    	if (passMs > this.maxPersistencePassMs) {
+    		this.maxPersistencePassMs = passMs;
+    	}
+    	
+    	int delay = this.getContainer().getBackgroundProcessorDelay();
+    	if (delay > 0 && passMs > delay * 1000L) {
+    		this.getContainer().getLogger().warn(name + "[" + this.getContainer().getName() + "]: Persistence checks took " + passMs 
+    				+ "ms for " + passSessions + " sessions, longer than the background processor delay of " + delay + "s");
+    	} else if (this.getContainer().getLogger().isDebugEnabled()) {
+    		this.getContainer().getLogger().debug(name + "[" + this.getContainer().getName() + "]: Persistence checks took " + passMs 
+    				+ "ms for " + passSessions + " sessions");
+    	}
+    }
+    
+    /**
+     * Swap out the sessions that have been idle for {@link #getMaxIdleSwap()},
+     * using the persistence threads.
+     */
+    @Override
+    protected void processMaxIdleSwaps() {
+    	if (!this.getState().isAvailable() || this.getMaxIdleSwap() < 0) {
+    		return;
+    	}
+    	this.persistIdleSessions(Math.max(this.getMaxIdleSwap(), this.getMinIdleSwap()), true);
+    }
+    
+    /**
+     * Back up the sessions that have been idle for {@link #getMaxIdleBackup()},
+     * using the persistence threads.
+     */
+    @Override
+    protected void processMaxIdleBackups() {
+    	if (!this.getState().isAvailable() || this.getMaxIdleBackup() < 0) {
+    		return;
+    	}
+    	this.persistIdleSessions(this.getMaxIdleBackup(), false);
+    }
+    
+    /**
+     * Swap out or back up the sessions that have been idle long enough, up 
+     * to what is left of this pass's limit, the most idle first.
+     * 
+     * @param maxIdle Number of seconds a session must have been idle
+     * @param swap true to swap the sessions out, false to back them up
+     */
+    private void persistIdleSessions(final int maxIdle, final boolean swap) {
+    	final long timeNow = System.currentTimeMillis();
+    	List<MongoSession> idleSessions = new ArrayList<MongoSession>();
+    	for (Session session : this.findSessions()) {
+    		if (!(session instanceof MongoSession)) {
+    			continue;
+    		}
+    		MongoSession mongoSession = (MongoSession)session;
+    		if (mongoSession.getIdleSeconds(timeNow) < maxIdle) {
+    			continue;
+    		}
+    		
+    		/* a backup of a session whose stored copy is current would take the place of one that is needed */
+    		if (!swap && !mongoSession.isModified() && !mongoSession.isAccessedSinceStored()) {
+    			continue;
+    		}
+    		
+    		/* sessions that are not promoted stay in memory, they would only use up the pass */
+    		if (!this.isPersistable(mongoSession)) {
+    			continue;
+    		}
+    		idleSessions.add(mongoSession);
+    	}
+    	
+    	/* leave the least idle sessions to the next pass */
+    	if (idleSessions.size() > this.passRemaining) {
+    		Collections.sort(idleSessions, new Comparator<MongoSession>() {
+    			@Override
+    			public int compare(MongoSession first, MongoSession second) {
+    				return Integer.compare(second.getIdleSeconds(timeNow), first.getIdleSeconds(timeNow));
+    			}
+    		});
+    		idleSessions = idleSessions.subList(0, this.passRemaining);
+    	}
+    	this.passRemaining -= idleSessions.size();
+    	
+    	if (this.persistenceExecutor == null) {
+    		for (MongoSession session : idleSessions) {
+    			this.persistIdleSession(session, maxIdle, swap, timeNow);
+    		}
+    		return;
+    	}
+    	
+    	/* the pass ends once all its writes are done */
+    	List<Future<?>> writes = new ArrayList<Future<?>>(idleSessions.size());
+    	for (final MongoSession session : idleSessions) {
+    		writes.add(this.persistenceExecutor.submit(new Runnable() {
+    			@Override
+    			public void run() {
+    				persistIdleSession(session, maxIdle, swap, timeNow);
+    			}
+    		}));
+    	}
+    	for (Future<?> write : writes) {
+    		try {
+    			write.get();
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			return;
+    		} catch (ExecutionException e) {
+    			this.getContainer().getLogger().error("Unable to persist session for [" + this.getContainer().getName() + "]", e.getCause());
+    		}
+    	}
+    }
+    
+    /**
+     * Swap out or back up a session, unless it was used since it was found
+     * to be idle.
+     * 
+     * @param session Session
+     * @param maxIdle Number of seconds the session must have been idle
+     * @param swap true to swap the session out, false to back it up
+     * @param timeNow Time the session was found to be idle
+     */
+    private void persistIdleSession(MongoSession session, int maxIdle, boolean swap, long timeNow) {
+    	synchronized (session) {
+    		if (!session.isValid() || session.getIdleSeconds(timeNow) < maxIdle) {
+    			return;
+    		}
+    		try {
+    			if (swap) {
+    				/* a session being accessed stays in memory, as does one that is not promoted */
+    				if (session.isInUse() || !this.isPersistable(session)) {
+    					return;
+    				}
+    				this.swapOut(session);
+    			} else {
+    				this.writeSession(session);
+    			}
+    			this.passPersisted.incrementAndGet();
+    		} catch (IOException e) {
+    			/* already logged by the write */
+    		}
+    	}
+    }
+    
+    /**
+     * Save a session that was modified since it was last written to the
+     * Store, typically at the end of the request that modified it.  Sessions
+     * that were only accessed are left to the persistence checks.
+     * 
+     * @param session Session
+     * @return true if the session was saved
+     */
+    public boolean saveIfModified(Session session) {
+    	if (!(session instanceof MongoSession)) {
+    		return false;
+    	}
+    	MongoSession mongoSession = (MongoSession)session;
+    	synchronized (mongoSession) {
+    		if (!mongoSession.isValid() || !mongoSession.isModified()) {
+    			return false;
+    		}
+    		if (!this.isPersistable(mongoSession)) {
+    			this.deferredWrites.incrementAndGet();
+    			return false;
+    		}
+    		try {
+    			this.getStore().save(mongoSession);
+    			return true;
+    		} catch (IOException e) {
+    			this.getContainer().getLogger().error("Unable to save session [" + mongoSession.getIdInternal() 
+    					+ ":" + this.getContainer().getName() + "]", e);
+    			return false;
+    		}
+    	}
+    }
+    
+    /**
+     * Determine if a session may be written to the Store.  Unless 
+     * {@link #deferNewSessions} is enabled, every session may be written.
+     * 
+     * @param session Session
+     * @return true if the session is stored already, or has been promoted
+     */
+    protected boolean isPersistable(Session session) {
+    	if (!this.deferNewSessions || !(session instanceof MongoSession)) {
+    		return true;
+    	}
+    	MongoSession mongoSession = (MongoSession)session;
+    	if (mongoSession.isStored() || mongoSession.hasAttributes()) {
+    		return true;
+    	}
+    	if (this.persistAfterAccesses > 0 && mongoSession.getAccesses() >= this.persistAfterAccesses) {
+    		return true;
+    	}
+    	return this.persistAfterSeconds >= 0 
+    			&& System.currentTimeMillis() - mongoSession.getCreationTimeInternal() >= this.persistAfterSeconds * 1000L;
+    }
+    
+    /**
+     * Write a session to the Store, unless it has not been promoted.
+     */
+    @Override
+    protected void writeSession(Session session) throws IOException {
+    	if (!this.isPersistable(session)) {
+    		this.deferredWrites.incrementAndGet();
+    		return;
+    	}
+    	super.writeSession(session);
+    }
+    
+    /**
+     * Swap a session out to the Store.  A session that has not been promoted
+     * only exists in memory, so it is expired instead, such as when there are
+     * too many active sessions or when the manager stops.
+     */
+    @Override
+    protected void swapOut(Session session) throws IOException {
+    	if (!this.isPersistable(session)) {
+    		this.deferredWrites.incrementAndGet();
+    		session.expire();
+    		return;
+    	}
+    	super.swapOut(session);
+    }
+    
+    /**
+     * Remove a session, from the Store as well unless it was never written.
+     */
+    @Override
+    public void remove(Session session, boolean update) {
+    	if (!this.deferNewSessions || !(session instanceof MongoSession) || ((MongoSession)session).isStored()) {
+    		super.remove(session, update);
+    		return;
+    	}
+    	this.unpersistedSessions.incrementAndGet();
+    	this.removingUnpersisted.set(Boolean.TRUE);
+    	try {
+    		super.remove(session, update);
+    	} finally {
+    		this.removingUnpersisted.remove();
+    	}
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void removeSession(String id) {
+    	if (this.removingUnpersisted.get() == null) {
+    		super.removeSession(id);
+    	}
+    }
+    
+    /**
+     * Swap in all the stored sessions.  A {@link MongoStore} reads them in
+     * batches, instead of one at a time, and the ids are streamed, so they
+     * are never all held in memory.
+     */
+    @Override
+    public void load() {
+    	Store store = this.getStore();
+    	if (!(store instanceof MongoStore)) {
+    		super.load();
+    		return;
+    	}
+    	
+    	MongoStore mongoStore = (MongoStore)store;
+    	long startTime = System.currentTimeMillis();
+    	SessionKeyIterator keys = null;
+    	try {
+    		keys = mongoStore.keyIterator();
+    		int batchSize = Math.max(1, mongoStore.getLoadBatchSize());
+    		List<String> batch = new ArrayList<String>(batchSize);
+    		int loaded = 0;
+    		while (keys.hasNext()) {
+    			batch.add(keys.next());
+    			if (batch.size() >= batchSize || !keys.hasNext()) {
+    				loaded += this.swapInAll(batch);
+    				batch.clear();
+    			}
+    		}
+    		this.getContainer().getLogger().info(this.getName() + "[" + this.getContainer().getName() + "]: Swapped in " 
+    				+ loaded + " sessions in " + (System.currentTimeMillis() - startTime) + "ms");
+    	} catch (IOException e) {
+    		this.getContainer().getLogger().error("Unable to load sessions from " + store.getInfo(), e);
+    	} finally {
+    		if (keys != null) {
+    			keys.close();
+    		}
+    	}
+    }
+    
+    /**
+     * Swap in several stored sessions at once, such as the sessions of a 
+     * failed node this node takes over.  A {@link MongoStore} reads them in 
+     * batches, instead of one at a time.  Sessions that are already active
+     * are skipped, and stored sessions that are no longer valid are expired.
+     * 
+     * @param ids Session ids
+     * @return number of sessions swapped in
+     * @throws IOException if the sessions cannot be read
+     */
+    public int swapInAll(Collection<String> ids) throws IOException {
+    	Store store = this.getStore();
+    	if (!(store instanceof MongoStore)) {
+    		int loaded = 0;
+    		for (String id : ids) {
+    			if (this.sessions.get(id) == null && this.swapIn(id) != null) {
+    				loaded++;
+    			}
+    		}
+    		return loaded;
+    	}
+    	
+    	List<String> missing = new ArrayList<String>(ids.size());
+    	for (String id : ids) {
+    		if (this.sessions.get(id) == null) {
+    			missing.add(id);
+    		}
+    	}
+    	
+    	int loaded = 0;
+    	Map<String, Session> stored = ((MongoStore)store).loadAll(missing);
+    	for (Map.Entry<String, Session> entry : stored.entrySet()) {
+    		Session session = entry.getValue();
+    		
+    		/* same checks as a swap in of a single session */
+    		if (!session.isValid()) {
+    			session.expire();
+    			this.removeSession(entry.getKey());
+    			continue;
+    		}
+    		
+    		/* a request may have swapped the session in meanwhile */
+    		if (this.sessions.get(entry.getKey()) != null) {
+    			continue;
+    		}
+    		session.setManager(this);
+    		((StandardSession)session).tellNew();
+    		this.add(session);
+    		((StandardSession)session).activate();
+    		session.access();
+    		session.endAccess();
+    		loaded++;
+    	}
+    	return loaded;
+    }
+    
+    /**
+     * @return the loadOnStart
+     */
+    public boolean isLoadOnStart() {
+    	return loadOnStart;
+    }
+    
+    /**
+     * @param loadOnStart the loadOnStart to set
+     */
+    public void setLoadOnStart(boolean loadOnStart) {
+    	this.loadOnStart = loadOnStart;
+    }
+    
+    /**
+     * @return the timeOrderedSessionIds
+     */
+    public boolean isTimeOrderedSessionIds() {
+    	return timeOrderedSessionIds;
+    }
+    
+    /**
+     * @param timeOrderedSessionIds the timeOrderedSessionIds to set
+     */
+    public void setTimeOrderedSessionIds(boolean timeOrderedSessionIds) {
+    	this.timeOrderedSessionIds = timeOrderedSessionIds;
+    }
+    
+    /**
+     * @return the persistenceThreads
+     */
+    public int getPersistenceThreads() {
+    	return persistenceThreads;
+    }
+    
+    /**
+     * @param persistenceThreads the persistenceThreads to set
+     */
+    public void setPersistenceThreads(int persistenceThreads) {
+    	this.persistenceThreads = persistenceThreads;
+    }
+    
+    /**
+     * @return the maxPersistencePerPass
+     */
+    public int getMaxPersistencePerPass() {
+    	return maxPersistencePerPass;
+    }
+    
+    /**
+     * @param maxPersistencePerPass the maxPersistencePerPass to set
+     */
+    public void setMaxPersistencePerPass(int maxPersistencePerPass) {
+    	this.maxPersistencePerPass = maxPersistencePerPass;
+    }
+    
+    /**
+     * @return the number of sessions swapped out or backed up by the last
+     * 	pass of the persistence checks
+     */
+    public int getLastPersistencePassSessions() {
+    	return lastPersistencePassSessions;
+    }
+    
+    /**
+     * @return the duration, in milliseconds, of the last pass of the 
+     * 	persistence checks
+     */
+    public long getLastPersistencePassMs() {
+    	return lastPersistencePassMs;
+    }
+    
+    /**
+     * @return the duration, in milliseconds, of the longest pass of the
+     * 	persistence checks since the manager started
+     */
+    public long getMaxPersistencePassMs() {
+    	return maxPersistencePassMs;
+    }
+    
+    /**
+     * @return the deferNewSessions
+     */
+    public boolean isDeferNewSessions() {
+    	return deferNewSessions;
+    }
+    
+    /**
+     * @param deferNewSessions the deferNewSessions to set
+     */
+    public void setDeferNewSessions(boolean deferNewSessions) {
+    	this.deferNewSessions = deferNewSessions;
+    }
+    
+    /**
+     * @return the persistAfterAccesses
+     */
+    public int getPersistAfterAccesses() {
+    	return persistAfterAccesses;
+    }
+    
+    /**
+     * @param persistAfterAccesses the persistAfterAccesses to set
+     */
+    public void setPersistAfterAccesses(int persistAfterAccesses) {
+    	this.persistAfterAccesses = persistAfterAccesses;
+    }
+    
+    /**
+     * @return the persistAfterSeconds
+     */
+    public int getPersistAfterSeconds() {
+    	return persistAfterSeconds;
+    }
+    
+    /**
+     * @param persistAfterSeconds the persistAfterSeconds to set
+     */
+    public void setPersistAfterSeconds(int persistAfterSeconds) {
+    	this.persistAfterSeconds = persistAfterSeconds;
+    }
+    
+    /**
+     * @return the number of session writes skipped because the session had
+     * 	not been promoted
+     */
+    public long getDeferredWrites() {
+    	return deferredWrites.get();
+    }
+    
+    /**
+     * @return the number of sessions that ended without ever being written
+     * 	to the Store
+     */
+    public long getUnpersistedSessions() {
+    	return unpersistedSessions.get();
+    }
 }
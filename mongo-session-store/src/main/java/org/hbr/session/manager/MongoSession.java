@@ -0,0 +1,499 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.manager;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.catalina.Manager;
+import org.apache.catalina.session.StandardSession;
+import org.hbr.session.store.MongoStore;
+
+/**
+ * {@link StandardSession} that keeps track of the attributes that have
+ * changed since it was last saved, so the {@link MongoStore} can write
+ * only what has changed.
+ * <p>
+ * Changes are detected through {@link #setAttribute(String, Object, boolean)}
+ * and {@link #removeAttribute(String, boolean)}.  An attribute value that is
+ * modified in place must be set on the session again to be saved.
+ * </p>
+ * <p>
+ * Attributes loaded lazily by the Store are held as {@link LazyAttribute}s
+ * and deserialized the first time they are read.
+ * </p>
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class MongoSession extends StandardSession {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Names of the attributes that have been set or removed since the
+	 * session was last saved.
+	 */
+	protected transient Set<String> dirtyAttributes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * True when the Store holds this session with each attribute stored
+	 * separately, so changes can be saved by attribute.
+	 */
+	protected transient volatile boolean attributesStored = false;
+
+	/**
+	 * True when the Store holds this session under its plain string id,
+	 * rather than the compact binary id.
+	 */
+	protected transient volatile boolean stringId = false;
+
+	/**
+	 * True when the session properties, other than the access times, have
+	 * changed since the session was last saved.
+	 */
+	protected transient volatile boolean propertiesChanged = false;
+
+	/**
+	 * True when the Store holds a complete copy of this session.
+	 */
+	protected transient volatile boolean stored = false;
+
+	/**
+	 * This accessed time of the session when it was last written to the Store.
+	 */
+	protected transient volatile long storedAccessedTime = 0L;
+
+	/**
+	 * Time the session was last written to the Store.
+	 */
+	protected transient volatile long storedTime = 0L;
+
+	/**
+	 * Version of the session last read from, or written to, the Store.
+	 */
+	protected transient volatile long version = 0L;
+
+	/**
+	 * Number of times the session has been accessed since it was created
+	 * or loaded.
+	 */
+	protected transient AtomicInteger accesses = new AtomicInteger();
+
+	/**
+	 * Construct a new Session associated with the specified Manager.
+	 *
+	 * @param manager The manager with which this Session is associated
+	 */
+	public MongoSession(Manager manager) {
+		super(manager);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Object getAttribute(String name) {
+		return this.resolve(name, super.getAttribute(name));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void access() {
+		super.access();
+		this.accesses.incrementAndGet();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setAttribute(String name, Object value, boolean notify) {
+		if (notify && name != null) {
+			/* listeners are given the value being replaced */
+			this.resolve(name, this.attributes.get(name));
+		}
+		super.setAttribute(name, value, notify);
+		this.dirtyAttributes.add(name);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void removeAttributeInternal(String name, boolean notify) {
+		if (notify) {
+			/* listeners are given the value being removed */
+			this.resolve(name, this.attributes.get(name));
+		}
+		super.removeAttributeInternal(name, notify);
+		this.dirtyAttributes.add(name);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void writeObjectData(ObjectOutputStream stream) throws IOException {
+		this.resolveAttributes();
+		super.writeObjectData(stream);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setMaxInactiveInterval(int interval) {
+		super.setMaxInactiveInterval(interval);
+		this.propertiesChanged = true;
+	}
+
+	/**
+	 * Determine if the session has been modified since it was last written
+	 * to the Store.  A session that was only accessed is not modified.
+	 *
+	 * @return true if the session must be written in full
+	 */
+	public boolean isModified() {
+		return !this.stored || this.propertiesChanged || !this.dirtyAttributes.isEmpty();
+	}
+
+	/**
+	 * Determine if the session has been accessed since it was last written
+	 * to the Store.
+	 *
+	 * @return true if the session was accessed
+	 */
+	public boolean isAccessedSinceStored() {
+		return this.thisAccessedTime != this.storedAccessedTime;
+	}
+
+	/**
+	 * Determine how long the session has been idle, the same way the
+	 * manager does when it decides to swap out or back up a session.
+	 *
+	 * @param timeNow Current time
+	 * @return idle time, in seconds
+	 */
+	public int getIdleSeconds(long timeNow) {
+		long accessedTime = LAST_ACCESS_AT_START ? this.lastAccessedTime : this.thisAccessedTime;
+		return (int)((timeNow - accessedTime) / 1000L);
+	}
+
+	/**
+	 * Determine if a request is using the session.  Only tracked when
+	 * Tomcat's activity check is enabled.
+	 *
+	 * @return true if the session is being accessed
+	 */
+	public boolean isInUse() {
+		return this.accessCount != null && this.accessCount.get() > 0;
+	}
+
+	/**
+	 * Record that the Store now holds a complete copy of this session.
+	 */
+	public void markStored() {
+		this.stored = true;
+		this.propertiesChanged = false;
+		this.markTouched();
+	}
+
+	/**
+	 * Record that the access times of this session were written to the Store.
+	 */
+	public void markTouched() {
+		this.storedAccessedTime = this.thisAccessedTime;
+		this.storedTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Return the names of the attributes that have changed since the
+	 * last save and reset the list.
+	 *
+	 * @return Set of changed attribute names
+	 */
+	public Set<String> drainDirtyAttributes() {
+		Set<String> drained = new HashSet<String>();
+		for (String name : this.dirtyAttributes) {
+			this.dirtyAttributes.remove(name);
+			drained.add(name);
+		}
+		return drained;
+	}
+
+	/**
+	 * Mark attributes as changed, typically because a save failed.
+	 *
+	 * @param names Attribute names
+	 */
+	public void markDirty(Collection<String> names) {
+		this.dirtyAttributes.addAll(names);
+	}
+
+	/**
+	 * Retrieve an attribute value without checking if the session
+	 * is still valid.
+	 *
+	 * @param name Attribute name
+	 * @return attribute value, or null
+	 */
+	public Object getAttributeInternal(String name) {
+		return this.resolve(name, this.attributes.get(name));
+	}
+
+	/**
+	 * Determine if the session holds any attributes, without checking if
+	 * the session is still valid.
+	 *
+	 * @return true if an attribute is set
+	 */
+	public boolean hasAttributes() {
+		return !this.attributes.isEmpty();
+	}
+
+	/**
+	 * @return the number of times the session has been accessed since it
+	 * 	was created or loaded
+	 */
+	public int getAccesses() {
+		return this.accesses.get();
+	}
+
+	/**
+	 * Retrieve an attribute value as it is held by the session, without
+	 * deserializing a {@link LazyAttribute}.
+	 *
+	 * @param name Attribute name
+	 * @return attribute value, {@link LazyAttribute}, or null
+	 */
+	public Object peekAttribute(String name) {
+		return this.attributes.get(name);
+	}
+
+	/**
+	 * Deserialize every {@link LazyAttribute} of the session.
+	 */
+	public void resolveAttributes() {
+		for (String name : this.keys()) {
+			this.getAttributeInternal(name);
+		}
+	}
+
+	/**
+	 * Deserialize an attribute that has not been read since it was loaded,
+	 * and replace it with its value.  An attribute that cannot be read is
+	 * logged and removed, as it would have been by an eager load.
+	 *
+	 * @param name Attribute name
+	 * @param value Value held by the session
+	 * @return attribute value
+	 */
+	protected Object resolve(String name, Object value) {
+		if (!(value instanceof LazyAttribute)) {
+			return value;
+		}
+		LazyAttribute lazyAttribute = (LazyAttribute)value;
+		ConcurrentMap<String, Object> attributes = (ConcurrentMap<String, Object>)this.attributes;
+		try {
+			Object resolved = lazyAttribute.getValue();
+			if (resolved != null) {
+				attributes.replace(name, lazyAttribute, resolved);
+				return resolved;
+			}
+		} catch (Exception e) {
+			this.manager.getContainer().getLogger().error("Unable to read session attribute [" + name 
+					+ "] for session [" + this.id + "]", e);
+		}
+		attributes.remove(name, lazyAttribute);
+		return null;
+	}
+
+	/**
+	 * Retrieve the names of all attributes without checking if
+	 * the session is still valid.
+	 *
+	 * @return attribute names
+	 */
+	public String[] getAttributeNamesInternal() {
+		return this.keys();
+	}
+
+	/**
+	 * Determine if the session is valid, without checking if it has
+	 * expired.
+	 */
+	@Override
+	public boolean isValidInternal() {
+		return super.isValidInternal();
+	}
+
+	/**
+	 * Determine if the session is new, without checking if it is
+	 * still valid.
+	 *
+	 * @return the isNew flag
+	 */
+	public boolean isNewInternal() {
+		return this.isNew;
+	}
+
+	/**
+	 * Determine if an attribute should be written to the Store, using the
+	 * same rules as {@link StandardSession#writeObjectData(java.io.ObjectOutputStream)}.
+	 * A {@link LazyAttribute} was stored before, and still is.
+	 *
+	 * @param name Attribute name
+	 * @param value Attribute value
+	 * @return true if the attribute should be stored
+	 */
+	public boolean isAttributeStorable(String name, Object value) {
+		return (value instanceof Serializable || value instanceof LazyAttribute) && !this.exclude(name);
+	}
+
+	/**
+	 * Restore an attribute read from the Store without firing any events
+	 * or marking it as changed.
+	 *
+	 * @param name Attribute name
+	 * @param value Attribute value
+	 */
+	public void restoreAttribute(String name, Object value) {
+		this.attributes.put(name, value);
+	}
+
+	/**
+	 * Restore the session properties read from the Store, without
+	 * registering the session with the Manager.
+	 *
+	 * @param id Session id
+	 * @param creationTime creation time
+	 * @param lastAccessedTime last accessed time
+	 * @param thisAccessedTime this accessed time
+	 * @param maxInactiveInterval max inactive interval, in seconds
+	 * @param isNew if the session is new
+	 * @param isValid if the session is valid
+	 */
+	public void restore(String id, long creationTime, long lastAccessedTime, long thisAccessedTime,
+			int maxInactiveInterval, boolean isNew, boolean isValid) {
+		this.id = id;
+		this.creationTime = creationTime;
+		this.lastAccessedTime = lastAccessedTime;
+		this.thisAccessedTime = thisAccessedTime;
+		this.maxInactiveInterval = maxInactiveInterval;
+		this.isNew = isNew;
+		this.isValid = isValid;
+	}
+
+	/**
+	 * Restore the access times read from the Store, if they are more recent
+	 * than the ones the session already has.
+	 *
+	 * @param lastAccessedTime last accessed time
+	 * @param thisAccessedTime this accessed time
+	 */
+	public void restoreAccessTimes(long lastAccessedTime, long thisAccessedTime) {
+		if (lastAccessedTime > this.lastAccessedTime) {
+			this.lastAccessedTime = lastAccessedTime;
+		}
+		if (thisAccessedTime > this.thisAccessedTime) {
+			this.thisAccessedTime = thisAccessedTime;
+		}
+	}
+
+	/**
+	 * @return the stored
+	 */
+	public boolean isStored() {
+		return stored;
+	}
+
+	/**
+	 * @return the storedTime
+	 */
+	public long getStoredTime() {
+		return storedTime;
+	}
+
+	/**
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @param version the version to set
+	 */
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	/**
+	 * @return the attributesStored
+	 */
+	public boolean isAttributesStored() {
+		return attributesStored;
+	}
+
+	/**
+	 * @param attributesStored the attributesStored to set
+	 */
+	public void setAttributesStored(boolean attributesStored) {
+		this.attributesStored = attributesStored;
+	}
+
+	/**
+	 * @return the stringId
+	 */
+	public boolean isStringId() {
+		return stringId;
+	}
+
+	/**
+	 * @param stringId the stringId to set
+	 */
+	public void setStringId(boolean stringId) {
+		this.stringId = stringId;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void recycle() {
+		super.recycle();
+		this.dirtyAttributes.clear();
+		this.attributesStored = false;
+		this.stringId = false;
+		this.propertiesChanged = false;
+		this.stored = false;
+		this.storedAccessedTime = 0L;
+		this.storedTime = 0L;
+		this.version = 0L;
+		this.accesses.set(0);
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.manager;
+
+import org.apache.catalina.util.SessionIdGenerator;
+
+/**
+ * {@link SessionIdGenerator} that puts the time the id was created ahead of
+ * Tomcat's random id, so ids sort in the order they were created.
+ * <p>
+ * Sessions are stored by id, so random ids spread new sessions over the
+ * whole of the MongoDB indexes.  With time ordered ids, new sessions land
+ * next to each other at the end of the indexes, and the index pages being
+ * written stay in memory.  The random part keeps its full length, and the
+ * <em>jvmRoute</em> stays at the end of the id.
+ * </p>
+ * <p>
+ * The prefix is the creation time in milliseconds, as {@link #PREFIX_LENGTH}
+ * upper case hex digits, so the time a session was created can be read from
+ * its id.
+ * </p>
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class TimeOrderedSessionIdGenerator extends SessionIdGenerator {
+
+	/**
+	 * Number of hex digits of the time prefix.
+	 */
+	public static final int PREFIX_LENGTH = 12;
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String generateSessionId() {
+		String randomId = super.generateSessionId();
+		StringBuilder id = new StringBuilder(PREFIX_LENGTH + randomId.length());
+		appendTime(id, System.currentTimeMillis());
+		return id.append(randomId).toString();
+	}
+
+	/**
+	 * Append a time as fixed width hex digits.
+	 *
+	 * @param id Id being created
+	 * @param time Time, in milliseconds
+	 */
+	private static void appendTime(StringBuilder id, long time) {
+		for (int shift = (PREFIX_LENGTH - 1) * 4; shift >= 0; shift -= 4) {
+			id.append(HEX[(int)(time >>> shift) & 0xF]);
+		}
+	}
+
+	/**
+	 * Read the time a session id was created.
+	 *
+	 * @param id Session id created by this generator
+	 * @return creation time, in milliseconds, or -1 if the id has no time prefix
+	 */
+	public static long getTime(String id) {
+		if (id == null || id.length() < PREFIX_LENGTH) {
+			return -1L;
+		}
+		long time = 0L;
+		for (int i = 0; i < PREFIX_LENGTH; i++) {
+			int digit = Character.digit(id.charAt(i), 16);
+			if (digit < 0) {
+				return -1L;
+			}
+			time = (time << 4) | digit;
+		}
+		return time;
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package org.hbr.session.serializer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+import org.apache.catalina.session.StandardSession;
+import org.apache.catalina.util.CustomObjectInputStream;
+
+/**
+ * {@link SessionSerializer} that uses standard Java Serialization, through
+ * {@link StandardSession#writeObjectData(ObjectOutputStream)} and
+ * {@link StandardSession#readObjectData(ObjectInputStream)}.  This is the
+ * default serializer, and is assumed for Sessions stored without a serializer
+ * name.
+ * 
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class JavaSessionSerializer implements SessionSerializer {
+
+	/**
+	 * Name of this serializer
+	 */
+	public static final String NAME = "java";
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	/**
+	 * Java Serialization does not support class registration.
+	 */
+	@Override
+	public void registerClasses(List<Class<?>> classes) {
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte[] serialize(StandardSession session) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bos);
+		try {
+			/* serialize the session using the object output stream */
+			session.writeObjectData(oos);
+			oos.flush();
+			
+			/* get the byte array of the data */
+			return bos.toByteArray();
+		} finally {
+			try {
+				oos.close();
+			} catch (Exception e) {}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void deserialize(byte[] data, StandardSession session, ClassLoader classLoader) throws ClassNotFoundException, IOException {
+		ObjectInputStream ois = this.getObjectInputStream(new BufferedInputStream(new ByteArrayInputStream(data)), classLoader);
+		try {
+			session.readObjectData(ois);
+		} finally {
+			try {
+				ois.close();
+			} catch (Exception e) {}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte[] serializeAttribute(Object value) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bos);
+		try {
+			oos.writeObject(value);
+			oos.flush();
+			return bos.toByteArray();
+		} finally {
+			try {
+				oos.close();
+			} catch (Exception e) {}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Object deserializeAttribute(byte[] data, ClassLoader classLoader) throws ClassNotFoundException, IOException {
+		ObjectInputStream ois = this.getObjectInputStream(new ByteArrayInputStream(data), classLoader);
+		try {
+			return ois.readObject();
+		} finally {
+			try {
+				ois.close();
+			} catch (Exception e) {}
+		}
+	}
+	
+	/**
+	 * Create the object stream used to read the data, resolving classes 
+	 * with the supplied class loader if there is one.
+	 * 
+	 * @param is data stream
+	 * @param classLoader class loader, may be null
+	 * @return {@link ObjectInputStream}
+	 * @throws IOException
+	 */
+	private ObjectInputStream getObjectInputStream(InputStream is, ClassLoader classLoader) throws IOException {
+		if (classLoader != null) {
+			/* use a custom object stream to read our object */
+			return new CustomObjectInputStream(is, classLoader);
+		}
+		/* regular input stream */
+		return new ObjectInputStream(is);
+	}
+}
@@ -0,0 +1,357 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package org.hbr.session.serializer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.catalina.session.StandardSession;
+import org.hbr.session.manager.MongoPersistentManager;
+import org.hbr.session.manager.MongoSession;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * {@link SessionSerializer} backed by <a href="https://github.com/EsotericSoftware/kryo">Kryo</a>.
+ * Kryo writes a much more compact format than Java Serialization, and 
+ * classes registered through {@link #registerClasses(List)} are written as 
+ * a small integer instead of a class name.  Unregistered classes are still
+ * supported.  Requires the {@link MongoPersistentManager}.
+ * <p>
+ * Kryo instances are not thread safe, so each thread borrows one from a
+ * pool for the duration of a call.  Pooled instances hold on to the classes
+ * they have seen, so the Store closes the serializer when it stops, which
+ * empties the pool and lets the application's class loader go.
+ * </p>
+ * 
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class KryoSessionSerializer implements SessionSerializer, Closeable {
+
+	/**
+	 * Name of this serializer
+	 */
+	public static final String NAME = "kryo";
+	
+	/**
+	 * Version of the Session format written by this serializer.
+	 */
+	private static final byte FORMAT_VERSION = 1;
+	
+	/**
+	 * Initial size of the output buffer.
+	 */
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+	
+	/**
+	 * Output buffers that grow larger than this are not kept for the next
+	 * Session serialized on the thread.
+	 */
+	private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+	
+	/**
+	 * Classes registered with each Kryo instance, in order.
+	 */
+	private volatile List<Class<?>> registeredClasses = Collections.emptyList();
+	
+	/**
+	 * Kryo instances and output buffers not in use by a thread.
+	 */
+	private final Queue<KryoHolder> holders = new ConcurrentLinkedQueue<KryoHolder>();
+	
+	/**
+	 * Set once the first Kryo instance is created, after which the registered
+	 * classes can no longer change.
+	 */
+	private volatile boolean used = false;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	/**
+	 * Register classes with Kryo.  This must be done before the serializer
+	 * is used.
+	 * 
+	 * @throws IllegalStateException if the serializer has already been used
+	 */
+	@Override
+	public synchronized void registerClasses(List<Class<?>> classes) {
+		if (this.used) {
+			throw new IllegalStateException("Classes must be registered before the serializer is used");
+		}
+		this.registeredClasses = Collections.unmodifiableList(new ArrayList<Class<?>>(classes));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte[] serialize(StandardSession session) throws IOException {
+		MongoSession mongoSession = this.getMongoSession(session);
+		KryoHolder holder = this.borrow();
+		Output output = holder.getOutput();
+		try {
+			/* the session properties, in the same order as StandardSession */
+			output.writeByte(FORMAT_VERSION);
+			output.writeLong(mongoSession.getCreationTimeInternal());
+			output.writeLong(mongoSession.getLastAccessedTimeInternal());
+			output.writeInt(mongoSession.getMaxInactiveInterval(), true);
+			output.writeBoolean(mongoSession.isNewInternal());
+			output.writeBoolean(mongoSession.isValidInternal());
+			output.writeLong(mongoSession.getThisAccessedTimeInternal());
+			output.writeString(mongoSession.getIdInternal());
+			
+			/* the attributes that can be stored */
+			List<String> names = new ArrayList<String>();
+			List<Object> values = new ArrayList<Object>();
+			for (String name : mongoSession.getAttributeNamesInternal()) {
+				Object value = mongoSession.getAttributeInternal(name);
+				if (mongoSession.isAttributeStorable(name, value)) {
+					names.add(name);
+					values.add(value);
+				}
+			}
+			output.writeInt(names.size(), true);
+			for (int i = 0; i < names.size(); i++) {
+				output.writeString(names.get(i));
+				holder.getKryo().writeClassAndObject(output, values.get(i));
+			}
+			return output.toBytes();
+		} catch (KryoException e) {
+			throw new IOException("Unable to serialize session [" + mongoSession.getIdInternal() + "]", e);
+		} finally {
+			this.release(holder);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void deserialize(byte[] data, StandardSession session, ClassLoader classLoader) throws ClassNotFoundException, IOException {
+		MongoSession mongoSession = this.getMongoSession(session);
+		KryoHolder holder = this.borrow();
+		Kryo kryo = this.getKryo(holder, classLoader);
+		Input input = new Input(data);
+		try {
+			byte version = input.readByte();
+			if (version != FORMAT_VERSION) {
+				throw new IOException("Unsupported session format version [" + version + "]");
+			}
+			long creationTime = input.readLong();
+			long lastAccessedTime = input.readLong();
+			int maxInactiveInterval = input.readInt(true);
+			boolean isNew = input.readBoolean();
+			boolean isValid = input.readBoolean();
+			long thisAccessedTime = input.readLong();
+			String id = input.readString();
+			mongoSession.restore(id, creationTime, lastAccessedTime, thisAccessedTime, maxInactiveInterval, isNew, isValid);
+			
+			int count = input.readInt(true);
+			for (int i = 0; i < count; i++) {
+				String name = input.readString();
+				mongoSession.restoreAttribute(name, kryo.readClassAndObject(input));
+			}
+		} catch (KryoException e) {
+			throw new IOException("Unable to deserialize session", e);
+		} finally {
+			this.release(holder);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte[] serializeAttribute(Object value) throws IOException {
+		KryoHolder holder = this.borrow();
+		Output output = holder.getOutput();
+		try {
+			holder.getKryo().writeClassAndObject(output, value);
+			return output.toBytes();
+		} catch (KryoException e) {
+			throw new IOException("Unable to serialize attribute of type [" + value.getClass().getName() + "]", e);
+		} finally {
+			this.release(holder);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Object deserializeAttribute(byte[] data, ClassLoader classLoader) throws ClassNotFoundException, IOException {
+		KryoHolder holder = this.borrow();
+		try {
+			return this.getKryo(holder, classLoader).readClassAndObject(new Input(data));
+		} catch (KryoException e) {
+			throw new IOException("Unable to deserialize attribute", e);
+		} finally {
+			this.release(holder);
+		}
+	}
+	
+	/**
+	 * Empty the pool of Kryo instances, so the classes they have seen can be
+	 * unloaded.  The serializer can still be used afterwards.
+	 */
+	@Override
+	public void close() {
+		this.holders.clear();
+	}
+	
+	/**
+	 * Take a Kryo instance from the pool, creating one if none is free.
+	 * 
+	 * @return {@link KryoHolder}
+	 */
+	private KryoHolder borrow() {
+		KryoHolder holder = this.holders.poll();
+		if (holder == null) {
+			holder = new KryoHolder(this.createKryo());
+		}
+		return holder;
+	}
+	
+	/**
+	 * Return a Kryo instance to the pool, without the class loader it was
+	 * last given.
+	 * 
+	 * @param holder Kryo instance borrowed with {@link #borrow()}
+	 */
+	private void release(KryoHolder holder) {
+		holder.releaseOutput();
+		holder.getKryo().setClassLoader(KryoSessionSerializer.class.getClassLoader());
+		this.holders.offer(holder);
+	}
+	
+	/**
+	 * Prepare a borrowed Kryo instance to resolve classes with the supplied 
+	 * class loader.
+	 * 
+	 * @param holder Kryo instance borrowed with {@link #borrow()}
+	 * @param classLoader class loader, may be null
+	 * @return {@link Kryo}
+	 */
+	private Kryo getKryo(KryoHolder holder, ClassLoader classLoader) {
+		Kryo kryo = holder.getKryo();
+		if (classLoader != null) {
+			kryo.setClassLoader(classLoader);
+		} else {
+			kryo.setClassLoader(Thread.currentThread().getContextClassLoader());
+		}
+		return kryo;
+	}
+	
+	/**
+	 * Create and configure a new Kryo instance.
+	 * 
+	 * @return {@link Kryo}
+	 */
+	protected Kryo createKryo() {
+		synchronized (this) {
+			this.used = true;
+		}
+		Kryo kryo = new Kryo();
+		kryo.setRegistrationRequired(false);
+		kryo.setReferences(true);
+		
+		/* allow classes without a no argument constructor */
+		Kryo.DefaultInstantiatorStrategy instantiatorStrategy = new Kryo.DefaultInstantiatorStrategy();
+		instantiatorStrategy.setFallbackInstantiatorStrategy(new StdInstantiatorStrategy());
+		kryo.setInstantiatorStrategy(instantiatorStrategy);
+		
+		for (Class<?> type : this.registeredClasses) {
+			kryo.register(type);
+		}
+		return kryo;
+	}
+	
+	/**
+	 * Verify the Session can be handled by this serializer.
+	 * 
+	 * @param session Session
+	 * @return {@link MongoSession}
+	 * @throws IOException if the Session is not a {@link MongoSession}
+	 */
+	private MongoSession getMongoSession(StandardSession session) throws IOException {
+		if (!(session instanceof MongoSession)) {
+			throw new IOException(getClass().getSimpleName() + " requires the " + MongoPersistentManager.class.getName());
+		}
+		return (MongoSession)session;
+	}
+	
+	/**
+	 * Kryo instance and reusable output buffer, used by one thread at a time.
+	 */
+	private static final class KryoHolder {
+		
+		/** Kryo instance */
+		private final Kryo kryo;
+		
+		/** Output buffer */
+		private Output output;
+		
+		/**
+		 * @param kryo Kryo instance
+		 */
+		KryoHolder(Kryo kryo) {
+			this.kryo = kryo;
+		}
+		
+		/**
+		 * @return the kryo
+		 */
+		Kryo getKryo() {
+			return this.kryo;
+		}
+		
+		/**
+		 * @return an empty output buffer
+		 */
+		Output getOutput() {
+			if (this.output == null) {
+				this.output = new Output(INITIAL_BUFFER_SIZE, -1);
+			}
+			this.output.clear();
+			return this.output;
+		}
+		
+		/**
+		 * Drop the output buffer if it has grown too large to keep around.
+		 */
+		void releaseOutput() {
+			if (this.output != null && this.output.getBuffer().length > MAX_RETAINED_BUFFER_SIZE) {
+				this.output = null;
+			}
+		}
+	}
+}
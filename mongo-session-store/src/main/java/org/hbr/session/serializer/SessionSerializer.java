@@ -0,0 +1,95 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package org.hbr.session.serializer;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.catalina.session.StandardSession;
+import org.hbr.session.store.MongoStore;
+
+/**
+ * Converts Sessions, and individual Session attributes, to and from the
+ * bytes stored by the {@link MongoStore}.  The name of the serializer is 
+ * stored with each Session, so the Session can be read back even if the
+ * Store has since been configured with a different serializer.
+ * <p>
+ * Implementations must be thread safe and have a public no argument
+ * constructor.
+ * </p>
+ * 
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public interface SessionSerializer {
+
+	/**
+	 * Retrieve the name stored with each Session written by this serializer.
+	 * 
+	 * @return serializer name
+	 */
+	public String getName();
+	
+	/**
+	 * Register classes ahead of time, so they can be written with a compact 
+	 * identifier instead of their name.  Classes must be registered in the
+	 * same order everywhere the Sessions are read.  Serializers that do not 
+	 * support registration ignore this.
+	 * 
+	 * @param classes Classes to register
+	 */
+	public void registerClasses(List<Class<?>> classes);
+	
+	/**
+	 * Serialize a Session, including its attributes.
+	 * 
+	 * @param session Session to serialize
+	 * @return serialized Session
+	 * @throws IOException
+	 */
+	public byte[] serialize(StandardSession session) throws IOException;
+	
+	/**
+	 * Read a serialized Session into an empty Session.
+	 * 
+	 * @param data serialized Session
+	 * @param session empty Session to populate
+	 * @param classLoader class loader used to resolve the attribute classes, may be null
+	 * @throws ClassNotFoundException
+	 * @throws IOException
+	 */
+	public void deserialize(byte[] data, StandardSession session, ClassLoader classLoader) throws ClassNotFoundException, IOException;
+	
+	/**
+	 * Serialize a single Session attribute value.
+	 * 
+	 * @param value attribute value
+	 * @return serialized value
+	 * @throws IOException
+	 */
+	public byte[] serializeAttribute(Object value) throws IOException;
+	
+	/**
+	 * Read a serialized Session attribute value.
+	 * 
+	 * @param data serialized value
+	 * @param classLoader class loader used to resolve the attribute classes, may be null
+	 * @return attribute value
+	 * @throws ClassNotFoundException
+	 * @throws IOException
+	 */
+	public Object deserializeAttribute(byte[] data, ClassLoader classLoader) throws ClassNotFoundException, IOException;
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.stats;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Summary of the values recorded by a {@link StripedHistogram}, published
+ * over JMX as composite data.
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class HistogramSnapshot {
+
+	private final long count;
+	private final double mean;
+	private final long p50;
+	private final long p90;
+	private final long p99;
+	private final long p999;
+	private final long max;
+
+	/**
+	 * Create a snapshot.
+	 *
+	 * @param count Number of recorded values
+	 * @param mean Mean of the recorded values
+	 * @param p50 Median
+	 * @param p90 90th percentile
+	 * @param p99 99th percentile
+	 * @param p999 99.9th percentile
+	 * @param max Largest recorded value
+	 */
+	@ConstructorProperties({ "count", "mean", "p50", "p90", "p99", "p999", "max" })
+	public HistogramSnapshot(long count, double mean, long p50, long p90, long p99, long p999, long max) {
+		this.count = count;
+		this.mean = mean;
+		this.p50 = p50;
+		this.p90 = p90;
+		this.p99 = p99;
+		this.p999 = p999;
+		this.max = max;
+	}
+
+	/**
+	 * @return the count
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the mean
+	 */
+	public double getMean() {
+		return mean;
+	}
+
+	/**
+	 * @return the p50
+	 */
+	public long getP50() {
+		return p50;
+	}
+
+	/**
+	 * @return the p90
+	 */
+	public long getP90() {
+		return p90;
+	}
+
+	/**
+	 * @return the p99
+	 */
+	public long getP99() {
+		return p99;
+	}
+
+	/**
+	 * @return the p999
+	 */
+	public long getP999() {
+		return p999;
+	}
+
+	/**
+	 * @return the max
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return "count=" + count + ", mean=" + mean + ", p50=" + p50 + ", p90=" + p90 
+				+ ", p99=" + p99 + ", p999=" + p999 + ", max=" + max;
+	}
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.stats;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencies, sizes and error counts of the operations of a session store.
+ * Recording is cheap and does not block, so statistics are always kept.
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class StoreStatistics implements StoreStatisticsMXBean {
+
+	/**
+	 * Operations whose latency is recorded.
+	 */
+	public enum Operation {
+		LOAD, SAVE, REMOVE, KEYS, SIZE, SERIALIZE, DESERIALIZE, MONGO_READ, MONGO_WRITE
+	}
+
+	private final StripedHistogram[] latencies = new StripedHistogram[Operation.values().length];
+	private final StripedCounter[] errors = new StripedCounter[Operation.values().length];
+	private final StripedHistogram sessionSize = new StripedHistogram();
+	private final StripedCounter bytesWritten = new StripedCounter();
+	private final StripedCounter bytesRead = new StripedCounter();
+	private final StripedCounter unchangedWrites = new StripedCounter();
+
+	/**
+	 * Create empty statistics.
+	 */
+	public StoreStatistics() {
+		for (int i = 0; i < this.latencies.length; i++) {
+			this.latencies[i] = new StripedHistogram();
+			this.errors[i] = new StripedCounter();
+		}
+	}
+
+	/**
+	 * Record the latency of an operation that has just completed.
+	 *
+	 * @param operation Operation
+	 * @param startNanos {@link System#nanoTime()} when the operation started
+	 */
+	public void recordLatency(Operation operation, long startNanos) {
+		this.recordNanos(operation, System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Record the time spent in an operation.
+	 *
+	 * @param operation Operation
+	 * @param nanos Time spent, in nanoseconds
+	 */
+	public void recordNanos(Operation operation, long nanos) {
+		this.latencies[operation.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	/**
+	 * Record an operation that failed.
+	 *
+	 * @param operation Operation
+	 */
+	public void recordError(Operation operation) {
+		this.errors[operation.ordinal()].increment();
+	}
+
+	/**
+	 * Record the session data written for a session.
+	 *
+	 * @param bytes Size of the session data
+	 */
+	public void recordWrite(long bytes) {
+		this.sessionSize.record(bytes);
+		this.bytesWritten.add(bytes);
+	}
+
+	/**
+	 * Record the session data read for a session.
+	 *
+	 * @param bytes Size of the session data
+	 */
+	public void recordRead(long bytes) {
+		this.bytesRead.add(bytes);
+	}
+
+	/**
+	 * Record a save that did not write the session data, because it was
+	 * already stored.
+	 */
+	public void recordUnchangedWrite() {
+		this.unchangedWrites.increment();
+	}
+
+	/**
+	 * @param operation Operation
+	 * @return latency of the operation
+	 */
+	public HistogramSnapshot getLatency(Operation operation) {
+		return this.latencies[operation.ordinal()].snapshot();
+	}
+
+	/**
+	 * @param operation Operation
+	 * @return number of times the operation failed
+	 */
+	public long getErrors(Operation operation) {
+		return this.errors[operation.ordinal()].get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public HistogramSnapshot getLoadLatency() {
+		return this.getLatency(Operation.LOAD);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public HistogramSnapshot getSaveLatency() {
+		return this.getLatency(Operation.SAVE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public HistogramSnapshot getRemoveLatency() {
+		return this.getLatency(Operation.REMOVE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public HistogramSnapshot getKeysLatency() {
+		return this.getLatency(Operation.KEYS);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public HistogramSnapshot getSizeLatency() {
+		return this.getLatency(Operation.SIZE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public HistogramSnapshot getSerializeLatency() {
+		return this.getLatency(Operation.SERIALIZE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public HistogramSnapshot getDeserializeLatency() {
+		return this.getLatency(Operation.DESERIALIZE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public HistogramSnapshot getMongoReadLatency() {
+		return this.getLatency(Operation.MONGO_READ);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public HistogramSnapshot getMongoWriteLatency() {
+		return this.getLatency(Operation.MONGO_WRITE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public HistogramSnapshot getSessionSize() {
+		return this.sessionSize.snapshot();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getBytesWritten() {
+		return this.bytesWritten.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getBytesRead() {
+		return this.bytesRead.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getUnchangedWrites() {
+		return this.unchangedWrites.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getLoadErrors() {
+		return this.getErrors(Operation.LOAD);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getSaveErrors() {
+		return this.getErrors(Operation.SAVE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getRemoveErrors() {
+		return this.getErrors(Operation.REMOVE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void reset() {
+		for (int i = 0; i < this.latencies.length; i++) {
+			this.latencies[i].reset();
+			this.errors[i].reset();
+		}
+		this.sessionSize.reset();
+		this.bytesWritten.reset();
+		this.bytesRead.reset();
+		this.unchangedWrites.reset();
+	}
+}
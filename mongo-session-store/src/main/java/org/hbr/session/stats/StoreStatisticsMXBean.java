@@ -0,0 +1,111 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.stats;
+
+/**
+ * Management interface of the {@link StoreStatistics} of a session store.
+ * Latencies are in microseconds and sizes in bytes.
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public interface StoreStatisticsMXBean {
+
+	/**
+	 * @return latency of loading a session, including deserialization
+	 */
+	HistogramSnapshot getLoadLatency();
+
+	/**
+	 * @return latency of saving a session, including serialization
+	 */
+	HistogramSnapshot getSaveLatency();
+
+	/**
+	 * @return latency of removing a session
+	 */
+	HistogramSnapshot getRemoveLatency();
+
+	/**
+	 * @return latency of listing the stored session ids
+	 */
+	HistogramSnapshot getKeysLatency();
+
+	/**
+	 * @return latency of counting the stored sessions
+	 */
+	HistogramSnapshot getSizeLatency();
+
+	/**
+	 * @return time spent serializing, and compressing, a session being saved
+	 */
+	HistogramSnapshot getSerializeLatency();
+
+	/**
+	 * @return time spent decompressing and deserializing a session being loaded
+	 */
+	HistogramSnapshot getDeserializeLatency();
+
+	/**
+	 * @return MongoDB round trip time of the reads done to load a session
+	 */
+	HistogramSnapshot getMongoReadLatency();
+
+	/**
+	 * @return MongoDB round trip time of the writes done to save a session
+	 */
+	HistogramSnapshot getMongoWriteLatency();
+
+	/**
+	 * @return size of the session data written
+	 */
+	HistogramSnapshot getSessionSize();
+
+	/**
+	 * @return total size of the session data written
+	 */
+	long getBytesWritten();
+
+	/**
+	 * @return total size of the session data read
+	 */
+	long getBytesRead();
+
+	/**
+	 * @return number of saves that skipped writing session data already stored
+	 */
+	long getUnchangedWrites();
+
+	/**
+	 * @return number of loads that failed
+	 */
+	long getLoadErrors();
+
+	/**
+	 * @return number of saves that failed
+	 */
+	long getSaveErrors();
+
+	/**
+	 * @return number of removals that failed
+	 */
+	long getRemoveErrors();
+
+	/**
+	 * Forget everything recorded so far.
+	 */
+	void reset();
+}
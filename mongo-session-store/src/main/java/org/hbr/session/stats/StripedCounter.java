@@ -0,0 +1,83 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that threads can add to at the same time without contending
+ * on a single value.  Each thread adds to one of several stripes, which 
+ * are only added up when the counter is read.
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class StripedCounter {
+
+	/**
+	 * Distance between two stripes in the array, so stripes do not share
+	 * a cache line.
+	 */
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray stripes;
+	private final int mask;
+
+	/**
+	 * Create a counter with a stripe for roughly every processor.
+	 */
+	public StripedCounter() {
+		int size = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+		this.stripes = new AtomicLongArray(size * PADDING);
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Add to the counter.
+	 *
+	 * @param delta Amount to add
+	 */
+	public void add(long delta) {
+		this.stripes.addAndGet(((int)Thread.currentThread().getId() & this.mask) * PADDING, delta);
+	}
+
+	/**
+	 * Add one to the counter.
+	 */
+	public void increment() {
+		this.add(1L);
+	}
+
+	/**
+	 * @return the sum of all the stripes
+	 */
+	public long get() {
+		long sum = 0L;
+		for (int i = 0; i < this.stripes.length(); i += PADDING) {
+			sum += this.stripes.get(i);
+		}
+		return sum;
+	}
+
+	/**
+	 * Reset the counter to 0.
+	 */
+	public void reset() {
+		for (int i = 0; i < this.stripes.length(); i += PADDING) {
+			this.stripes.set(i, 0L);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non negative values, such as latencies or sizes, with
+ * buckets that grow exponentially, so every value is recorded with a
+ * precision of about 12%.
+ * <p>
+ * Values are recorded into one of several stripes, picked by the
+ * recording thread, so threads recording at the same time rarely touch
+ * the same counters.  The stripes are only added up when the histogram
+ * is read.
+ * </p>
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class StripedHistogram {
+
+	/**
+	 * Number of bits of each value kept by its bucket.
+	 */
+	private static final int SUB_BUCKET_BITS = 3;
+
+	/**
+	 * Number of buckets for each power of two.
+	 */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Number of buckets needed to hold any positive long.
+	 */
+	static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	/**
+	 * Counters of a single stripe.
+	 */
+	private static final class Stripe {
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+	}
+
+	private final Stripe[] stripes;
+	private final int mask;
+
+	/**
+	 * Create a histogram with a stripe for roughly every processor.
+	 */
+	public StripedHistogram() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a histogram.
+	 *
+	 * @param concurrency Expected number of threads recording at the same time
+	 */
+	public StripedHistogram(int concurrency) {
+		int size = Integer.highestOneBit(Math.max(1, concurrency - 1)) << 1;
+		this.stripes = new Stripe[size];
+		for (int i = 0; i < size; i++) {
+			this.stripes[i] = new Stripe();
+		}
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Record a value.  Negative values are recorded as 0.
+	 *
+	 * @param value Value to record
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		Stripe stripe = this.stripes[(int)Thread.currentThread().getId() & this.mask];
+		stripe.counts.incrementAndGet(bucketOf(value));
+		stripe.count.incrementAndGet();
+		stripe.sum.addAndGet(value);
+		long max = stripe.max.get();
+		while (value > max && !stripe.max.compareAndSet(max, value)) {
+			max = stripe.max.get();
+		}
+	}
+
+	/**
+	 * Take a snapshot of the recorded values.
+	 *
+	 * @return {@link HistogramSnapshot}
+	 */
+	public HistogramSnapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		long count = 0L;
+		long sum = 0L;
+		long max = 0L;
+		for (Stripe stripe : this.stripes) {
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] += stripe.counts.get(i);
+			}
+			count += stripe.count.get();
+			sum += stripe.sum.get();
+			max = Math.max(max, stripe.max.get());
+		}
+
+		/* the bucket counts are the reference, the total may be slightly ahead of them */
+		long total = 0L;
+		for (long bucketCount : counts) {
+			total += bucketCount;
+		}
+		return new HistogramSnapshot(count,
+				count == 0 ? 0.0 : (double)sum / count,
+				valueAt(counts, total, 0.50, max),
+				valueAt(counts, total, 0.90, max),
+				valueAt(counts, total, 0.99, max),
+				valueAt(counts, total, 0.999, max),
+				max);
+	}
+
+	/**
+	 * Forget all recorded values.  Values recorded while the histogram is
+	 * being reset may be kept.
+	 */
+	public void reset() {
+		for (Stripe stripe : this.stripes) {
+			for (int i = 0; i < BUCKETS; i++) {
+				stripe.counts.set(i, 0L);
+			}
+			stripe.count.set(0L);
+			stripe.sum.set(0L);
+			stripe.max.set(0L);
+		}
+	}
+
+	/**
+	 * Find the value below which a fraction of the recorded values fall.
+	 *
+	 * @param counts Bucket counts
+	 * @param total Sum of the bucket counts
+	 * @param fraction Fraction of the values, between 0 and 1
+	 * @param max Largest recorded value
+	 * @return the highest value of the bucket holding the percentile
+	 */
+	private static long valueAt(long[] counts, long total, double fraction, long max) {
+		if (total == 0) {
+			return 0L;
+		}
+		long rank = (long)Math.ceil(fraction * total);
+		long seen = 0L;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(highestValueOf(i), max);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Find the bucket of a value.
+	 *
+	 * @param value Non negative value
+	 * @return bucket index
+	 */
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int)value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Find the highest value held by a bucket.
+	 *
+	 * @param bucket Bucket index
+	 * @return highest value
+	 */
+	static long highestValueOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		long lowest = (1L << exponent) | (subBucket << (exponent - SUB_BUCKET_BITS));
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return lowest + width - 1 < 0 ? Long.MAX_VALUE : lowest + width - 1;
+	}
+}
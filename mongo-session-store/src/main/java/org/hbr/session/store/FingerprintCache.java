@@ -0,0 +1,243 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.store;
+
+/**
+ * Fixed size cache of the fingerprints of the session data last written to,
+ * or read from, MongoDB, so a save of unchanged data only has to confirm the
+ * stored copy still has the same fingerprint.
+ * <p>
+ * Entries are kept in primitive arrays, indexed by a 64 bit hash of the
+ * session id, so the cache never grows past the size it was created with.
+ * Each slot holds a single session, and a session hashing to a taken slot
+ * replaces the one already there.  A session that is not in the cache is
+ * simply written in full.
+ * </p>
+ * <p>
+ * Fingerprints are 64 bit xxHash values of the stored bytes.  The data of a
+ * session includes its id, so two sessions sharing a slot cannot have the
+ * same fingerprint.
+ * </p>
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class FingerprintCache {
+
+	private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME64_3 = 0x165667B19E3779F9L;
+	private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+	/**
+	 * Number of locks guarding the slots.
+	 */
+	private static final int STRIPES = 64;
+
+	private final long[] keys;
+	private final long[] fingerprints;
+	private final Object[] locks = new Object[STRIPES];
+	private final int mask;
+
+	/**
+	 * Create a cache.
+	 *
+	 * @param size Number of sessions held, rounded up to a power of two
+	 */
+	public FingerprintCache(int size) {
+		int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+		this.keys = new long[capacity];
+		this.fingerprints = new long[capacity];
+		this.mask = capacity - 1;
+		for (int i = 0; i < STRIPES; i++) {
+			this.locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Compare data about to be written with the data last written.
+	 *
+	 * @param id Session id
+	 * @param fingerprint Fingerprint of the data
+	 * @return true if the data last written had the same fingerprint
+	 */
+	public boolean contains(String id, long fingerprint) {
+		long key = key(id);
+		int slot = this.slot(key);
+		synchronized (this.lock(slot)) {
+			return this.keys[slot] == key && this.fingerprints[slot] == fingerprint && fingerprint != 0L;
+		}
+	}
+
+	/**
+	 * Record the data written to, or read from, MongoDB.
+	 *
+	 * @param id Session id
+	 * @param fingerprint Fingerprint of the data
+	 */
+	public void put(String id, long fingerprint) {
+		long key = key(id);
+		int slot = this.slot(key);
+		synchronized (this.lock(slot)) {
+			this.keys[slot] = key;
+			this.fingerprints[slot] = fingerprint;
+		}
+	}
+
+	/**
+	 * Forget a session, because its stored copy changed or is gone.
+	 *
+	 * @param id Session id
+	 */
+	public void remove(String id) {
+		long key = key(id);
+		int slot = this.slot(key);
+		synchronized (this.lock(slot)) {
+			if (this.keys[slot] == key) {
+				this.fingerprints[slot] = 0L;
+			}
+		}
+	}
+
+	/**
+	 * Forget every session.
+	 */
+	public void clear() {
+		for (int slot = 0; slot <= this.mask; slot++) {
+			synchronized (this.lock(slot)) {
+				this.fingerprints[slot] = 0L;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of sessions the cache can hold
+	 */
+	public int getCapacity() {
+		return this.mask + 1;
+	}
+
+	private int slot(long key) {
+		return (int)(key ^ (key >>> 32)) & this.mask;
+	}
+
+	private Object lock(int slot) {
+		return this.locks[slot & (STRIPES - 1)];
+	}
+
+	/**
+	 * Hash a session id to the key of its slot, with 64 bit FNV-1a.
+	 *
+	 * @param id Session id
+	 * @return key
+	 */
+	static long key(String id) {
+		long hash = 0xCBF29CE484222325L;
+		for (int i = 0; i < id.length(); i++) {
+			hash ^= id.charAt(i);
+			hash *= 0x100000001B3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Compute the fingerprint of session data, the 64 bit xxHash of the
+	 * data with a seed of 0.
+	 *
+	 * @param data Session data
+	 * @return fingerprint
+	 */
+	public static long fingerprint(byte[] data) {
+		int length = data.length;
+		int offset = 0;
+		long hash;
+		if (length >= 32) {
+			long v1 = PRIME64_1 + PRIME64_2;
+			long v2 = PRIME64_2;
+			long v3 = 0L;
+			long v4 = -PRIME64_1;
+			int limit = length - 32;
+			do {
+				v1 = round(v1, readLong(data, offset));
+				v2 = round(v2, readLong(data, offset + 8));
+				v3 = round(v3, readLong(data, offset + 16));
+				v4 = round(v4, readLong(data, offset + 24));
+				offset += 32;
+			} while (offset <= limit);
+			hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			hash = mergeRound(hash, v1);
+			hash = mergeRound(hash, v2);
+			hash = mergeRound(hash, v3);
+			hash = mergeRound(hash, v4);
+		} else {
+			hash = PRIME64_5;
+		}
+		hash += length;
+
+		while (offset + 8 <= length) {
+			hash ^= round(0L, readLong(data, offset));
+			hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+			offset += 8;
+		}
+		if (offset + 4 <= length) {
+			hash ^= (readInt(data, offset) & 0xFFFFFFFFL) * PRIME64_1;
+			hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+			offset += 4;
+		}
+		while (offset < length) {
+			hash ^= (data[offset] & 0xFFL) * PRIME64_5;
+			hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+			offset++;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= PRIME64_2;
+		hash ^= hash >>> 29;
+		hash *= PRIME64_3;
+		hash ^= hash >>> 32;
+		return hash;
+	}
+
+	private static long round(long accumulator, long input) {
+		accumulator += input * PRIME64_2;
+		accumulator = Long.rotateLeft(accumulator, 31);
+		return accumulator * PRIME64_1;
+	}
+
+	private static long mergeRound(long hash, long value) {
+		hash ^= round(0L, value);
+		return hash * PRIME64_1 + PRIME64_4;
+	}
+
+	private static long readLong(byte[] data, int offset) {
+		return (data[offset] & 0xFFL)
+				| (data[offset + 1] & 0xFFL) << 8
+				| (data[offset + 2] & 0xFFL) << 16
+				| (data[offset + 3] & 0xFFL) << 24
+				| (data[offset + 4] & 0xFFL) << 32
+				| (data[offset + 5] & 0xFFL) << 40
+				| (data[offset + 6] & 0xFFL) << 48
+				| (data[offset + 7] & 0xFFL) << 56;
+	}
+
+	private static int readInt(byte[] data, int offset) {
+		return (data[offset] & 0xFF)
+				| (data[offset + 1] & 0xFF) << 8
+				| (data[offset + 2] & 0xFF) << 16
+				| (data[offset + 3] & 0xFF) << 24;
+	}
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.store;
+
+import java.lang.management.ManagementFactory;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+
+/**
+ * JVM wide registry of {@link MongoClient} instances, shared by all the
+ * stores that connect to the same cluster with the same settings.
+ * <p>
+ * Clients are reference counted.  Each store acquires its client when it
+ * connects and releases it when it is destroyed, and a client is closed
+ * when the last store using it releases it.
+ * </p>
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public final class MongoClientRegistry {
+
+	/**
+	 * Creates the client for a registry entry.
+	 */
+	public interface ClientFactory {
+
+		/**
+		 * Create a new client.
+		 *
+		 * @return {@link MongoClient}
+		 * @throws UnknownHostException if a host cannot be resolved
+		 */
+		MongoClient createClient() throws UnknownHostException;
+	}
+
+	/**
+	 * A shared client and the number of stores using it.
+	 */
+	private static final class Entry {
+		private final String key;
+		private final String name;
+		private final MongoClient client;
+		private int references = 0;
+
+		private Entry(String key, String name, MongoClient client) {
+			this.key = key;
+			this.name = name;
+			this.client = client;
+		}
+	}
+
+	/**
+	 * Shared clients, by connection settings.
+	 */
+	private static final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	private MongoClientRegistry() {
+	}
+
+	/**
+	 * Acquire the client for a set of connection settings, creating it if
+	 * no other store is using it.
+	 *
+	 * @param key Connection settings.  Stores with the same key share a client
+	 * @param name Name of the entry used when reporting, which should not
+	 * 	include any credentials
+	 * @param factory Creates the client if needed
+	 * @return shared {@link MongoClient}
+	 * @throws UnknownHostException if a host cannot be resolved
+	 */
+	public static synchronized MongoClient acquire(String key, String name, ClientFactory factory) throws UnknownHostException {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			entry = new Entry(key, name, factory.createClient());
+			entries.put(key, entry);
+		}
+		entry.references++;
+		return entry.client;
+	}
+
+	/**
+	 * Release a client acquired from the registry, closing it if no other
+	 * store is using it.
+	 *
+	 * @param client Client to release
+	 */
+	public static synchronized void release(MongoClient client) {
+		Entry entry = findEntry(client);
+		if (entry == null) {
+			/* not shared, so nobody else is using it */
+			client.close();
+			return;
+		}
+		if (--entry.references <= 0) {
+			entries.remove(entry.key);
+			entry.client.close();
+		}
+	}
+
+	/**
+	 * Determine how many stores are using a client.
+	 *
+	 * @param client Client
+	 * @return number of stores, or 0 if the client is not in the registry
+	 */
+	public static synchronized int getReferences(MongoClient client) {
+		Entry entry = findEntry(client);
+		return entry == null ? 0 : entry.references;
+	}
+
+	/**
+	 * Describe the connection pool usage of every client in the registry.
+	 *
+	 * @return one description per client
+	 */
+	public static synchronized List<String> getPoolUsage() {
+		List<String> usage = new ArrayList<String>();
+		for (Entry entry : entries.values()) {
+			usage.add(describe(entry));
+		}
+		return usage;
+	}
+
+	/**
+	 * Describe the connection pool usage of a client.
+	 *
+	 * @param client Client
+	 * @return description, or null if the client is not in the registry
+	 */
+	public static synchronized String getPoolUsage(MongoClient client) {
+		Entry entry = findEntry(client);
+		return entry == null ? null : describe(entry);
+	}
+
+	/**
+	 * Describe an entry: the stores using it and, for each server, the
+	 * connections that are in use and open.  The driver publishes its
+	 * connection pools with JMX, by server, so the pools of other clients
+	 * connected to the same server are listed as well.
+	 *
+	 * @param entry Registry entry
+	 * @return description
+	 */
+	private static String describe(Entry entry) {
+		StringBuilder description = new StringBuilder(entry.name);
+		description.append(": stores=").append(entry.references);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ServerAddress address : entry.client.getAllAddress()) {
+			description.append(", ").append(address);
+			try {
+				ObjectName pattern = new ObjectName("org.mongodb.driver:type=ConnectionPool,host=" 
+						+ address.getHost().replace(":", "%3A") + ",port=" + address.getPort() + ",*");
+				for (ObjectName pool : server.queryNames(pattern, null)) {
+					description.append(" [").append(pool.getKeyProperty("clusterId")).append("]")
+						.append(" inUse=").append(server.getAttribute(pool, "CheckedOutCount"))
+						.append(" open=").append(server.getAttribute(pool, "Size"))
+						.append(" max=").append(server.getAttribute(pool, "MaxSize"));
+				}
+			} catch (JMException e) {
+				description.append(" unavailable");
+			}
+		}
+		return description.toString();
+	}
+
+	/**
+	 * Find the entry of a client.
+	 *
+	 * @param client Client
+	 * @return entry, or null
+	 */
+	private static Entry findEntry(MongoClient client) {
+		for (Entry entry : entries.values()) {
+			if (entry.client == client) {
+				return entry;
+			}
+		}
+		return null;
+	}
+}
@@ -15,26 +15,74 @@
  */
 package org.hbr.session.store;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InterruptedIOException;
+import java.io.NotSerializableException;
+import java.lang.management.ManagementFactory;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionAttributeListener;
+import javax.servlet.http.HttpSessionBindingListener;
+import javax.servlet.http.HttpSessionListener;
 
 import org.apache.catalina.Container;
+import org.apache.catalina.Context;
 import org.apache.catalina.LifecycleException;
-import org.apache.catalina.Loader;
 import org.apache.catalina.Session;
 import org.apache.catalina.Store;
+import org.apache.catalina.session.PersistentManagerBase;
 import org.apache.catalina.session.StandardSession;
 import org.apache.catalina.session.StoreBase;
-import org.apache.catalina.util.CustomObjectInputStream;
-
+import org.apache.catalina.util.LifecycleMBeanBase;
+import org.hbr.session.manager.LazyAttribute;
+import org.hbr.session.manager.MongoPersistentManager;
+import org.hbr.session.manager.MongoSession;
+import org.hbr.session.serializer.JavaSessionSerializer;
+import org.hbr.session.serializer.KryoSessionSerializer;
+import org.hbr.session.serializer.SessionSerializer;
+import org.hbr.session.stats.StoreStatistics;
+import org.hbr.session.stats.StoreStatistics.Operation;
+
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
@@ -43,10 +91,12 @@ import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoClientURI;
+import com.mongodb.MongoCredential;
 import com.mongodb.MongoException;
 import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
 import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
 
 /**
  * Tomcat {@link Store} implementation backed by MongoDB.
@@ -71,16 +121,151 @@ public class MongoStore extends StoreBase {
 	 */
 	protected static final String creationTimeProperty = "creationTime";
 	
+	/**
+	 * Property used to store the Session's max inactive interval, in seconds.
+	 */
+	protected static final String maxInactiveIntervalProperty = "maxInactiveInterval";
+	
+	/**
+	 * Property used to store the Session's last accessed time.
+	 */
+	protected static final String lastAccessedTimeProperty = "lastAccessedTime";
+	
+	/**
+	 * Property used to store the Session's this accessed time.
+	 */
+	protected static final String thisAccessedTimeProperty = "thisAccessedTime";
+	
+	/**
+	 * Property used to store the Session's new flag.
+	 */
+	protected static final String isNewProperty = "isNew";
+	
+	/**
+	 * Property used to store the Session's valid flag.
+	 */
+	protected static final String isValidProperty = "isValid";
+	
 	/**
 	 * Property used to store the Session's data.
 	 */
 	protected static final String sessionDataProperty = "data";
 	
+	/**
+	 * Property used to store the name of the serializer that wrote the Session.
+	 */
+	protected static final String serializerProperty = "serializer";
+	
+	/**
+	 * Property used to store the name of the algorithm used to compress the 
+	 * Session's data.
+	 */
+	protected static final String compressionProperty = "compression";
+	
+	/**
+	 * Property used to store the Session's attributes, when each attribute
+	 * is stored separately.
+	 */
+	protected static final String sessionAttributesProperty = "attributes";
+	
+	/**
+	 * Property used to store the version of the Session, which changes
+	 * every time the Session is saved.
+	 */
+	protected static final String versionProperty = "version";
+	
+	/**
+	 * Property used to store the date the Session expires, which is 
+	 * covered by a time to live index.
+	 */
+	protected static final String expireAtProperty = "expireAt";
+	
+	/**
+	 * Property used to store the <em>jvmRoute</em> of a Session stored
+	 * under a compact binary id.
+	 */
+	protected static final String routeProperty = "route";
+	
+	/**
+	 * Property used to store the names of the attributes that are
+	 * activation listeners, which are never loaded lazily.
+	 */
+	protected static final String activationListenersProperty = "activationListeners";
+	
+	/**
+	 * Property used to store the fingerprint of the Session data.
+	 */
+	protected static final String fingerprintProperty = "fingerprint";
+	
+	/**
+	 * Property used to store the number of chunks holding the data of a 
+	 * Session stored in the chunk collection.
+	 */
+	protected static final String chunksProperty = "chunks";
+	
+	/**
+	 * Property used to store the size of the chunks of a Session.
+	 */
+	protected static final String chunkSizeProperty = "chunkSize";
+	
+	/**
+	 * Property used to store the size of the data of a Session stored in chunks.
+	 */
+	protected static final String dataSizeProperty = "dataSize";
+	
+	/**
+	 * Property of a chunk holding the <em>_id</em> of its Session.
+	 */
+	protected static final String chunkSessionProperty = "session";
+	
+	/**
+	 * Property of a chunk holding its position in the Session data.
+	 */
+	protected static final String chunkIndexProperty = "n";
+	
+	/**
+	 * Suffix of the name of the collection holding the chunks of large Sessions.
+	 */
+	protected static final String chunkCollectionSuffix = ".chunks";
+	
+	/**
+	 * Age, in milliseconds, of chunks that may be removed once no stored 
+	 * Session refers to them.  Younger chunks may belong to a save that has 
+	 * not written its Session yet.
+	 */
+	private static final long ORPHANED_CHUNK_AGE_MS = 10 * 60 * 1000L;
+	
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	
+	/**
+	 * Index mode that builds and changes the indexes of the collection.
+	 */
+	public static final String INDEX_MODE_MANAGE = "manage";
+	
+	/**
+	 * Index mode that only logs how the indexes of the collection differ.
+	 */
+	public static final String INDEX_MODE_VERIFY = "verify";
+	
+	/**
+	 * Index mode that leaves the indexes of the collection alone.
+	 */
+	public static final String INDEX_MODE_NONE = "none";
+	
 	/**
 	 * Default Name of the Collection where the Sessions will be stored. 
 	 */
 	protected static final String sessionCollectionName = "tomcat.sessions";
 	
+	/**
+     * Serializers that can be used to read sessions, by name.
+     */
+    private static final Map<String, String> builtInSerializers = new HashMap<String, String>();
+    static {
+    	builtInSerializers.put(JavaSessionSerializer.NAME, JavaSessionSerializer.class.getName());
+    	builtInSerializers.put(KryoSessionSerializer.NAME, KryoSessionSerializer.class.getName());
+    }
+	
 	/**
      * The descriptive information about this implementation.
      */
@@ -164,13 +349,33 @@ public class MongoStore extends StoreBase {
      */
     protected int maxPoolSize = 20;
     
+    /**
+     * Controls if {@link #startInternal()} opens {@link #minPoolSize} connections
+     * and runs the store's queries once before it completes.  Defaults to false.
+     */
+    protected boolean warmUp = false;
+    
+    /**
+     * Maximum time, in milliseconds, to wait for the connections to be warmed
+     * up.  Defaults to 30000.
+     */
+    protected int warmUpTimeoutMs = 30000;
+    
+    /**
+     * Controls if the store fails to start when the connections could not be
+     * warmed up in time.  Defaults to false, the store starts anyway.
+     */
+    protected boolean warmUpRequired = false;
+    
     /**
      * MongoDB replica set name.
      */
     protected String replicaSet;
     
     /**
-     * Time to Live for the data in Mongo
+     * Time to Live for the data in Mongo, in seconds after the Session was
+     * last saved.  Defaults to -1, each Session expires after its own max
+     * inactive interval.
      */
     protected int timeToLive = -1;
     
@@ -191,6 +396,296 @@ public class MongoStore extends StoreBase {
      */
     protected WriteConcern writeConcern = WriteConcern.SAFE;
     
+    /**
+     * Number of expired sessions removed from MongoDB in a single 
+     * operation during {@link #processExpires()}.  Defaults to 500.
+     */
+    protected int expireBatchSize = 500;
+    
+    /**
+     * Controls if expired sessions are always loaded and expired, so that 
+     * attributes implementing {@link HttpSessionBindingListener} are notified.
+     * When false, expired sessions are only loaded if the Context has session
+     * listeners registered.  Defaults to false.
+     */
+    protected boolean loadExpiredSessions = false;
+    
+    /**
+     * Controls if each session attribute is stored as its own field, instead
+     * of serializing the whole session into a single data field.  This allows
+     * a save to only write the attributes that have changed.  Requires the
+     * {@link MongoPersistentManager}.  Defaults to false.
+     */
+    protected boolean storeAttributes = false;
+    
+    /**
+     * Controls if attributes of well known types, such as Strings, numbers,
+     * booleans, dates and maps or lists of those, are stored as native BSON
+     * values instead of being serialized, when {@link #storeAttributes} is
+     * enabled.  See {@link NativeAttributeCodec} for the types.  Native values
+     * are always read, even with this turned off.  Defaults to false.
+     */
+    protected boolean nativeAttributes = false;
+    
+    /**
+     * Controls if serialized attributes are only deserialized the first time
+     * they are read, when {@link #storeAttributes} is enabled.  Attributes that
+     * are never read are written back from the bytes they were loaded with.
+     * Attributes that are activation listeners are always deserialized when the
+     * session is loaded.  Defaults to false.
+     */
+    protected boolean lazyAttributes = false;
+    
+    /**
+     * Controls if a session that was accessed, but not modified, since it was
+     * last saved only has its access times updated instead of being written
+     * in full.  Requires the {@link MongoPersistentManager}.  Attribute values
+     * that are modified in place must be set on the session again to be saved.
+     * Defaults to false.
+     */
+    protected boolean touchUnmodifiedSessions = false;
+    
+    /**
+     * Minimum number of seconds between two updates of the access times of
+     * an unmodified session.  Defaults to 60.
+     */
+    protected int touchThrottleSeconds = 60;
+    
+    /**
+     * Class name of the {@link SessionSerializer} used to write sessions.
+     * Sessions written by another serializer can still be read.  Defaults 
+     * to the {@link JavaSessionSerializer}.
+     */
+    protected String serializerClassName = JavaSessionSerializer.class.getName();
+    
+    /**
+     * Comma separated list of class names to register with the serializer,
+     * for serializers that support class registration.  The list must be the 
+     * same, and in the same order, everywhere the sessions are read.
+     */
+    protected String registeredClasses;
+    
+    /**
+     * Algorithm used to compress the session data, either <em>deflate</em>
+     * or <em>none</em>.  Compressed sessions can always be read.  Defaults 
+     * to none.
+     */
+    protected String compression = "none";
+    
+    /**
+     * Minimum size, in bytes, of the serialized session data before it is
+     * compressed.  Defaults to 1024.
+     */
+    protected int compressionThreshold = 1024;
+    
+    /**
+     * Deflate compression level, from 1 (fastest) to 9 (smallest).
+     * Defaults to -1, the Deflate default.
+     */
+    protected int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    
+    /**
+     * Path to a file containing a preset dictionary used to compress the
+     * session data, typically built from serialized sessions.  The same
+     * dictionary is needed to read the sessions back.
+     */
+    protected String compressionDictionary;
+    
+    /**
+     * Compressor used to compress and decompress the session data.
+     */
+    protected SessionCompressor compressor;
+    
+    /**
+     * {@link SessionSerializer} used to write sessions.
+     */
+    protected SessionSerializer serializer;
+    
+    /**
+     * Serializers used to read sessions, by name.
+     */
+    protected final ConcurrentMap<String, SessionSerializer> serializers = new ConcurrentHashMap<String, SessionSerializer>();
+    
+    /**
+     * Controls if sessions are written to MongoDB by a background thread,
+     * instead of by the thread saving the session.  Pending writes are
+     * sent in unordered bulk operations, and a newer save of a session 
+     * replaces its pending write.  Defaults to false.
+     */
+    protected boolean writeBehind = false;
+    
+    /**
+     * Maximum number of session writes sent in a single bulk operation
+     * when {@link #writeBehind} is enabled.  Defaults to 100.
+     */
+    protected int writeBehindBatchSize = 100;
+    
+    /**
+     * Maximum time, in milliseconds, a session write waits in the queue
+     * when {@link #writeBehind} is enabled.  Defaults to 1000.
+     */
+    protected int writeBehindFlushIntervalMs = 1000;
+    
+    /**
+     * Maximum number of pending session writes when {@link #writeBehind} 
+     * is enabled.  Sessions saved while the queue is full are written by
+     * the saving thread.  Defaults to 10000.
+     */
+    protected int writeBehindQueueLimit = 10000;
+    
+    /**
+     * Queue of pending session writes, when {@link #writeBehind} is enabled.
+     */
+    protected WriteBehindQueue writeBehindQueue;
+    
+    /**
+     * Maximum size, in bytes, of the session data kept in the near cache.
+     * The near cache keeps the sessions this store has read or written, so
+     * loading a session that has not changed since only reads its version
+     * from MongoDB.  Defaults to 0, no near cache.
+     */
+    protected long nearCacheMaxBytes = 0L;
+    
+    /**
+     * Cache of stored sessions, when {@link #nearCacheMaxBytes} is set.
+     */
+    protected SessionCache nearCache;
+    
+    /**
+     * Number of sessions whose data fingerprint is remembered, so saving a
+     * session whose serialized data is already stored skips writing the
+     * data, and only refreshes its expiry date if the stored copy still has
+     * the same fingerprint.  Only applies to sessions stored as a whole.
+     * Defaults to 0, every save is written.
+     */
+    protected int fingerprintCacheSize = 0;
+    
+    /**
+     * Fingerprints of the stored sessions, when {@link #fingerprintCacheSize} is set.
+     */
+    protected FingerprintCache fingerprints;
+    
+    /**
+     * Size, in bytes, above which the session data is stored in chunks of
+     * {@link #chunkSize} bytes in a separate collection, so large sessions
+     * do not crowd the small ones out of MongoDB's cache.  Only applies to
+     * sessions stored as a whole.  Defaults to 0, sessions are never chunked.
+     */
+    protected int chunkThreshold = 0;
+    
+    /**
+     * Size, in bytes, of the chunks holding the data of large sessions.
+     * Defaults to 255 KB.
+     */
+    protected int chunkSize = 255 * 1024;
+    
+    /**
+     * Maximum size, in bytes, of the session data.  Larger sessions are 
+     * logged, or rejected when {@link #rejectOversizedSessions} is set.
+     * Only applies to sessions stored as a whole.  Defaults to 0, no maximum.
+     */
+    protected int maxDataSize = 0;
+    
+    /**
+     * Controls if sessions over {@link #maxDataSize} are not saved.  A 
+     * rejected session stays in memory on this node only.  Defaults to false,
+     * oversized sessions are saved and a warning is logged.
+     */
+    protected boolean rejectOversizedSessions = false;
+    
+    /**
+     * Latencies, sizes and errors of the store's operations, published 
+     * with JMX while the store is started.
+     */
+    protected final StoreStatistics statistics = new StoreStatistics();
+    
+    /**
+     * Name the statistics are registered under, while the store is started.
+     */
+    private ObjectName statisticsName;
+    
+    /**
+     * Controls how the store treats the indexes of the collection at startup.
+     * <em>manage</em> builds missing indexes in the background and changes the
+     * ones that differ, <em>verify</em> only logs the differences and <em>none</em>
+     * does not look at the indexes.  Defaults to manage.
+     */
+    protected String indexMode = INDEX_MODE_MANAGE;
+    
+    /**
+     * True when the index covering the session id queries was in place 
+     * when the store started, so those queries can be hinted to use it.
+     */
+    private volatile boolean keysIndexReady = false;
+    
+    /**
+     * Number of session ids read from MongoDB at a time when iterating over
+     * the stored sessions.  Defaults to 1000.
+     */
+    protected int keysBatchSize = 1000;
+    
+    /**
+     * Number of sessions read from MongoDB in a single query by 
+     * {@link #loadAll(Collection)}.  Defaults to 100.
+     */
+    protected int loadBatchSize = 100;
+    
+    /**
+     * Number of threads deserializing the sessions read by {@link #loadAll(Collection)}.
+     * With 1 or less, the sessions are deserialized by the loading thread.
+     * Defaults to 4.
+     */
+    protected int loadThreads = 4;
+    
+    /**
+     * Threads deserializing the sessions read by {@link #loadAll(Collection)},
+     * while the store is started.
+     */
+    protected ExecutorService loadExecutor;
+    
+    /**
+     * Controls if sessions are stored with a compact binary <em>_id</em>, holding
+     * the hex digits of the session id as bytes, with the <em>jvmRoute</em> kept
+     * in its own field.  This halves the size of the ids held by the indexes
+     * and the oplog.  Sessions already stored with a string id are still read,
+     * and keep their string id.  Ids that are not upper case hex are stored as
+     * strings.  Defaults to false.
+     */
+    protected boolean compactIds = false;
+    
+    /**
+     * Controls if {@link #getSize()} counts the stored sessions on every call.
+     * When false, the count is cached for {@link #sizeRefreshSeconds}.
+     * Defaults to false.
+     */
+    protected boolean exactSize = false;
+    
+    /**
+     * Number of seconds the count of stored sessions is cached.  Defaults to 60.
+     */
+    protected int sizeRefreshSeconds = 60;
+    
+    /**
+     * Cached count of the stored sessions, or -1 if it must be refreshed.
+     */
+    private volatile int sizeEstimate = -1;
+    
+    /**
+     * Time the cached count was refreshed.
+     */
+    private volatile long sizeEstimateTime = 0L;
+    
+    /**
+     * Clock used to create session versions, in microseconds.
+     */
+    private final AtomicLong versionClock = new AtomicLong();
+    
+    /**
+     * Low bits of the versions created by this store, so stores on different
+     * nodes are unlikely to create the same version.
+     */
+    private final int versionNode = new Random().nextInt(256);
+    
     /**
      * {@link MongoClient} instance to use.
      */
@@ -206,6 +701,11 @@ public class MongoStore extends StoreBase {
      */
     protected DBCollection collection;
     
+    /**
+     * Mongo Collection for the chunks of large Sessions
+     */
+    protected DBCollection chunks;
+    
     /**
      * Retrieve the unique Context name for this Manager.  This will
      * be used to separate out sessions from different application
@@ -246,10 +746,37 @@ public class MongoStore extends StoreBase {
     
     
 	/**
-	 * {@inheritDoc}
+	 * Return the number of sessions stored for this context.  Unless 
+	 * {@link #exactSize} is set, the count is cached and only refreshed 
+	 * every {@link #sizeRefreshSeconds}, so it may be slightly out of date.
 	 */
 	@Override
 	public int getSize() throws IOException {		
+		long start = System.nanoTime();
+		try {
+			if (this.exactSize) {
+				return this.getExactSize();
+			}
+			
+			/* refresh the cached count when it is too old */
+			long timeNow = System.currentTimeMillis();
+			if (this.sizeEstimate < 0 || timeNow - this.sizeEstimateTime >= this.sizeRefreshSeconds * 1000L) {
+				this.sizeEstimate = this.getExactSize();
+				this.sizeEstimateTime = timeNow;
+			}
+			return this.sizeEstimate;
+		} finally {
+			this.statistics.recordLatency(Operation.SIZE, start);
+		}
+	}
+	
+	/**
+	 * Count the sessions stored for this context.
+	 * 
+	 * @return number of stored sessions
+	 * @throws IOException
+	 */
+	public int getExactSize() throws IOException {
 		/* count the items in this collection for this app */
 		Long count = this.collection.count(new BasicDBObject(appContextProperty, this.getName()));
 		return count.intValue();
@@ -263,587 +790,3252 @@ public class MongoStore extends StoreBase {
 		/* create the empty array list */
 		List<String> keys = new ArrayList<String>();
 		
-		/* build the query */
-		BasicDBObject sessionKeyQuery = new BasicDBObject();
-		sessionKeyQuery.put(appContextProperty, this.getName());
-		
 		/* get the list */
-		DBCursor mongoSessionKeys = this.collection.find(sessionKeyQuery, new BasicDBObject("_id", 1));
-		while(mongoSessionKeys.hasNext()) {
-			String id = mongoSessionKeys.next().get("_id").toString();
-			keys.add(id);
+		long start = System.nanoTime();
+		SessionKeyIterator mongoSessionKeys = this.keyIterator();
+		try {
+			while (mongoSessionKeys.hasNext()) {
+				keys.add(mongoSessionKeys.next());
+			}
+		} finally {
+			mongoSessionKeys.close();
+			this.statistics.recordLatency(Operation.KEYS, start);
 		}
 		
 		/* return the array */
 		return keys.toArray(new String[keys.size()]);
 	}
+	
+	/**
+	 * Iterate over the ids of the sessions stored for this context without
+	 * holding them all in memory.  The ids are read {@link #keysBatchSize} at
+	 * a time, with a query covered by the app and id index.  The iterator 
+	 * should be closed if it is not read to the end.
+	 * 
+	 * @return {@link SessionKeyIterator} over the session ids
+	 * @throws IOException
+	 */
+	public SessionKeyIterator keyIterator() throws IOException {
+		/* build the query */
+		BasicDBObject sessionKeyQuery = new BasicDBObject();
+		sessionKeyQuery.put(appContextProperty, this.getName());
+		
+		/* only read the ids, so the query is answered from the index */
+		BasicDBObject fields = new BasicDBObject("_id", 1);
+		if (this.compactIds) {
+			/* compact ids need their route, which the index does not cover */
+			fields.put(routeProperty, 1);
+		}
+		DBCursor mongoSessionKeys = this.collection.find(sessionKeyQuery, fields)
+				.batchSize(this.keysBatchSize);
+		if (this.keysIndexReady) {
+			mongoSessionKeys.hint(getKeysIndex());
+		}
+		return new SessionKeyIterator(mongoSessionKeys);
+	}
+	
+	/**
+	 * @return the index covering the session id queries
+	 */
+	private static DBObject getKeysIndex() {
+		BasicDBObject keysIndex = new BasicDBObject(appContextProperty, 1);
+		keysIndex.put("_id", 1);
+		return keysIndex;
+	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
 	public Session load(String id) throws ClassNotFoundException, IOException {
-		/* default session */
-		StandardSession session = null;
-		
-		/* get a reference to the container */
-		Container container = manager.getContainer();
-		
-		/* store a reference to the old class loader, as we will change this thread's
-		 * current context if we need to load custom classes
-		 */
-		ClassLoader managerContextLoader = Thread.currentThread().getContextClassLoader();
-		ClassLoader appContextLoader = null;
+		long start = System.nanoTime();
+		boolean loaded = false;
+		try {
+			Session session = this.loadSession(id);
+			loaded = true;
+			return session;
+		} finally {
+			this.statistics.recordLatency(Operation.LOAD, start);
+			if (!loaded) {
+				this.statistics.recordError(Operation.LOAD);
+			}
+		}
+	}
+	
+	/**
+	 * Load a session from MongoDB.
+	 * 
+	 * @param id Session id
+	 * @return Session, or null if it is not stored
+	 * @throws ClassNotFoundException
+	 * @throws IOException
+	 */
+	private Session loadSession(String id) throws ClassNotFoundException, IOException {
+		/* a write of this session may still be queued */
+		if (this.writeBehindQueue != null) {
+			this.writeBehindQueue.flush(id);
+		}
 		
 		/* locate the session, by id, in the collection */
+		Object idValue = this.compactIds ? encodeId(id) : id;
 		BasicDBObject sessionQuery = new BasicDBObject();
-		sessionQuery.put("_id", id);
+		putId(sessionQuery, id, idValue);
 		sessionQuery.put(appContextProperty, this.getName());
 		
 		/* lookup the session */
-		DBObject mongoSession = this.collection.findOne(sessionQuery);
-		if (mongoSession != null) {
+		long readStart = System.nanoTime();
+		DBObject mongoSession = this.findSession(id, sessionQuery);
+		if (mongoSession == null && idValue != id) {
+			/* the session may have been stored before compact ids were enabled */
+			BasicDBObject legacyQuery = new BasicDBObject("_id", id);
+			legacyQuery.put(appContextProperty, this.getName());
+			mongoSession = this.findSession(id, legacyQuery);
+		}
+		this.statistics.recordLatency(Operation.MONGO_READ, readStart);
+		if (mongoSession == null) {
+			return null;
+		}
+		this.statistics.recordRead(getDataSize(mongoSession));
+		this.rememberFingerprint(id, mongoSession);
+		
+		return this.readSession(mongoSession);
+	}
+	
+	/**
+	 * Create a session from its stored document.
+	 * 
+	 * @param mongoSession Session document
+	 * @return Session, or null if the document holds no session data
+	 * @throws ClassNotFoundException
+	 * @throws IOException
+	 */
+	private Session readSession(DBObject mongoSession) throws ClassNotFoundException, IOException {
+		/* default session */
+		StandardSession session = null;
+		
+		/* store a reference to the old class loader, as we will change this thread's
+		 * current context if we need to load custom classes
+		 */
+		ClassLoader managerContextLoader = Thread.currentThread().getContextClassLoader();
+		ClassLoader appContextLoader = null;
+		
+		if (mongoSession.containsField(sessionAttributesProperty)) {
+			/* the session was stored attribute by attribute */
+			session = this.loadAttributes(mongoSession);
+		} else {
 			/* get the properties from mongo */			
 			byte[] data = (byte[])mongoSession.get(sessionDataProperty);
 			
+			/* large sessions are stored in chunks */
+			if (data == null && mongoSession.containsField(chunksProperty)) {
+				mongoSession = this.readChunks(mongoSession);
+				if (mongoSession != null) {
+					data = (byte[])mongoSession.get(sessionDataProperty);
+				}
+			}
+			
 			if (data != null) {
-				BufferedInputStream bis = null;
-				ObjectInputStream ois = null;
+				long deserializeStart = System.nanoTime();
+				
+				/* the data may have been compressed */
+				String compression = (String)mongoSession.get(compressionProperty);
+				if (compression != null) {
+					data = this.decompress(compression, data);
+				}
+				
+				/* find the serializer that wrote the session */
+				SessionSerializer sessionSerializer = this.getSerializer((String)mongoSession.get(serializerProperty));
 				try {
-					/* load the data into an input stream */					
-					bis = new BufferedInputStream(new ByteArrayInputStream(data));					
-					
 					/* determine which class loader to use when reading the object */
-					Loader loader = null;
-					if (container != null) {
-						loader = container.getLoader();
-						if (loader != null) {
-							/* get the class loader for the container */
-							appContextLoader = loader.getClassLoader();
-							
-							/* update the thread's class loader before reading the 
-							 * object
-							 */
-							Thread.currentThread().setContextClassLoader(appContextLoader);
-
-							/* use a custom object stream to read our object */
-                            ois = new CustomObjectInputStream(bis,
-                            		appContextLoader);
-						} else {
-							/* regular input stream */
-							ois = new ObjectInputStream(bis);
-						}
+					appContextLoader = this.getAppContextLoader();
+					if (appContextLoader != null) {
+						/* update the thread's class loader before reading the 
+						 * object
+						 */
+						Thread.currentThread().setContextClassLoader(appContextLoader);
 					}
 					
 					/* create a new session */
 					session = (StandardSession)this.manager.createEmptySession();
-					session.readObjectData(ois);
+					sessionSerializer.deserialize(data, session, appContextLoader);
 					session.setManager(this.manager);
-				} finally {
-					if (ois != null) {
-						try {
-							ois.close();
-							ois = null;
-						} catch (Exception e) {}
-					}
-					if (bis != null) {
-						try {
-							bis.close();
-							bis = null;
-						} catch (Exception e) {}
-					}
 					
+					/* the access times may have been touched since the data was written */
+					if (session instanceof MongoSession) {
+						MongoSession trackedSession = (MongoSession)session;
+						trackedSession.restoreAccessTimes(getLong(mongoSession, lastAccessedTimeProperty, 0L), 
+								getLong(mongoSession, thisAccessedTimeProperty, 0L));
+						trackedSession.markStored();
+					}
+				} finally {
 					/* restore the class loader */
 					Thread.currentThread().setContextClassLoader(managerContextLoader);
+					this.statistics.recordLatency(Operation.DESERIALIZE, deserializeStart);
 				}
 			}
 		}
 		
+		/* remember which version was loaded, and how its id is stored */
+		if (session instanceof MongoSession) {
+			((MongoSession)session).setVersion(getLong(mongoSession, versionProperty, 0L));
+			((MongoSession)session).setStringId(!(mongoSession.get("_id") instanceof byte[]));
+		}
+		
 		/* return the session */
 		return session;
 	}
+	
+	/**
+	 * Load several sessions, with one query for each batch of {@link #loadBatchSize}
+	 * ids instead of one query per session.  While a batch is read from MongoDB,
+	 * the sessions of the previous batch are deserialized by up to {@link #loadThreads}
+	 * threads.  Sessions that cannot be deserialized are logged and left out.
+	 * 
+	 * @param ids Session ids
+	 * @return the stored sessions, by id
+	 * @throws IOException if interrupted while the sessions are deserialized
+	 */
+	public Map<String, Session> loadAll(Collection<String> ids) throws IOException {
+		Map<String, Session> sessions = new HashMap<String, Session>();
+		Map<String, Future<Session>> pending = new HashMap<String, Future<Session>>();
+		
+		List<String> batch = new ArrayList<String>();
+		for (String id : ids) {
+			batch.add(id);
+			if (batch.size() >= this.loadBatchSize) {
+				this.loadBatch(batch, pending, sessions);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			this.loadBatch(batch, pending, sessions);
+		}
+		
+		/* wait for the last batch */
+		this.collectSessions(pending, sessions);
+		return sessions;
+	}
+	
+	/**
+	 * Read a batch of sessions from MongoDB, collect the sessions of the
+	 * previous batch, and start deserializing the new ones.
+	 * 
+	 * @param ids Session ids of the batch
+	 * @param pending Sessions of the previous batch being deserialized
+	 * @param sessions Sessions loaded so far
+	 * @throws IOException if interrupted while the previous batch is deserialized
+	 */
+	private void loadBatch(List<String> ids, Map<String, Future<Session>> pending, Map<String, Session> sessions) throws IOException {
+		/* writes of these sessions may still be queued */
+		if (this.writeBehindQueue != null) {
+			for (String id : ids) {
+				this.writeBehindQueue.flush(id);
+			}
+		}
+		
+		/* look for both forms of the ids, sessions may be stored under either */
+		List<Object> idValues = new ArrayList<Object>(ids);
+		if (this.compactIds) {
+			for (String id : ids) {
+				Object idValue = encodeId(id);
+				if (idValue != id) {
+					idValues.add(idValue);
+				}
+			}
+		}
+		
+		BasicDBObject batchQuery = new BasicDBObject();
+		batchQuery.put("_id", new BasicDBObject("$in", idValues));
+		batchQuery.put(appContextProperty, this.getName());
+		
+		long readStart = System.nanoTime();
+		Set<String> wanted = new HashSet<String>(ids);
+		Map<String, DBObject> mongoSessions = new LinkedHashMap<String, DBObject>();
+		DBCursor cursor = this.collection.find(batchQuery).batchSize(idValues.size());
+		try {
+			while (cursor.hasNext()) {
+				DBObject mongoSession = cursor.next();
+				String id = decodeId(mongoSession);
+				
+				/* skip compact ids stored for another route, and prefer compact ids over string ids */
+				if (!wanted.contains(id) || (mongoSessions.containsKey(id) && !(mongoSession.get("_id") instanceof byte[]))) {
+					continue;
+				}
+				mongoSessions.put(id, mongoSession);
+			}
+		} finally {
+			cursor.close();
+		}
+		this.statistics.recordLatency(Operation.MONGO_READ, readStart);
+		
+		/* the previous batch was deserialized while this one was read */
+		this.collectSessions(pending, sessions);
+		
+		ExecutorService executor = this.loadExecutor;
+		for (Map.Entry<String, DBObject> entry : mongoSessions.entrySet()) {
+			String id = entry.getKey();
+			final DBObject mongoSession = entry.getValue();
+			long size = getDataSize(mongoSession);
+			this.statistics.recordRead(size);
+			this.cacheSession(id, mongoSession, size);
+			this.rememberFingerprint(id, mongoSession);
+			
+			FutureTask<Session> reader = new FutureTask<Session>(new Callable<Session>() {
+				@Override
+				public Session call() throws Exception {
+					return readSession(mongoSession);
+				}
+			});
+			try {
+				if (executor == null) {
+					reader.run();
+				} else {
+					executor.execute(reader);
+				}
+			} catch (RejectedExecutionException e) {
+				/* the store is stopping */
+				reader.run();
+			}
+			pending.put(id, reader);
+		}
+	}
+	
+	/**
+	 * Wait for sessions to be deserialized and add them to the loaded sessions.
+	 * 
+	 * @param pending Sessions being deserialized, cleared once they are done
+	 * @param sessions Sessions loaded so far
+	 * @throws IOException if interrupted while waiting
+	 */
+	private void collectSessions(Map<String, Future<Session>> pending, Map<String, Session> sessions) throws IOException {
+		for (Map.Entry<String, Future<Session>> entry : pending.entrySet()) {
+			try {
+				Session session = entry.getValue().get();
+				if (session != null) {
+					sessions.put(entry.getKey(), session);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while loading sessions for [" + this.getName() + "]");
+			} catch (ExecutionException e) {
+				this.statistics.recordError(Operation.LOAD);
+				this.manager.getContainer().getLogger().error("Unable to load session [" + entry.getKey() + ":" + this.getName() + "]", e.getCause());
+			}
+		}
+		pending.clear();
+	}
+	
+	/**
+	 * Find a stored session.  When the near cache holds the same version of the 
+	 * session as MongoDB, only the version and the access times of the session 
+	 * are read from MongoDB.
+	 * 
+	 * @param id Session id
+	 * @param sessionQuery Query selecting the stored session
+	 * @return Session document, or null
+	 */
+	private DBObject findSession(String id, DBObject sessionQuery) {
+		if (this.nearCache == null) {
+			return this.collection.findOne(sessionQuery);
+		}
+		
+		/* check the cached copy is still current */
+		DBObject cached = this.nearCache.get(id);
+		if (cached != null) {
+			BasicDBObject fields = new BasicDBObject(versionProperty, 1);
+			fields.put(lastAccessedTimeProperty, 1);
+			fields.put(thisAccessedTimeProperty, 1);
+			DBObject current = this.collection.findOne(sessionQuery, fields);
+			if (current == null) {
+				this.nearCache.remove(id);
+				return null;
+			}
+			if (getLong(current, versionProperty, -1L) == getLong(cached, versionProperty, -2L)) {
+				/* the access times may have been touched since */
+				BasicDBObject mongoSession = new BasicDBObject(cached.toMap());
+				mongoSession.putAll(current);
+				return mongoSession;
+			}
+		}
+		
+		DBObject mongoSession = this.collection.findOne(sessionQuery);
+		if (mongoSession != null) {
+			this.cacheSession(id, mongoSession, getDataSize(mongoSession));
+		} else {
+			this.nearCache.remove(id);
+		}
+		return mongoSession;
+	}
+	
+	/**
+	 * Put a session read from, or written to, MongoDB in the near cache.
+	 * Chunked sessions are not cached, as the document only points to the 
+	 * chunks, and a hit would still have to read all of them.
+	 * 
+	 * @param id Session id
+	 * @param mongoSession Stored session
+	 * @param dataSize Size of the serialized session data, in bytes
+	 */
+	private void cacheSession(String id, DBObject mongoSession, long dataSize) {
+		if (this.nearCache == null) {
+			return;
+		}
+		if (mongoSession.containsField(versionProperty) && !mongoSession.containsField(chunksProperty)) {
+			this.nearCache.put(id, mongoSession, dataSize);
+		} else {
+			this.nearCache.remove(id);
+		}
+	}
+	
+	/**
+	 * Create the version of a session that is about to be saved.  Versions
+	 * increase with time, and are always greater than the version the session
+	 * was loaded with.
+	 * 
+	 * @param session Session
+	 * @return new version
+	 */
+	protected long nextVersion(Session session) {
+		long now = System.currentTimeMillis() * 1000L;
+		long clock;
+		long last;
+		do {
+			last = this.versionClock.get();
+			clock = Math.max(last + 1, now);
+		} while (!this.versionClock.compareAndSet(last, clock));
+		
+		/* another node's clock may be ahead */
+		if (session instanceof MongoSession) {
+			clock = Math.max(clock, (((MongoSession)session).getVersion() >>> 8) + 1);
+		}
+		return (clock << 8) | this.versionNode;
+	}
+	
+	/**
+	 * Estimate the size of the session data in a document.
+	 * 
+	 * @param mongoSession Session document
+	 * @return size, in bytes
+	 */
+	private static long getDataSize(DBObject mongoSession) {
+		long size = 0L;
+		Object data = mongoSession.get(sessionDataProperty);
+		if (data instanceof byte[]) {
+			size += ((byte[])data).length;
+		} else if (mongoSession.get(dataSizeProperty) instanceof Number) {
+			size += ((Number)mongoSession.get(dataSizeProperty)).longValue();
+		}
+		Object attributes = mongoSession.get(sessionAttributesProperty);
+		if (attributes instanceof DBObject) {
+			DBObject attributeData = (DBObject)attributes;
+			for (String field : attributeData.keySet()) {
+				Object value = attributeData.get(field);
+				size += field.length();
+				if (value instanceof byte[]) {
+					size += ((byte[])value).length;
+				} else {
+					size += NativeAttributeCodec.sizeOf(value);
+				}
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void remove(String id) throws IOException {
+		long start = System.nanoTime();
+		
+		/* build up the query, looking for all sessions with this app context property and id */
+		BasicDBObject sessionQuery = new BasicDBObject();
+		Object idValue = this.compactIds ? encodeId(id) : id;
+		if (idValue != id) {
+			/* the session may be stored under either form of its id */
+			BasicDBObject compactQuery = new BasicDBObject();
+			putId(compactQuery, id, idValue);
+			sessionQuery.put("$or", Arrays.asList(compactQuery, new BasicDBObject("_id", id)));
+		} else {
+			sessionQuery.put("_id", id);
+		}
+		sessionQuery.put(appContextProperty, this.getName());
+		
+		/* a queued write would bring the session back */
+		if (this.writeBehindQueue != null) {
+			this.writeBehindQueue.cancel(id);
+		}
+		if (this.nearCache != null) {
+			this.nearCache.remove(id);
+		}
+		if (this.fingerprints != null) {
+			this.fingerprints.remove(id);
+		}
+		
+		/* remove all sessions for this context and id */
+		try {
+			this.collection.remove(sessionQuery);
+			if (this.chunkThreshold > 0) {
+				this.chunks.remove(new BasicDBObject(chunkSessionProperty, new BasicDBObject("$in", Arrays.asList(id, idValue))));
+			}
+		} catch (MongoException e) {
+			this.statistics.recordError(Operation.REMOVE);
+			/* for some reason we couldn't remove the data */
+			this.manager.getContainer().getLogger().fatal(
+					"Unable to remove sessions for [" + id + ":" + this.getName() + "] from MongoDB", e);
+			throw e;
+		} finally {
+			this.statistics.recordLatency(Operation.REMOVE, start);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clear() throws IOException {
+		/* build up the query, looking for all sessions with this app context property */
+		BasicDBObject sessionQuery = new BasicDBObject();
+		sessionQuery.put(appContextProperty, this.getName());
+		
+		/* queued writes would bring the sessions back */
+		if (this.writeBehindQueue != null) {
+			this.writeBehindQueue.cancelAll();
+		}
+		if (this.nearCache != null) {
+			this.nearCache.clear();
+		}
+		if (this.fingerprints != null) {
+			this.fingerprints.clear();
+		}
+		
+		/* remove all sessions for this context */
+		try {
+			this.collection.remove(sessionQuery);
+			if (this.chunkThreshold > 0) {
+				this.chunks.remove(sessionQuery);
+			}
+			this.sizeEstimate = -1;
+		} catch (MongoException e) {
+			/* for some reason we couldn't save the data */
+			this.manager.getContainer().getLogger().fatal("Unable to remove sessions for [" + this.getName() + "] from MongoDB", e);
+			throw e;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void save(Session session) throws IOException {
+		long start = System.nanoTime();
+		boolean saved = false;
+		try {
+			this.saveSession(session);
+			saved = true;
+		} finally {
+			this.statistics.recordLatency(Operation.SAVE, start);
+			if (!saved) {
+				this.statistics.recordError(Operation.SAVE);
+			}
+		}
+	}
+	
+	/**
+	 * Save a session to MongoDB.
+	 * 
+	 * @param session Session to save
+	 * @throws IOException
+	 */
+	private void saveSession(Session session) throws IOException {
+		MongoSession trackedSession = null;
+		if (session instanceof MongoSession) {
+			trackedSession = (MongoSession)session;
+			
+			/* a session that was only accessed just needs its access times updated */
+			if (this.touchUnmodifiedSessions && !trackedSession.isModified() && this.touch(trackedSession)) {
+				return;
+			}
+			
+			/* see if we should store the session attribute by attribute */
+			if (this.storeAttributes) {
+				if (this.fingerprints != null) {
+					this.fingerprints.remove(trackedSession.getIdInternal());
+				}
+				this.saveAttributes(trackedSession);
+				return;
+			}
+		}
+		
+		/* changes made from here on are picked up by the next save */
+		Set<String> changed = null;
+		if (trackedSession != null) {
+			changed = trackedSession.drainDirtyAttributes();
+		}
+		
+		/* we will store the session data as a byte array in Mongo */
+		long serializeStart = System.nanoTime();
+		byte[] data = this.serializer.serialize((StandardSession)session);
+		
+		/* compress the data if it is large enough to be worth it */
+		String compression = null;
+		if (this.isCompressionEnabled() && data.length >= this.compressionThreshold) {
+			byte[] compressed = this.compressor.compress(data);
+			if (compressed.length < data.length) {
+				data = compressed;
+				compression = this.compressor.getName();
+			}
+		}
+		this.statistics.recordLatency(Operation.SERIALIZE, serializeStart);
+		
+		/* sessions over the hard cap are only saved if they are not rejected */
+		if (this.maxDataSize > 0 && data.length > this.maxDataSize) {
+			String message = "Session [" + session.getIdInternal() + ":" + this.getName() + "] has " + data.length 
+					+ " bytes of data, over the maximum of " + this.maxDataSize;
+			if (this.rejectOversizedSessions) {
+				if (trackedSession != null) {
+					trackedSession.markDirty(changed);
+				}
+				this.manager.getContainer().getLogger().error(message + ", not saving it");
+				throw new IOException(message);
+			}
+			this.manager.getContainer().getLogger().warn(message);
+		}
+		
+		/* the stored data may already be the same */
+		long fingerprint = 0L;
+		if (this.fingerprints != null) {
+			fingerprint = FingerprintCache.fingerprint(data);
+			if (this.skipUnchanged(session, fingerprint)) {
+				if (trackedSession != null) {
+					trackedSession.markStored();
+				}
+				this.statistics.recordUnchangedWrite();
+				return;
+			}
+		}
+		
+		/* create the DBObject */
+		Object idValue = this.getIdValue(session);
+		BasicDBObject mongoSession = new BasicDBObject();
+		putId(mongoSession, session.getIdInternal(), idValue);
+		mongoSession.put(appContextProperty, this.getName());
+		mongoSession.put(creationTimeProperty, session.getCreationTime());
+		mongoSession.put(maxInactiveIntervalProperty, session.getMaxInactiveInterval());
+		mongoSession.put(serializerProperty, this.serializer.getName());
+		if (compression != null) {
+			mongoSession.put(compressionProperty, compression);
+		}
+		mongoSession.put(lastModifiedProperty, Calendar.getInstance().getTime());
+		long version = this.nextVersion(session);
+		mongoSession.put(versionProperty, version);
+		Date expireAt = this.getExpireAt(session);
+		if (expireAt != null) {
+			mongoSession.put(expireAtProperty, expireAt);
+		}
+		if (this.fingerprints != null) {
+			mongoSession.put(fingerprintProperty, fingerprint);
+		}
+		
+		/* create our upsert lookup */
+		BasicDBObject sessionQuery = new BasicDBObject();
+		sessionQuery.put("_id", idValue);
+		boolean chunked = this.chunkThreshold > 0 && data.length > this.chunkThreshold;
+		try {
+			if (chunked) {
+				/* the chunks are written first, so the stored session never refers to missing chunks */
+				mongoSession.put(chunksProperty, this.writeChunks(idValue, version, data));
+				mongoSession.put(chunkSizeProperty, this.chunkSize);
+				mongoSession.put(dataSizeProperty, data.length);
+				this.writeChunkedSession(session.getIdInternal(), sessionQuery, mongoSession);
+				this.removeChunks(idValue, version);
+			} else {
+				/* update the object in the collection, inserting if necessary */
+				mongoSession.put(sessionDataProperty, data);
+				this.upsertSession(session.getIdInternal(), sessionQuery, mongoSession);
+			}
+			this.statistics.recordWrite(data.length);
+			if (trackedSession != null) {
+				trackedSession.setVersion(version);
+				trackedSession.markStored();
+			}
+			this.cacheSession(session.getIdInternal(), mongoSession, data.length);
+			if (this.fingerprints != null) {
+				this.fingerprints.put(session.getIdInternal(), fingerprint);
+			}
+		} catch (MongoException e) {
+			if (this.fingerprints != null) {
+				this.fingerprints.remove(session.getIdInternal());
+			}
+			if (trackedSession != null) {
+				trackedSession.markDirty(changed);
+			}
+			/* for some reason we couldn't save the data */
+			this.manager.getContainer().getLogger().fatal("Unable to save session to MongoDB", e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Write the data of a large session as chunks of {@link #chunkSize} bytes.
+	 * 
+	 * @param idValue <em>_id</em> of the session, as stored
+	 * @param version Version of the session the data belongs to
+	 * @param data Session data
+	 * @return Number of chunks written
+	 */
+	private int writeChunks(Object idValue, long version, byte[] data) {
+		Date lastModified = new Date();
+		List<DBObject> chunkList = new ArrayList<DBObject>();
+		for (int offset = 0, n = 0; offset < data.length; offset += this.chunkSize, n++) {
+			BasicDBObject chunk = new BasicDBObject(chunkSessionProperty, idValue);
+			chunk.put(appContextProperty, this.getName());
+			chunk.put(versionProperty, version);
+			chunk.put(chunkIndexProperty, n);
+			chunk.put(lastModifiedProperty, lastModified);
+			chunk.put(sessionDataProperty, Arrays.copyOfRange(data, offset, Math.min(offset + this.chunkSize, data.length)));
+			chunkList.add(chunk);
+		}
+		long start = System.nanoTime();
+		try {
+			this.chunks.insert(chunkList);
+		} finally {
+			this.statistics.recordLatency(Operation.MONGO_WRITE, start);
+		}
+		return chunkList.size();
+	}
+	
+	/**
+	 * Write a session whose data is stored in chunks.  The write is never 
+	 * queued, as the chunks of the previous version are removed right after.
+	 * 
+	 * @param id Session id
+	 * @param sessionQuery Query selecting the stored session
+	 * @param mongoSession Session document
+	 */
+	private void writeChunkedSession(String id, DBObject sessionQuery, DBObject mongoSession) {
+		if (this.writeBehindQueue != null) {
+			this.writeBehindQueue.cancel(id);
+		}
+		long start = System.nanoTime();
+		try {
+			this.collection.update(sessionQuery, mongoSession, true, false);
+		} finally {
+			this.statistics.recordLatency(Operation.MONGO_WRITE, start);
+		}
+	}
+	
+	/**
+	 * Remove the chunks of the earlier versions of a session.
+	 * 
+	 * @param idValue <em>_id</em> of the session, as stored
+	 * @param version Version of the session now stored
+	 */
+	private void removeChunks(Object idValue, long version) {
+		BasicDBObject chunkQuery = new BasicDBObject(chunkSessionProperty, idValue);
+		chunkQuery.put(versionProperty, new BasicDBObject("$lt", version));
+		long start = System.nanoTime();
+		try {
+			this.chunks.remove(chunkQuery);
+		} finally {
+			this.statistics.recordLatency(Operation.MONGO_WRITE, start);
+		}
+	}
+	
+	/**
+	 * Read the data of a session stored in chunks.  The chunks are copied
+	 * into place as they are read, so they are never all held at once.  If 
+	 * the chunks were replaced by a newer save while the session was read, 
+	 * the newer version is read instead.
+	 * 
+	 * @param mongoSession Session document
+	 * @return a copy of the document holding the session data, or null if 
+	 * 	the session is no longer stored
+	 * @throws IOException if chunks are missing
+	 */
+	private DBObject readChunks(DBObject mongoSession) throws IOException {
+		for (int attempt = 0; ; attempt++) {
+			byte[] data = this.readChunkData(mongoSession);
+			if (data != null) {
+				BasicDBObject session = new BasicDBObject(mongoSession.toMap());
+				session.put(sessionDataProperty, data);
+				return session;
+			}
+			
+			/* see if the session was saved again since it was read */
+			Object version = mongoSession.get(versionProperty);
+			mongoSession = this.collection.findOne(new BasicDBObject("_id", mongoSession.get("_id")));
+			if (mongoSession == null) {
+				return null;
+			}
+			if (attempt > 0 || !mongoSession.containsField(chunksProperty) || version.equals(mongoSession.get(versionProperty))) {
+				if (mongoSession.containsField(sessionDataProperty)) {
+					return mongoSession;
+				}
+				throw new IOException("Chunks of session [" + decodeId(mongoSession) + ":" + this.getName() + "] are missing");
+			}
+		}
+	}
+	
+	/**
+	 * Read the chunks of a session into a single array.
+	 * 
+	 * @param mongoSession Session document
+	 * @return Session data, or null if chunks are missing
+	 */
+	private byte[] readChunkData(DBObject mongoSession) {
+		int count = ((Number)mongoSession.get(chunksProperty)).intValue();
+		int size = ((Number)mongoSession.get(chunkSizeProperty)).intValue();
+		byte[] data = new byte[((Number)mongoSession.get(dataSizeProperty)).intValue()];
+		
+		BasicDBObject chunkQuery = new BasicDBObject(chunkSessionProperty, mongoSession.get("_id"));
+		chunkQuery.put(versionProperty, mongoSession.get(versionProperty));
+		BasicDBObject fields = new BasicDBObject(chunkIndexProperty, 1);
+		fields.put(sessionDataProperty, 1);
+		int found = 0;
+		DBCursor cursor = this.chunks.find(chunkQuery, fields);
+		try {
+			while (cursor.hasNext()) {
+				DBObject chunk = cursor.next();
+				int offset = ((Number)chunk.get(chunkIndexProperty)).intValue() * size;
+				byte[] chunkData = (byte[])chunk.get(sessionDataProperty);
+				if (offset < 0 || offset + chunkData.length > data.length) {
+					return null;
+				}
+				System.arraycopy(chunkData, 0, data, offset, chunkData.length);
+				found++;
+			}
+		} finally {
+			cursor.close();
+		}
+		return found == count ? data : null;
+	}
+	
+	/**
+	 * Remove the chunks no stored session refers to, which were left behind
+	 * by sessions that expired, were saved again without chunks, or whose 
+	 * save failed.
+	 * 
+	 * @param timeNow Current time
+	 * @return Number of chunk sets removed
+	 */
+	private int removeOrphanedChunks(long timeNow) {
+		BasicDBObject chunkQuery = new BasicDBObject(appContextProperty, this.getName());
+		chunkQuery.put(chunkIndexProperty, 0);
+		chunkQuery.put(lastModifiedProperty, new BasicDBObject("$lt", new Date(timeNow - ORPHANED_CHUNK_AGE_MS)));
+		BasicDBObject fields = new BasicDBObject(chunkSessionProperty, 1);
+		fields.put(versionProperty, 1);
+		
+		int removed = 0;
+		List<DBObject> batch = new ArrayList<DBObject>();
+		DBCursor cursor = this.chunks.find(chunkQuery, fields).batchSize(this.expireBatchSize);
+		try {
+			while (cursor.hasNext()) {
+				batch.add(cursor.next());
+				if (batch.size() >= this.expireBatchSize || !cursor.hasNext()) {
+					removed += this.removeOrphanedChunks(batch);
+					batch.clear();
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		return removed;
+	}
+	
+	/**
+	 * Remove the chunks of a batch of chunk sets whose session is gone or 
+	 * has another version.
+	 * 
+	 * @param firstChunks First chunk of each chunk set
+	 * @return Number of chunk sets removed
+	 */
+	private int removeOrphanedChunks(List<DBObject> firstChunks) {
+		List<Object> idValues = new ArrayList<Object>();
+		for (DBObject chunk : firstChunks) {
+			idValues.add(chunk.get(chunkSessionProperty));
+		}
+		Map<Object, Object> versions = new HashMap<Object, Object>();
+		DBCursor cursor = this.collection.find(new BasicDBObject("_id", new BasicDBObject("$in", idValues)), 
+				new BasicDBObject(versionProperty, 1));
+		try {
+			while (cursor.hasNext()) {
+				DBObject stored = cursor.next();
+				versions.put(chunkKey(stored.get("_id")), stored.get(versionProperty));
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		int removed = 0;
+		for (DBObject chunk : firstChunks) {
+			Object version = chunk.get(versionProperty);
+			if (!version.equals(versions.get(chunkKey(chunk.get(chunkSessionProperty))))) {
+				BasicDBObject orphanQuery = new BasicDBObject(chunkSessionProperty, chunk.get(chunkSessionProperty));
+				orphanQuery.put(versionProperty, version);
+				this.chunks.remove(orphanQuery);
+				removed++;
+			}
+		}
+		return removed;
+	}
+	
+	/**
+	 * @param idValue <em>_id</em> of a session, as stored
+	 * @return the id as a map key, comparing binary ids by content
+	 */
+	private static Object chunkKey(Object idValue) {
+		return idValue instanceof byte[] ? ByteBuffer.wrap((byte[])idValue) : idValue;
+	}
+
+	/**
+	 * Check if the serialized data of a session is the one already stored.
+	 * The cache only says which data this store last saw, so the stored 
+	 * copy is refreshed with an update that only matches a document that
+	 * still has the same fingerprint.  A session another node has rewritten,
+	 * or that was removed, is written in full.
+	 * 
+	 * @param session Session being saved
+	 * @param fingerprint Fingerprint of the serialized data
+	 * @return true if the data is stored, false if it must be written
+	 */
+	private boolean skipUnchanged(Session session, long fingerprint) {
+		String id = session.getIdInternal();
+		if (!this.fingerprints.contains(id, fingerprint)) {
+			return false;
+		}
+		
+		/* an unacknowledged update could not tell if the stored copy is still there */
+		if (!this.writeConcern.callGetLastError()) {
+			return false;
+		}
+		
+		/* a queued write of the session has to be replaced, not refreshed */
+		if (this.writeBehindQueue != null && this.writeBehindQueue.isPending(id)) {
+			return false;
+		}
+		
+		Date expireAt = this.getExpireAt(session);
+		BasicDBObject set = new BasicDBObject(lastModifiedProperty, new Date());
+		BasicDBObject expiryUpdate = new BasicDBObject("$set", set);
+		if (expireAt != null) {
+			set.put(expireAtProperty, expireAt);
+		} else {
+			expiryUpdate.put("$unset", new BasicDBObject(expireAtProperty, 1));
+		}
+		
+		BasicDBObject sessionQuery = new BasicDBObject();
+		putId(sessionQuery, id, this.getIdValue(session));
+		sessionQuery.put(appContextProperty, this.getName());
+		sessionQuery.put(fingerprintProperty, fingerprint);
+		
+		long writeStart = System.nanoTime();
+		try {
+			WriteResult result = this.collection.update(sessionQuery, expiryUpdate, false, false);
+			if (result.getN() == 0) {
+				/* the stored data changed, or is gone */
+				this.fingerprints.remove(id);
+				return false;
+			}
+		} catch (MongoException e) {
+			this.manager.getContainer().getLogger().fatal("Unable to refresh session expiry in MongoDB", e);
+			throw e;
+		} finally {
+			this.statistics.recordLatency(Operation.MONGO_WRITE, writeStart);
+		}
+		return true;
+	}
+	
+	/**
+	 * Remember the fingerprint of a session read from MongoDB, if it was 
+	 * stored with one.
+	 * 
+	 * @param id Session id
+	 * @param mongoSession Stored session
+	 */
+	private void rememberFingerprint(String id, DBObject mongoSession) {
+		if (this.fingerprints == null) {
+			return;
+		}
+		Object fingerprint = mongoSession.get(fingerprintProperty);
+		if (fingerprint instanceof Long && (mongoSession.containsField(sessionDataProperty) || mongoSession.containsField(chunksProperty))) {
+			this.fingerprints.put(id, (Long)fingerprint);
+		} else {
+			this.fingerprints.remove(id);
+		}
+	}
+
+	/**
+	 * Update the access times of a stored session that was accessed, but not
+	 * modified, since it was last saved.  Touches are throttled, so a session 
+	 * is touched at most once every {@link #touchThrottleSeconds}.
+	 * 
+	 * @param session Session to touch
+	 * @return true if the session was handled, false if it must be saved in full
+	 */
+	protected boolean touch(MongoSession session) {
+		/* nothing to do if the stored copy is current */
+		if (!session.isAccessedSinceStored()) {
+			return true;
+		}
+		long timeNow = System.currentTimeMillis();
+		if (timeNow - session.getStoredTime() < this.touchThrottleSeconds * 1000L) {
+			return true;
+		}
+		
+		BasicDBObject set = new BasicDBObject();
+		set.put(lastModifiedProperty, new Date(timeNow));
+		set.put(lastAccessedTimeProperty, session.getLastAccessedTimeInternal());
+		set.put(thisAccessedTimeProperty, session.getThisAccessedTimeInternal());
+		
+		/* the access pushes back the expiry date */
+		BasicDBObject touchUpdate = new BasicDBObject("$set", set);
+		Date expireAt = this.getExpireAt(session);
+		if (expireAt != null) {
+			set.put(expireAtProperty, expireAt);
+		} else {
+			touchUpdate.put("$unset", new BasicDBObject(expireAtProperty, 1));
+		}
+		
+		BasicDBObject sessionQuery = new BasicDBObject();
+		putId(sessionQuery, session.getIdInternal(), this.getIdValue(session));
+		sessionQuery.put(appContextProperty, this.getName());
+		
+		/* 
+		 * a pending write of the whole session must not be replaced, and 
+		 * touches are never queued, as a queued touch could not tell if the
+		 * stored copy is gone
+		 */
+		if (this.writeBehindQueue != null && this.writeBehindQueue.isPending(session.getIdInternal())) {
+			return false;
+		}
+		
+		long writeStart = System.nanoTime();
+		try {
+			WriteResult result = this.collection.update(sessionQuery, touchUpdate, false, false);
+			if (this.writeConcern.callGetLastError() && result.getN() == 0) {
+				/* the stored copy is gone */
+				return false;
+			}
+		} catch (MongoException e) {
+			this.manager.getContainer().getLogger().fatal("Unable to touch session in MongoDB", e);
+			throw e;
+		} finally {
+			this.statistics.recordLatency(Operation.MONGO_WRITE, writeStart);
+		}
+		session.markTouched();
+		return true;
+	}
+	
+	/**
+	 * Save a session with each attribute stored as its own field.  If the
+	 * session is already stored this way, only the attributes that changed
+	 * since the last save are written, along with the session properties.
+	 * 
+	 * @param session Session to save
+	 * @throws IOException if an attribute could not be serialized
+	 */
+	protected void saveAttributes(MongoSession session) throws IOException {
+		/* grab the changes, they are put back if the save fails */
+		Set<String> changed = session.drainDirtyAttributes();
+		long version = this.nextVersion(session);
+		try {
+			/* queued writes always hold the whole session, as a queued partial 
+			 * update could not fall back to a full write 
+			 */
+			if (session.isAttributesStored() && this.writeBehindQueue == null && this.updateAttributes(session, changed, version)) {
+				session.setVersion(version);
+				session.markStored();
+				
+				/* the cached copy no longer matches the stored session */
+				if (this.nearCache != null) {
+					this.nearCache.remove(session.getIdInternal());
+				}
+				return;
+			}
+			
+			/* write the whole session */
+			Object idValue = this.getIdValue(session);
+			BasicDBObject mongoSession = this.getSessionProperties(session, version);
+			putId(mongoSession, session.getIdInternal(), idValue);
+			
+			long serializeStart = System.nanoTime();
+			BasicDBObject attributes = new BasicDBObject();
+			for (String name : session.getAttributeNamesInternal()) {
+				Object value = session.peekAttribute(name);
+				if (session.isAttributeStorable(name, value)) {
+					Object data = this.encodeAttribute(session, name, value);
+					if (data != null) {
+						attributes.put(encodeAttributeName(name), data);
+					}
+				}
+			}
+			mongoSession.put(sessionAttributesProperty, attributes);
+			mongoSession.put(serializerProperty, this.serializer.getName());
+			this.statistics.recordLatency(Operation.SERIALIZE, serializeStart);
+			
+			this.upsertSession(session.getIdInternal(), new BasicDBObject("_id", idValue), mongoSession);
+			this.statistics.recordWrite(getDataSize(mongoSession));
+			session.setAttributesStored(true);
+			session.setVersion(version);
+			session.markStored();
+			if (this.nearCache != null) {
+				this.nearCache.put(session.getIdInternal(), mongoSession, getDataSize(mongoSession));
+			}
+		} catch (MongoException e) {
+			session.markDirty(changed);
+			this.manager.getContainer().getLogger().fatal("Unable to save session to MongoDB", e);
+			throw e;
+		} catch (IOException e) {
+			session.markDirty(changed);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Write a whole session document, inserting it if necessary.  When 
+	 * {@link #writeBehind} is enabled the write is queued, unless the queue
+	 * is full.
+	 * 
+	 * @param id Session id
+	 * @param sessionQuery Query selecting the stored session
+	 * @param mongoSession Session document
+	 */
+	private void upsertSession(String id, DBObject sessionQuery, DBObject mongoSession) {
+		if (this.writeBehindQueue == null || !this.writeBehindQueue.offer(id, sessionQuery, mongoSession, true)) {
+			long start = System.nanoTime();
+			try {
+				this.collection.update(sessionQuery, mongoSession, true, false);
+			} finally {
+				this.statistics.recordLatency(Operation.MONGO_WRITE, start);
+			}
+		}
+	}
+	
+	/**
+	 * Write the changed attributes of a session that is already stored
+	 * attribute by attribute.
+	 * 
+	 * @param session Session to save
+	 * @param changed Names of the changed attributes
+	 * @param version New version of the session
+	 * @return true if the session was updated, false if the stored session
+	 * 	could not be found and must be written in full
+	 * @throws IOException if an attribute could not be serialized
+	 */
+	private boolean updateAttributes(MongoSession session, Set<String> changed, long version) throws IOException {
+		BasicDBObject set = this.getSessionProperties(session, version);
+		BasicDBObject unset = new BasicDBObject();
+		if (!set.containsField(expireAtProperty)) {
+			unset.put(expireAtProperty, 1);
+		}
+		if (!set.containsField(activationListenersProperty)) {
+			unset.put(activationListenersProperty, 1);
+		}
+		long serializeStart = System.nanoTime();
+		long bytes = 0L;
+		for (String name : changed) {
+			String field = sessionAttributesProperty + "." + encodeAttributeName(name);
+			Object value = session.peekAttribute(name);
+			Object data = null;
+			if (session.isAttributeStorable(name, value)) {
+				data = this.encodeAttribute(session, name, value);
+			}
+			if (data != null) {
+				set.put(field, data);
+				bytes += data instanceof byte[] ? ((byte[])data).length : NativeAttributeCodec.sizeOf(data);
+			} else {
+				unset.put(field, 1);
+			}
+		}
+		this.statistics.recordLatency(Operation.SERIALIZE, serializeStart);
+		
+		BasicDBObject update = new BasicDBObject("$set", set);
+		if (!unset.isEmpty()) {
+			update.put("$unset", unset);
+		}
+		
+		/* don't upsert, a partial session is worse than a full rewrite */
+		BasicDBObject sessionQuery = new BasicDBObject();
+		putId(sessionQuery, session.getIdInternal(), this.getIdValue(session));
+		long writeStart = System.nanoTime();
+		WriteResult result;
+		try {
+			result = this.collection.update(sessionQuery, update, false, false);
+		} finally {
+			this.statistics.recordLatency(Operation.MONGO_WRITE, writeStart);
+		}
+		this.statistics.recordWrite(bytes);
+		return !this.writeConcern.callGetLastError() || result.getN() > 0;
+	}
+	
+	/**
+	 * Build the session properties stored alongside the attributes.
+	 * 
+	 * @param session Session
+	 * @param version New version of the session
+	 * @return {@link BasicDBObject} with the session properties
+	 */
+	private BasicDBObject getSessionProperties(MongoSession session, long version) {
+		BasicDBObject properties = new BasicDBObject();
+		properties.put(appContextProperty, this.getName());
+		properties.put(creationTimeProperty, session.getCreationTimeInternal());
+		properties.put(lastAccessedTimeProperty, session.getLastAccessedTimeInternal());
+		properties.put(thisAccessedTimeProperty, session.getThisAccessedTimeInternal());
+		properties.put(maxInactiveIntervalProperty, session.getMaxInactiveInterval());
+		properties.put(isNewProperty, session.isNewInternal());
+		properties.put(isValidProperty, session.isValidInternal());
+		properties.put(lastModifiedProperty, Calendar.getInstance().getTime());
+		properties.put(versionProperty, version);
+		Date expireAt = this.getExpireAt(session);
+		if (expireAt != null) {
+			properties.put(expireAtProperty, expireAt);
+		}
+		
+		/* a lazy load must deserialize these right away, so they can be activated */
+		if (this.lazyAttributes) {
+			BasicDBList activationListeners = new BasicDBList();
+			for (String name : session.getAttributeNamesInternal()) {
+				if (session.peekAttribute(name) instanceof HttpSessionActivationListener) {
+					activationListeners.add(name);
+				}
+			}
+			properties.put(activationListenersProperty, activationListeners);
+		}
+		return properties;
+	}
+	
+	/**
+	 * Determine when the stored copy of a session expires and can be removed
+	 * by the time to live index.  Unless {@link #timeToLive} is set, this is 
+	 * the session's own max inactive interval after it was last accessed.
+	 * 
+	 * @param session Session
+	 * @return expiry date, or null if the session never expires
+	 */
+	protected Date getExpireAt(Session session) {
+		if (this.timeToLive != -1) {
+			return new Date(System.currentTimeMillis() + (this.timeToLive * 1000L));
+		}
+		int maxInactiveInterval = session.getMaxInactiveInterval();
+		if (maxInactiveInterval < 0) {
+			return null;
+		}
+		long lastAccessed = System.currentTimeMillis();
+		if (session instanceof StandardSession) {
+			lastAccessed = ((StandardSession)session).getThisAccessedTimeInternal();
+		}
+		return new Date(lastAccessed + (maxInactiveInterval * 1000L));
+	}
+	
+	/**
+	 * Encode a single attribute value, from the bytes it was loaded with if
+	 * it is a {@link LazyAttribute}, as a native BSON value when
+	 * {@link #nativeAttributes} is enabled and the value is of a native type,
+	 * otherwise with the serializer.
+	 * 
+	 * @param session Session that owns the attribute
+	 * @param name Attribute name
+	 * @param value Attribute value
+	 * @return native value, serialized value, or null if the value could not be serialized
+	 * @throws IOException
+	 */
+	private Object encodeAttribute(Session session, String name, Object value) throws IOException {
+		if (value instanceof LazyAttribute) {
+			/* never read since it was loaded, so it has not changed */
+			return ((LazyAttribute)value).getData();
+		}
+		if (this.nativeAttributes && NativeAttributeCodec.isNative(value)) {
+			return NativeAttributeCodec.encode(value);
+		}
+		return this.serializeAttribute(session, name, value);
+	}
+	
+	/**
+	 * Serialize a single attribute value.
+	 * 
+	 * @param session Session that owns the attribute
+	 * @param name Attribute name
+	 * @param value Attribute value
+	 * @return serialized value, or null if the value could not be serialized
+	 * @throws IOException
+	 */
+	private byte[] serializeAttribute(Session session, String name, Object value) throws IOException {
+		try {
+			return this.serializer.serializeAttribute(value);
+		} catch (NotSerializableException e) {
+			/* same as StandardSession, skip the attribute */
+			this.manager.getContainer().getLogger().warn("Cannot serialize session attribute [" + name 
+					+ "] for session [" + session.getIdInternal() + "]", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Rebuild a session that was stored attribute by attribute.
+	 * 
+	 * @param mongoSession Session document
+	 * @return Session
+	 * @throws ClassNotFoundException
+	 * @throws IOException
+	 */
+	private StandardSession loadAttributes(DBObject mongoSession) throws ClassNotFoundException, IOException {
+		Session emptySession = this.manager.createEmptySession();
+		if (!(emptySession instanceof MongoSession)) {
+			throw new IOException("Sessions stored by attribute require the " + MongoPersistentManager.class.getName());
+		}
+		MongoSession session = (MongoSession)emptySession;
+		
+		/* restore the session properties */
+		long creationTime = ((Number)mongoSession.get(creationTimeProperty)).longValue();
+		session.restore(decodeId(mongoSession), 
+				creationTime, 
+				getLong(mongoSession, lastAccessedTimeProperty, creationTime), 
+				getLong(mongoSession, thisAccessedTimeProperty, creationTime),
+				((Number)mongoSession.get(maxInactiveIntervalProperty)).intValue(),
+				Boolean.TRUE.equals(mongoSession.get(isNewProperty)), 
+				!Boolean.FALSE.equals(mongoSession.get(isValidProperty)));
+		
+		/* find the serializer that wrote the attributes */
+		SessionSerializer sessionSerializer = this.getSerializer((String)mongoSession.get(serializerProperty));
+		
+		/* attributes are only kept serialized if they can be written back as they are,
+		 * and the session records which ones must be activated
+		 */
+		Collection<?> activationListeners = null;
+		if (this.lazyAttributes && sessionSerializer == this.serializer 
+				&& mongoSession.get(activationListenersProperty) instanceof Collection) {
+			activationListeners = (Collection<?>)mongoSession.get(activationListenersProperty);
+		}
+		
+		/* read the attributes using the application's class loader */
+		ClassLoader managerContextLoader = Thread.currentThread().getContextClassLoader();
+		ClassLoader appContextLoader = this.getAppContextLoader();
+		long deserializeStart = System.nanoTime();
+		try {
+			if (appContextLoader != null) {
+				Thread.currentThread().setContextClassLoader(appContextLoader);
+			}
+			DBObject attributes = (DBObject)mongoSession.get(sessionAttributesProperty);
+			for (String field : attributes.keySet()) {
+				String name = decodeAttributeName(field);
+				Object data = attributes.get(field);
+				Object value;
+				if (!(data instanceof byte[])) {
+					value = NativeAttributeCodec.decode(data);
+				} else if (activationListeners != null && !activationListeners.contains(name)) {
+					value = new LazyAttribute((byte[])data, sessionSerializer, appContextLoader);
+				} else {
+					value = sessionSerializer.deserializeAttribute((byte[])data, appContextLoader);
+				}
+				session.restoreAttribute(name, value);
+			}
+		} finally {
+			/* restore the class loader */
+			Thread.currentThread().setContextClassLoader(managerContextLoader);
+			this.statistics.recordLatency(Operation.DESERIALIZE, deserializeStart);
+		}
+		
+		session.setManager(this.manager);
+		session.markStored();
+		
+		/* attributes written by another serializer are rewritten on the next save */
+		session.setAttributesStored(sessionSerializer == this.serializer);
+		return session;
+	}
+	
+	/**
+	 * Decompress session data.
+	 * 
+	 * @param compression Name of the algorithm stored with the session
+	 * @param data Compressed data
+	 * @return decompressed data
+	 * @throws IOException if the algorithm is unknown or the data is corrupt
+	 */
+	private byte[] decompress(String compression, byte[] data) throws IOException {
+		if (!SessionCompressor.DEFLATE.equals(compression)) {
+			throw new IOException("Unknown session compression [" + compression + "]");
+		}
+		return this.compressor.decompress(data);
+	}
+	
+	/**
+	 * Determine if session data should be compressed when it is saved.
+	 * 
+	 * @return true if compression is enabled
+	 */
+	private boolean isCompressionEnabled() {
+		return SessionCompressor.DEFLATE.equals(this.compression);
+	}
+	
+	/**
+	 * Retrieve the serializer used to write a session.
+	 * 
+	 * @param name Name of the serializer stored with the session, may be null
+	 * @return {@link SessionSerializer}
+	 * @throws IOException if the serializer is unknown
+	 */
+	protected SessionSerializer getSerializer(String name) throws IOException {
+		/* sessions stored without a serializer name were written with java serialization */
+		if (name == null) {
+			name = JavaSessionSerializer.NAME;
+		}
+		
+		SessionSerializer sessionSerializer = this.serializers.get(name);
+		if (sessionSerializer == null) {
+			String className = builtInSerializers.get(name);
+			if (className == null) {
+				throw new IOException("Unknown session serializer [" + name + "]");
+			}
+			try {
+				sessionSerializer = this.createSerializer(className);
+			} catch (Exception e) {
+				throw new IOException("Unable to create session serializer [" + name + "]", e);
+			}
+			SessionSerializer existing = this.serializers.putIfAbsent(name, sessionSerializer);
+			if (existing != null) {
+				sessionSerializer = existing;
+			}
+		}
+		return sessionSerializer;
+	}
+	
+	/**
+	 * Create a serializer and register the configured classes with it.
+	 * 
+	 * @param className Serializer class name
+	 * @return {@link SessionSerializer}
+	 * @throws Exception if the serializer or the registered classes cannot be loaded
+	 */
+	private SessionSerializer createSerializer(String className) throws Exception {
+		SessionSerializer sessionSerializer = (SessionSerializer)Class.forName(className).getDeclaredConstructor().newInstance();
+		
+		/* registered classes come from the application */
+		List<Class<?>> classes = new ArrayList<Class<?>>();
+		if (this.registeredClasses != null) {
+			ClassLoader classLoader = this.getAppContextLoader();
+			if (classLoader == null) {
+				classLoader = this.getClass().getClassLoader();
+			}
+			for (String registeredClass : this.registeredClasses.split(",")) {
+				if (registeredClass.trim().length() > 0) {
+					classes.add(Class.forName(registeredClass.trim(), false, classLoader));
+				}
+			}
+		}
+		sessionSerializer.registerClasses(classes);
+		return sessionSerializer;
+	}
+	
+	/**
+	 * Retrieve the class loader of the application, if there is one.
+	 * 
+	 * @return application class loader, or null
+	 */
+	private ClassLoader getAppContextLoader() {
+		Container container = this.manager.getContainer();
+		if (container != null && container.getLoader() != null) {
+			return container.getLoader().getClassLoader();
+		}
+		return null;
+	}
+	
+	/**
+	 * Read a numeric property from a document.
+	 * 
+	 * @param mongoSession Document
+	 * @param property Property name
+	 * @param defaultValue Value to use if the property is missing
+	 * @return property value
+	 */
+	private static long getLong(DBObject mongoSession, String property, long defaultValue) {
+		Object value = mongoSession.get(property);
+		if (value instanceof Number) {
+			return ((Number)value).longValue();
+		}
+		return defaultValue;
+	}
+	
+	/**
+	 * Determine the <em>_id</em> a session is stored under.
+	 * 
+	 * @param session Session
+	 * @return compact id when {@link #compactIds} is enabled, unless the session
+	 * 	was loaded with a string id, otherwise the session id
+	 */
+	protected Object getIdValue(Session session) {
+		if (!this.compactIds || (session instanceof MongoSession && ((MongoSession)session).isStringId())) {
+			return session.getIdInternal();
+		}
+		return encodeId(session.getIdInternal());
+	}
+	
+	/**
+	 * Encode the part of a session id before the <em>jvmRoute</em> as bytes.
+	 * 
+	 * @param id Session id
+	 * @return bytes of the hex digits of the id, or the id itself if it is not
+	 * 	an even number of upper case hex digits
+	 */
+	protected static Object encodeId(String id) {
+		int end = id.indexOf('.');
+		if (end == -1) {
+			end = id.length();
+		}
+		if (end == 0 || end % 2 != 0) {
+			return id;
+		}
+		byte[] bytes = new byte[end / 2];
+		for (int i = 0; i < end; i += 2) {
+			int high = hexValue(id.charAt(i));
+			int low = hexValue(id.charAt(i + 1));
+			if (high < 0 || low < 0) {
+				return id;
+			}
+			bytes[i / 2] = (byte)((high << 4) | low);
+		}
+		return bytes;
+	}
+	
+	/**
+	 * @param c Character
+	 * @return value of an upper case hex digit, or -1
+	 */
+	private static int hexValue(char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Decode the session id of a stored session.
+	 * 
+	 * @param mongoSession Session document, holding at least the <em>_id</em> 
+	 * 	and the route
+	 * @return Session id
+	 */
+	protected static String decodeId(DBObject mongoSession) {
+		Object idValue = mongoSession.get("_id");
+		if (!(idValue instanceof byte[])) {
+			return idValue.toString();
+		}
+		byte[] bytes = (byte[])idValue;
+		StringBuilder id = new StringBuilder(bytes.length * 2 + 16);
+		for (byte b : bytes) {
+			id.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+		}
+		Object route = mongoSession.get(routeProperty);
+		if (route != null) {
+			id.append('.').append(route);
+		}
+		return id.toString();
+	}
+	
+	/**
+	 * Put the <em>_id</em> of a session in a query or document, along with its
+	 * route when the id is compact.
+	 * 
+	 * @param mongoSession Query or document
+	 * @param id Session id
+	 * @param idValue <em>_id</em> the session is stored under
+	 */
+	private static void putId(BasicDBObject mongoSession, String id, Object idValue) {
+		mongoSession.put("_id", idValue);
+		if (idValue instanceof byte[]) {
+			int route = id.indexOf('.');
+			mongoSession.put(routeProperty, route == -1 ? null : id.substring(route + 1));
+		}
+	}
+	
+	/**
+	 * Encode an attribute name so that it can be used as a MongoDB field
+	 * name, which cannot contain '.' or start with '$'.
+	 * 
+	 * @param name Attribute name
+	 * @return field name
+	 */
+	protected static String encodeAttributeName(String name) {
+		StringBuilder field = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			switch (c) {
+				case '%':
+					field.append("%25");
+					break;
+				case '.':
+					field.append("%2E");
+					break;
+				case '$':
+					field.append("%24");
+					break;
+				case '\0':
+					field.append("%00");
+					break;
+				default:
+					field.append(c);
+			}
+		}
+		return field.toString();
+	}
+	
+	/**
+	 * Decode a field name created by {@link #encodeAttributeName(String)}.
+	 * 
+	 * @param field Field name
+	 * @return attribute name
+	 */
+	protected static String decodeAttributeName(String field) {
+		if (field.indexOf('%') == -1) {
+			return field;
+		}
+		StringBuilder name = new StringBuilder(field.length());
+		for (int i = 0; i < field.length(); i++) {
+			char c = field.charAt(i);
+			if (c == '%' && i + 2 < field.length()) {
+				name.append((char)Integer.parseInt(field.substring(i + 1, i + 3), 16));
+				i += 2;
+			} else {
+				name.append(c);
+			}
+		}
+		return name.toString();
+	}
+
+	/**
+	 * Remove the sessions for this context that have outlived their max inactive
+	 * interval.  Sessions are saved with an expiry date that MongoDB's time to live
+	 * monitor removes on its own, so nothing needs to be done here unless there are
+	 * listeners that need to be notified.  In that case the expired sessions are
+	 * selected with a projected query, loaded, expired and removed in batches.
+	 * <p>
+	 * Sessions saved without an expiry date, by an older version of this store, 
+	 * are selected using the manager's max inactive interval and their last modified
+	 * date.  A session with a shorter interval of its own is purged on the manager's 
+	 * schedule.  Such sessions are still rejected as invalid when swapped in.
+	 * </p>
+	 */
+	@Override
+	public void processExpires() {
+		/* make sure we are running */
+		if (!getState().isAvailable()) {
+			return;
+		}
+		
+		long timeNow = System.currentTimeMillis();
+		
+		/* determine if we need to load the sessions to expire them */
+		boolean notify = this.loadExpiredSessions || this.hasSessionListeners();
+		
+		int expired = 0;
+		try {
+			/* get to expired sessions before the time to live monitor does */
+			if (notify) {
+				BasicDBObject expiredQuery = new BasicDBObject();
+				expiredQuery.put(appContextProperty, this.getName());
+				expiredQuery.put(expireAtProperty, new BasicDBObject("$lt", new Date(timeNow)));
+				expired += this.removeExpired(expiredQuery, notify, -1, timeNow);
+			}
+			
+			/* sessions which never expire are left to the time to live index */
+			int defaultMaxInactiveInterval = this.manager.getMaxInactiveInterval();
+			if (defaultMaxInactiveInterval >= 0) {
+				/* look for sessions without an expiry date that have not been modified since the cutoff */
+				BasicDBObject legacyQuery = new BasicDBObject();
+				legacyQuery.put(appContextProperty, this.getName());
+				legacyQuery.put(lastModifiedProperty, new BasicDBObject("$lt", new Date(timeNow - (defaultMaxInactiveInterval * 1000L))));
+				legacyQuery.put(expireAtProperty, new BasicDBObject("$exists", false));
+				expired += this.removeExpired(legacyQuery, notify, defaultMaxInactiveInterval, timeNow);
+			}
+			
+			/* chunks of sessions removed by the time to live monitor are left behind */
+			if (this.chunkThreshold > 0) {
+				int orphans = this.removeOrphanedChunks(timeNow);
+				if (orphans > 0 && this.manager.getContainer().getLogger().isDebugEnabled()) {
+					this.manager.getContainer().getLogger().debug(getStoreName() + "[" + this.getName() + "]: Removed chunks of " 
+							+ orphans + " sessions");
+				}
+			}
+		} catch (MongoException e) {
+			this.manager.getContainer().getLogger().error("Unable to remove expired sessions for [" + this.getName() + "] from MongoDB", e);
+			return;
+		}
+		
+		if (this.manager.getContainer().getLogger().isDebugEnabled()) {
+			this.manager.getContainer().getLogger().debug(getStoreName() + "[" + this.getName() + "]: Removed " + expired 
+					+ " expired sessions in " + (System.currentTimeMillis() - timeNow) + "ms");
+		}
+	}
+	
+	/**
+	 * Remove the sessions selected by a query, a batch at a time.
+	 * 
+	 * @param expiredQuery Query selecting the expired sessions
+	 * @param notify true if the sessions must be loaded and expired before they are removed
+	 * @param defaultMaxInactiveInterval Interval used to check the last modified date of
+	 * 	sessions without their own max inactive interval, or -1 if the query is exact
+	 * @param timeNow Current time
+	 * @return Number of sessions removed
+	 */
+	private int removeExpired(BasicDBObject expiredQuery, boolean notify, int defaultMaxInactiveInterval, long timeNow) {
+		/* we only need enough of the document to determine if it has expired */
+		BasicDBObject fields = new BasicDBObject("_id", 1);
+		fields.put(routeProperty, 1);
+		fields.put(lastModifiedProperty, 1);
+		fields.put(maxInactiveIntervalProperty, 1);
+		
+		List<String> expiredIds = new ArrayList<String>();
+		List<Object> expiredIdValues = new ArrayList<Object>();
+		int expired = 0;
+		DBCursor candidates = this.collection.find(expiredQuery, fields).batchSize(this.expireBatchSize);
+		try {
+			while (candidates.hasNext()) {
+				DBObject candidate = candidates.next();
+				
+				/* sessions may carry their own max inactive interval */
+				if (defaultMaxInactiveInterval >= 0) {
+					int maxInactiveInterval = defaultMaxInactiveInterval;
+					Object interval = candidate.get(maxInactiveIntervalProperty);
+					if (interval instanceof Number) {
+						maxInactiveInterval = ((Number)interval).intValue();
+					}
+					if (maxInactiveInterval < 0) {
+						continue;
+					}
+					Date lastModified = (Date)candidate.get(lastModifiedProperty);
+					if (lastModified != null && lastModified.getTime() + (maxInactiveInterval * 1000L) > timeNow) {
+						continue;
+					}
+				}
+				
+				String id = decodeId(candidate);
+				if (notify) {
+					this.expireSession(id);
+				}
+				expiredIds.add(id);
+				expiredIdValues.add(candidate.get("_id"));
+				
+				/* remove a batch at a time */
+				if (expiredIds.size() >= this.expireBatchSize) {
+					expired += this.removeExpired(expiredIds, expiredIdValues, expiredQuery);
+					expiredIds.clear();
+					expiredIdValues.clear();
+				}
+			}
+		} finally {
+			candidates.close();
+		}
+		
+		/* remove whatever is left over */
+		if (!expiredIds.isEmpty()) {
+			expired += this.removeExpired(expiredIds, expiredIdValues, expiredQuery);
+		}
+		return expired;
+	}
+	
+	/**
+	 * Load an expired session and expire it, so any listeners are notified.
+	 * Sessions that are active in the manager are left alone, only their
+	 * stored copy is removed.
+	 * 
+	 * @param id Session id
+	 */
+	protected void expireSession(String id) {
+		/* the active copy of the session will expire on its own */
+		if (this.manager instanceof PersistentManagerBase && ((PersistentManagerBase)this.manager).isLoaded(id)) {
+			return;
+		}
+		
+		try {
+			Session session = this.load(id);
+			if (session != null) {
+				session.expire();
+			}
+		} catch (Exception e) {
+			this.manager.getContainer().getLogger().error("Unable to expire session [" + id + ":" + this.getName() + "]", e);
+		}
+	}
+	
+	/**
+	 * Remove a batch of expired sessions.  Only sessions that still match the
+	 * query used to select them are removed, so a session saved after it was 
+	 * selected is left in place.
+	 * 
+	 * @param ids Session ids to remove
+	 * @param idValues <em>_id</em> values of the sessions, as stored
+	 * @param expiredQuery Query used to select the sessions
+	 * @return Number of sessions removed
+	 */
+	private int removeExpired(List<String> ids, List<Object> idValues, BasicDBObject expiredQuery) {
+		if (this.nearCache != null) {
+			for (String id : ids) {
+				this.nearCache.remove(id);
+			}
+		}
+		if (this.fingerprints != null) {
+			for (String id : ids) {
+				this.fingerprints.remove(id);
+			}
+		}
+		
+		BasicDBObject removeQuery = new BasicDBObject(expiredQuery.toMap());
+		removeQuery.put("_id", new BasicDBObject("$in", idValues));
+		return this.collection.remove(removeQuery).getN();
+	}
+	
+	/**
+	 * Determine how far MongoDB's time to live monitor is behind, from the 
+	 * oldest session of this context that has expired but is still stored.
+	 * The monitor normally runs every 60 seconds.
+	 * 
+	 * @return number of seconds the oldest expired session is past its 
+	 * 	expiry date, or 0 if there are none
+	 */
+	public long getExpiryLagSeconds() {
+		long timeNow = System.currentTimeMillis();
+		BasicDBObject overdueQuery = new BasicDBObject();
+		overdueQuery.put(appContextProperty, this.getName());
+		overdueQuery.put(expireAtProperty, new BasicDBObject("$lt", new Date(timeNow)));
+		
+		DBCursor oldest = this.collection.find(overdueQuery, new BasicDBObject(expireAtProperty, 1))
+				.sort(new BasicDBObject(expireAtProperty, 1))
+				.limit(1);
+		try {
+			if (oldest.hasNext()) {
+				Date expireAt = (Date)oldest.next().get(expireAtProperty);
+				return (timeNow - expireAt.getTime()) / 1000L;
+			}
+		} finally {
+			oldest.close();
+		}
+		return 0L;
+	}
+	
+	/**
+	 * Determine if the Context has any listeners that should be notified
+	 * when a session expires.
+	 * 
+	 * @return true if there are session or session attribute listeners
+	 */
+	private boolean hasSessionListeners() {
+		Container container = this.manager.getContainer();
+		if (!(container instanceof Context)) {
+			return false;
+		}
+		Context context = (Context)container;
+		
+		/* session lifecycle listeners */
+		Object[] lifecycleListeners = context.getApplicationLifecycleListeners();
+		if (lifecycleListeners != null) {
+			for (Object listener : lifecycleListeners) {
+				if (listener instanceof HttpSessionListener) {
+					return true;
+				}
+			}
+		}
+		
+		/* session attribute listeners */
+		Object[] eventListeners = context.getApplicationEventListeners();
+		if (eventListeners != null) {
+			for (Object listener : eventListeners) {
+				if (listener instanceof HttpSessionAttributeListener) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Initialize this Store by connecting to the MongoDB using the
+	 * configuration parameters supplied.
+	 */
+	@Override
+	protected void initInternal()  {
+		super.initInternal();
+		try {
+			this.getConnection();
+		} catch (LifecycleException le) {
+			throw new RuntimeException(le);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void destroyInternal() {		
+		super.destroyInternal();
+		
+		/* release the mongo client, it is closed once no other store uses it */
+		this.releaseConnection();
+	}
+	
+	/**
+	 * Release the {@link MongoClient}, if the store holds one, and forget
+	 * the collections, so the next start connects again.
+	 */
+	private void releaseConnection() {
+		if (this.mongoClient != null) {
+			MongoClientRegistry.release(this.mongoClient);
+			this.mongoClient = null;
+		}
+		this.db = null;
+		this.collection = null;
+		this.chunks = null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected synchronized void startInternal() throws LifecycleException {		
+		super.startInternal();
+		
+		/* create the serializer used to write sessions */
+		try {
+			this.serializer = this.createSerializer(this.serializerClassName);
+			this.serializers.put(this.serializer.getName(), this.serializer);
+		} catch (Exception e) {
+			this.manager.getContainer().getLogger().error("Unable to create session serializer [" + this.serializerClassName + "]", e);
+			throw new LifecycleException(e);
+		}
+		
+		/* create the compressor, which is always needed to read compressed sessions */
+		byte[] dictionary = null;
+		if (this.compressionDictionary != null) {
+			try {
+				dictionary = Files.readAllBytes(Paths.get(this.compressionDictionary));
+			} catch (IOException e) {
+				this.manager.getContainer().getLogger().error("Unable to read compression dictionary [" + this.compressionDictionary + "]", e);
+				throw new LifecycleException(e);
+			}
+		}
+		this.compressor = new SessionCompressor(this.compressionLevel, dictionary);
+		
+		/* verify that the collection reference is valid */
+		if (this.collection == null) {
+			this.getConnection();
+		}
+		
+		/* open the connections before the first request needs them */
+		if (this.warmUp) {
+			try {
+				this.warmUp();
+			} catch (LifecycleException e) {
+				this.releaseConnection();
+				throw e;
+			}
+		}
+		
+		/* create the near cache */
+		if (this.nearCacheMaxBytes > 0) {
+			this.nearCache = new SessionCache(this.nearCacheMaxBytes);
+		}
+		if (this.fingerprintCacheSize > 0) {
+			this.fingerprints = new FingerprintCache(this.fingerprintCacheSize);
+		}
+		
+		/* start writing sessions in the background */
+		if (this.writeBehind) {
+			this.writeBehindQueue = new WriteBehindQueue(this.collection, this.writeConcern, this.writeBehindBatchSize, 
+					this.writeBehindFlushIntervalMs, this.writeBehindQueueLimit, this.manager.getContainer().getLogger());
+			this.writeBehindQueue.start(this.threadName + "-WriteBehind[" + this.getName() + "]");
+		}
+		
+		/* threads for batched loads, which only stay around while there is work */
+		if (this.loadThreads > 1) {
+			final String loaderName = this.threadName + "-Load[" + this.getName() + "]-";
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(this.loadThreads, this.loadThreads, 60L, TimeUnit.SECONDS, 
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+						
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, loaderName + count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			executor.allowCoreThreadTimeOut(true);
+			this.loadExecutor = executor;
+		}
+		
+		/* publish the statistics next to the manager */
+		this.registerStatistics();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected synchronized void stopInternal() throws LifecycleException {		
+		this.unregisterStatistics();
+		
+		/* write out everything still queued, so nothing is lost on shutdown */
+		if (this.writeBehindQueue != null) {
+			this.writeBehindQueue.stop();
+			this.writeBehindQueue = null;
+		}
+		if (this.loadExecutor != null) {
+			this.loadExecutor.shutdown();
+			this.loadExecutor = null;
+		}
+		this.nearCache = null;
+		this.fingerprints = null;
+		
+		/* serializers may hold on to the application's classes */
+		for (SessionSerializer sessionSerializer : this.serializers.values()) {
+			if (sessionSerializer instanceof Closeable) {
+				try {
+					((Closeable)sessionSerializer).close();
+				} catch (IOException e) {
+					this.manager.getContainer().getLogger().warn("Unable to close session serializer [" + sessionSerializer.getName() + "]", e);
+				}
+			}
+		}
+		this.serializers.clear();
+		
+		super.stopInternal();
+	}
+
+	/**
+	 * Register the statistics of this store with the platform MBean server.
+	 * The statistics are registered under the name of the manager, with a 
+	 * type of <em>MongoStore</em>.  Failing to register them does not stop
+	 * the store from starting.
+	 */
+	private void registerStatistics() {
+		try {
+			ObjectName name = this.getStatisticsName();
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this.statistics, name);
+			this.statisticsName = name;
+		} catch (Exception e) {
+			this.manager.getContainer().getLogger().warn("Unable to register the MongoStore statistics with JMX", e);
+		}
+	}
+	
+	/**
+	 * Unregister the statistics of this store, if they were registered.
+	 */
+	private void unregisterStatistics() {
+		if (this.statisticsName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.statisticsName);
+		} catch (Exception e) {
+			this.manager.getContainer().getLogger().warn("Unable to unregister the MongoStore statistics from JMX", e);
+		}
+		this.statisticsName = null;
+	}
+	
+	/**
+	 * Build the name of the statistics MBean from the name of the manager, 
+	 * so the statistics are listed next to it.
+	 * 
+	 * @return {@link ObjectName}
+	 * @throws Exception if the name is not valid
+	 */
+	private ObjectName getStatisticsName() throws Exception {
+		if (this.manager instanceof LifecycleMBeanBase) {
+			ObjectName managerName = ((LifecycleMBeanBase)this.manager).getObjectName();
+			if (managerName != null) {
+				return new ObjectName(managerName.getCanonicalName().replace("type=Manager", "type=MongoStore"));
+			}
+		}
+		return new ObjectName("Catalina:type=MongoStore,context=" + ObjectName.quote(this.getName()));
+	}
+
+	/**
+     * Return the name for this Store, used for logging.
+     */
+    @Override
+    public String getStoreName() {
+        return (storeName);
+    }
+	
+	/**
+	 * Create the {@link MongoClient}.
+	 * @throws LifecycleException
+	 */
+	private void getConnection() throws LifecycleException {
+		try {
+			/* get our MongoClient, shared with the other stores using the same settings */
+			if (this.connectionUri != null) {
+				final MongoClientURI clientUri = new MongoClientURI(this.connectionUri, 
+						MongoClientOptions.builder().minConnectionsPerHost(this.minPoolSize));
+				manager.getContainer().getLogger().info(getStoreName() + "[" + this.getName() + "]: Connecting to MongoDB " + clientUri.getHosts());
+				this.mongoClient = MongoClientRegistry.acquire("uri|" + digest(this.connectionUri) + "|" + this.minPoolSize, clientUri.getHosts().toString(), 
+						new MongoClientRegistry.ClientFactory() {
+							@Override
+							public MongoClient createClient() throws UnknownHostException {
+								return new MongoClient(clientUri);
+							}
+						});
+			} else {
+				/* create the client using the Mongo options */
+				ReadPreference readPreference = ReadPreference.primaryPreferred();
+				if (this.useSlaves) {
+					readPreference = ReadPreference.secondaryPreferred();
+				}
+				final MongoClientOptions options = MongoClientOptions.builder()
+					.connectTimeout(connectionTimeoutMs)
+					.maxWaitTime(connectionWaitTimeoutMs)
+					.connectionsPerHost(maxPoolSize)
+					.minConnectionsPerHost(minPoolSize)
+					.writeConcern(writeConcern)
+					.readPreference(readPreference)
+					.build();
+				
+				/* build up the host list */
+				final List<ServerAddress> hosts = new ArrayList<ServerAddress>();
+				String[] dbHosts = this.hosts.split(",");
+				for(String dbHost: dbHosts) {
+					String[] hostInfo = dbHost.split(":");
+					ServerAddress address = new ServerAddress(hostInfo[0], Integer.parseInt(hostInfo[1]));
+					hosts.add(address);
+				}
+				
+				/* the client authenticates its connections, if we have credentials */
+				final List<MongoCredential> credentials = new ArrayList<MongoCredential>();
+				if (this.username != null) {
+					this.manager.getContainer().getLogger().info(getStoreName() + "[" + this.getName() + "]: Authenticating using [" + this.username + "]");
+					credentials.add(MongoCredential.createMongoCRCredential(this.username, this.dbName, 
+							this.password == null ? new char[0] : this.password.toCharArray()));
+				}
+				
+				this.manager.getContainer().getLogger().info(getStoreName() + "[" + this.getName() + "]: Connecting to MongoDB [" + this.hosts + "]");
+				
+				/* connect */				
+				this.mongoClient = MongoClientRegistry.acquire(this.getClientKey(), this.hosts, 
+						new MongoClientRegistry.ClientFactory() {
+							@Override
+							public MongoClient createClient() {
+								return new MongoClient(hosts, credentials, options);
+							}
+						});
+			}
+			
+			/* get a connection to our db */
+			this.manager.getContainer().getLogger().info(getStoreName() + "[" + this.getName() + "]: Using Database [" + this.dbName + "]");
+			this.db = this.mongoClient.getDB(this.dbName);
+			
+			/* get a reference to the collection */
+			this.collection = this.db.getCollection(this.collectionName);			
+			this.chunks = this.db.getCollection(this.collectionName + chunkCollectionSuffix);
+			this.prepareIndexes();
+			
+			this.manager.getContainer().getLogger().info(getStoreName() + "[" + this.getName() + "]: Store ready.");
+		} catch (UnknownHostException uhe) {
+			this.manager.getContainer().getLogger().error("Unable to Connect to MongoDB", uhe);
+			throw new LifecycleException(uhe);
+		} catch (MongoException me) {
+			this.manager.getContainer().getLogger().error("Unable to Connect to MongoDB", me);
+			this.releaseConnection();
+			throw new LifecycleException(me);
+		} catch (RuntimeException e) {
+			/* don't hold on to a client this store cannot use */
+			this.releaseConnection();
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Open {@link #minPoolSize} connections and run the store's queries once,
+	 * so the first requests do not pay for the connection handshakes and 
+	 * MongoDB has planned the queries.  Each connection is held by its own
+	 * thread until they are all open, so the pool has to open them all.
+	 * 
+	 * @throws LifecycleException if {@link #warmUpRequired} is set and the 
+	 * 	connections are not open within {@link #warmUpTimeoutMs}
+	 */
+	private void warmUp() throws LifecycleException {
+		long startTime = System.currentTimeMillis();
+		int connections = Math.max(1, this.minPoolSize);
+		final CountDownLatch opened = new CountDownLatch(connections);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger failed = new AtomicInteger();
+		
+		ExecutorService warmers = Executors.newFixedThreadPool(connections);
+		try {
+			for (int i = 0; i < connections; i++) {
+				warmers.execute(new Runnable() {
+					@Override
+					public void run() {
+						/* pin a connection to this thread until all are open */
+						db.requestStart();
+						try {
+							primeQueries();
+							opened.countDown();
+							release.await(warmUpTimeoutMs, TimeUnit.MILLISECONDS);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						} catch (MongoException e) {
+							manager.getContainer().getLogger().warn(getStoreName() + "[" + getName() + "]: Unable to warm up a connection", e);
+							failed.incrementAndGet();
+							opened.countDown();
+						} finally {
+							db.requestDone();
+						}
+					}
+				});
+			}
+			
+			boolean warm = false;
+			try {
+				warm = opened.await(this.warmUpTimeoutMs, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			release.countDown();
+			
+			int open = connections - (int)opened.getCount() - failed.get();
+			warm &= failed.get() == 0;
+			if (warm) {
+				this.manager.getContainer().getLogger().info(getStoreName() + "[" + this.getName() + "]: Warmed up " + open 
+						+ " connections in " + (System.currentTimeMillis() - startTime) + "ms");
+			} else if (this.warmUpRequired) {
+				throw new LifecycleException("Only " + open + " of " + connections + " MongoDB connections were warmed up in " 
+						+ this.warmUpTimeoutMs + "ms");
+			} else {
+				this.manager.getContainer().getLogger().warn(getStoreName() + "[" + this.getName() + "]: Only " + open + " of " 
+						+ connections + " connections were warmed up in " + this.warmUpTimeoutMs + "ms");
+			}
+		} finally {
+			warmers.shutdown();
+		}
+	}
+	
+	/**
+	 * Run the queries used to load, validate, list and expire sessions, for
+	 * a session that does not exist.
+	 */
+	private void primeQueries() {
+		BasicDBObject sessionQuery = new BasicDBObject("_id", "warm-up");
+		sessionQuery.put(appContextProperty, this.getName());
+		this.collection.findOne(sessionQuery);
+		this.collection.findOne(sessionQuery, new BasicDBObject(versionProperty, 1));
+		
+		BasicDBObject appQuery = new BasicDBObject(appContextProperty, this.getName());
+		this.collection.find(appQuery, new BasicDBObject("_id", 1)).limit(1).toArray();
+		
+		BasicDBObject expiredQuery = new BasicDBObject(appContextProperty, this.getName());
+		expiredQuery.put(expireAtProperty, new BasicDBObject("$lt", new Date()));
+		this.collection.find(expiredQuery, new BasicDBObject("_id", 1)).limit(1).toArray();
+	}
+	
+	/**
+	 * Build the key of the shared client for the connection settings of this
+	 * store.  Stores with the same hosts, options and credentials share a client.
+	 * 
+	 * @return client key
+	 */
+	private String getClientKey() {
+		StringBuilder key = new StringBuilder("hosts|");
+		key.append(this.hosts)
+			.append('|').append(this.connectionTimeoutMs)
+			.append('|').append(this.connectionWaitTimeoutMs)
+			.append('|').append(this.minPoolSize)
+			.append('|').append(this.maxPoolSize)
+			.append('|').append(this.writeConcern)
+			.append('|').append(this.useSlaves)
+			.append('|').append(digest(this.username + '|' + this.password + '|' + this.dbName));
+		return key.toString();
+	}
+	
+	/**
+	 * Hash connection settings that include credentials, so the key of a 
+	 * shared client does not reveal them.
+	 * 
+	 * @param value Connection settings
+	 * @return hex SHA-256 of the settings
+	 */
+	private static String digest(String value) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes(Charset.forName("UTF-8")));
+			char[] hex = new char[hash.length * 2];
+			for (int i = 0; i < hash.length; i++) {
+				hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+				hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+			}
+			return new String(hex);
+		} catch (NoSuchAlgorithmException e) {
+			/* every java platform supports SHA-256 */
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Compare the indexes of the collection with the ones the store needs.
+	 * Depending on the {@link #indexMode}, indexes that are missing are built
+	 * in the background and indexes that differ are changed, or the differences
+	 * are only logged.  Indexes that are already correct are left alone, so a
+	 * restart does not rebuild anything.
+	 */
+	private void prepareIndexes() {
+		if (INDEX_MODE_NONE.equals(this.indexMode)) {
+			return;
+		}
+		boolean manage = INDEX_MODE_MANAGE.equals(this.indexMode);
+		this.manager.getContainer().getLogger().info(getStoreName() + "[" + this.getName() + "]: " 
+				+ (manage ? "Preparing" : "Verifying") + " indexes");
+		
+		/* the indexes the store needs.  the app and last modified index covers both 
+		 * the app lookups and the expiry query, the session id queries are answered
+		 * from the app and id index alone, and each session is saved with its own 
+		 * expiry date, which mongo's time to live monitor removes once it has passed
+		 */
+		BasicDBObject appIndex = new BasicDBObject(appContextProperty, 1);
+		appIndex.put(lastModifiedProperty, 1);
+		DBObject expireAtIndex = new BasicDBObject(expireAtProperty, 1);
+		
+		List<DBObject> existing = this.collection.getIndexInfo();
+		this.prepareIndex(this.collection, existing, appIndex, null, manage);
+		this.keysIndexReady = this.prepareIndex(this.collection, existing, getKeysIndex(), null, manage);
+		this.prepareIndex(this.collection, existing, expireAtIndex, 0, manage);
+		
+		/* chunks are read by session and version, and swept by app */
+		if (this.chunkThreshold > 0) {
+			BasicDBObject chunkIndex = new BasicDBObject(chunkSessionProperty, 1);
+			chunkIndex.put(versionProperty, 1);
+			BasicDBObject chunkSweepIndex = new BasicDBObject(appContextProperty, 1);
+			chunkSweepIndex.put(chunkIndexProperty, 1);
+			List<DBObject> existingChunkIndexes = this.chunks.getIndexInfo();
+			this.prepareIndex(this.chunks, existingChunkIndexes, chunkIndex, null, manage);
+			this.prepareIndex(this.chunks, existingChunkIndexes, chunkSweepIndex, null, manage);
+		}
+		
+		/* indexes created by earlier versions of the store are no longer used */
+		DBObject[] obsoleteIndexes = { new BasicDBObject(lastModifiedProperty, 1), new BasicDBObject(appContextProperty, 1) };
+		for (DBObject obsoleteIndex : obsoleteIndexes) {
+			DBObject index = findIndex(existing, obsoleteIndex);
+			if (index == null) {
+				continue;
+			}
+			if (manage) {
+				this.manager.getContainer().getLogger().info(getStoreName() + "[" + this.getName() + "]: Dropping unused index [" + index.get("name") + "]");
+				this.collection.dropIndex((String)index.get("name"));
+			} else {
+				this.manager.getContainer().getLogger().warn(getStoreName() + "[" + this.getName() + "]: Index [" + index.get("name") + "] is no longer used");
+			}
+		}
+	}
+	
+	/**
+	 * Make sure an index exists with the right time to live.
+	 * 
+	 * @param collection Collection the index belongs to
+	 * @param existing Existing indexes of the collection
+	 * @param keys Index keys
+	 * @param expireAfterSeconds Time to live of the index, or null if it is a regular index
+	 * @param manage true to change the index, false to only log the difference
+	 * @return true if the index was already in place
+	 */
+	private boolean prepareIndex(DBCollection collection, List<DBObject> existing, DBObject keys, Integer expireAfterSeconds, boolean manage) {
+		DBObject index = findIndex(existing, keys);
+		
+		/* build a missing index in the background, so the collection stays available */
+		if (index == null) {
+			if (manage) {
+				this.manager.getContainer().getLogger().info(getStoreName() + "[" + this.getName() + "]: Building index " + keys + " in the background");
+				BasicDBObject options = new BasicDBObject("background", true);
+				if (expireAfterSeconds != null) {
+					options.put("expireAfterSeconds", expireAfterSeconds);
+				}
+				collection.createIndex(keys, options);
+			} else {
+				this.manager.getContainer().getLogger().warn(getStoreName() + "[" + this.getName() + "]: Missing index " + keys);
+			}
+			return false;
+		}
+		
+		/* check the time to live */
+		Object currentExpireAfterSeconds = index.get("expireAfterSeconds");
+		if (expireAfterSeconds == null && currentExpireAfterSeconds == null) {
+			return true;
+		}
+		if (expireAfterSeconds != null && currentExpireAfterSeconds instanceof Number 
+				&& ((Number)currentExpireAfterSeconds).intValue() == expireAfterSeconds) {
+			return true;
+		}
+		
+		if (!manage) {
+			this.manager.getContainer().getLogger().warn(getStoreName() + "[" + this.getName() + "]: Index [" + index.get("name") 
+					+ "] has expireAfterSeconds " + currentExpireAfterSeconds + " instead of " + expireAfterSeconds);
+			return true;
+		}
+		if (expireAfterSeconds != null && currentExpireAfterSeconds != null) {
+			/* the time to live can be changed in place */
+			this.manager.getContainer().getLogger().info(getStoreName() + "[" + this.getName() + "]: Changing expireAfterSeconds of index [" 
+					+ index.get("name") + "] to " + expireAfterSeconds);
+			BasicDBObject collMod = new BasicDBObject("collMod", collection.getName());
+			collMod.put("index", new BasicDBObject("keyPattern", keys).append("expireAfterSeconds", expireAfterSeconds));
+			this.db.command(collMod).throwOnError();
+		} else {
+			/* adding or removing a time to live means building the index again */
+			this.manager.getContainer().getLogger().info(getStoreName() + "[" + this.getName() + "]: Rebuilding index [" + index.get("name") + "] in the background");
+			collection.dropIndex((String)index.get("name"));
+			BasicDBObject options = new BasicDBObject("background", true);
+			if (expireAfterSeconds != null) {
+				options.put("expireAfterSeconds", expireAfterSeconds);
+			}
+			collection.createIndex(keys, options);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Find an index by its keys.
+	 * 
+	 * @param existing Existing indexes of the collection
+	 * @param keys Index keys
+	 * @return the index description, or null
+	 */
+	private static DBObject findIndex(List<DBObject> existing, DBObject keys) {
+		for (DBObject index : existing) {
+			DBObject indexKeys = (DBObject)index.get("key");
+			if (indexKeys != null && sameKeys(indexKeys, keys)) {
+				return index;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Compare index keys, which the server may return as doubles.
+	 * 
+	 * @param indexKeys Keys of an existing index
+	 * @param keys Index keys
+	 * @return true if both have the same fields, in the same order and direction
+	 */
+	private static boolean sameKeys(DBObject indexKeys, DBObject keys) {
+		List<String> indexFields = new ArrayList<String>(indexKeys.keySet());
+		List<String> fields = new ArrayList<String>(keys.keySet());
+		if (!indexFields.equals(fields)) {
+			return false;
+		}
+		for (String field : fields) {
+			Object indexDirection = indexKeys.get(field);
+			Object direction = keys.get(field);
+			if (!(indexDirection instanceof Number) || !(direction instanceof Number)
+					|| Math.signum(((Number)indexDirection).doubleValue()) != Math.signum(((Number)direction).doubleValue())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * @return the connectionUri
+	 */
+	public String getConnectionUri() {
+		return connectionUri;
+	}
+
+
+	/**
+	 * @param connectionUri the connectionUri to set
+	 */
+	public void setConnectionUri(String connectionUri) {
+		this.connectionUri = connectionUri;
+	}
+
+
+	/**
+	 * @return the hosts
+	 */
+	public String getHosts() {
+		return hosts;
+	}
+
+
+	/**
+	 * @param hosts the hosts to set
+	 */
+	public void setHosts(String hosts) {
+		this.hosts = hosts;
+	}
+
+
+	/**
+	 * @return the dbName
+	 */
+	public String getDbName() {
+		return dbName;
+	}
+
+
+	/**
+	 * @param dbName the dbName to set
+	 */
+	public void setDbName(String dbName) {
+		this.dbName = dbName;
+	}
+
+
+	/**
+	 * @return the collectionName
+	 */
+	public String getCollectionName() {
+		return collectionName;
+	}
+
+
+	/**
+	 * @param collectionName the collectionName to set
+	 */
+	public void setCollectionName(String collectionName) {
+		this.collectionName = collectionName;
+	}
+
+
+	/**
+	 * @return the username
+	 */
+	public String getUsername() {
+		return username;
+	}
+
+
+	/**
+	 * @param username the username to set
+	 */
+	public void setUsername(String username) {
+		this.username = username;
+	}
+
+
+	/**
+	 * @return the password
+	 */
+	public String getPassword() {
+		return password;
+	}
+
+
+	/**
+	 * @param password the password to set
+	 */
+	public void setPassword(String password) {
+		this.password = password;
+	}
+
+
+	/**
+	 * @return the connectionTimeoutMs
+	 */
+	public int getConnectionTimeoutMs() {
+		return connectionTimeoutMs;
+	}
+
+
+	/**
+	 * @param connectionTimeoutMs the connectionTimeoutMs to set
+	 */
+	public void setConnectionTimeoutMs(int connectionTimeoutMs) {
+		this.connectionTimeoutMs = connectionTimeoutMs;
+	}
+
+
+	/**
+	 * @return the connectionWaitTimeoutMs
+	 */
+	public int getConnectionWaitTimeoutMs() {
+		return connectionWaitTimeoutMs;
+	}
+
+
+	/**
+	 * @param connectionWaitTimeoutMs the connectionWaitTimeoutMs to set
+	 */
+	public void setConnectionWaitTimeoutMs(int connectionWaitTimeoutMs) {
+		this.connectionWaitTimeoutMs = connectionWaitTimeoutMs;
+	}
+
+
+	/**
+	 * @return the minPoolSize
+	 */
+	public int getMinPoolSize() {
+		return minPoolSize;
+	}
+
+
+	/**
+	 * @param minPoolSize the minPoolSize to set
+	 */
+	public void setMinPoolSize(int minPoolSize) {
+		this.minPoolSize = minPoolSize;
+	}
+
+
+	/**
+	 * @return the maxPoolSize
+	 */
+	public int getMaxPoolSize() {
+		return maxPoolSize;
+	}
+
+
+	/**
+	 * @param maxPoolSize the maxPoolSize to set
+	 */
+	public void setMaxPoolSize(int maxPoolSize) {
+		this.maxPoolSize = maxPoolSize;
+	}
+
+
+	/**
+	 * @return the warmUp
+	 */
+	public boolean isWarmUp() {
+		return warmUp;
+	}
+
+
+	/**
+	 * @param warmUp the warmUp to set
+	 */
+	public void setWarmUp(boolean warmUp) {
+		this.warmUp = warmUp;
+	}
+
+
+	/**
+	 * @return the warmUpTimeoutMs
+	 */
+	public int getWarmUpTimeoutMs() {
+		return warmUpTimeoutMs;
+	}
+
+
+	/**
+	 * @param warmUpTimeoutMs the warmUpTimeoutMs to set
+	 */
+	public void setWarmUpTimeoutMs(int warmUpTimeoutMs) {
+		this.warmUpTimeoutMs = warmUpTimeoutMs;
+	}
+
+
+	/**
+	 * @return the warmUpRequired
+	 */
+	public boolean isWarmUpRequired() {
+		return warmUpRequired;
+	}
+
+
+	/**
+	 * @param warmUpRequired the warmUpRequired to set
+	 */
+	public void setWarmUpRequired(boolean warmUpRequired) {
+		this.warmUpRequired = warmUpRequired;
+	}
+
+
+	/**
+	 * @return the replicaSet
+	 */
+	public String getReplicaSet() {
+		return replicaSet;
+	}
+
+
+	/**
+	 * @param replicaSet the replicaSet to set
+	 */
+	public void setReplicaSet(String replicaSet) {
+		this.replicaSet = replicaSet;
+	}
+
+
+	/**
+	 * @return the useSecureConnection
+	 */
+	public boolean isUseSecureConnection() {
+		return useSecureConnection;
+	}
+
+
+	/**
+	 * @param useSecureConnection the useSecureConnection to set
+	 */
+	public void setUseSecureConnection(boolean useSecureConnection) {
+		this.useSecureConnection = useSecureConnection;
+	}
+
+
+	/**
+	 * @return the useSlaves
+	 */
+	public boolean isUseSlaves() {
+		return useSlaves;
+	}
+
+
+	/**
+	 * @param useSlaves the useSlaves to set
+	 */
+	public void setUseSlaves(boolean useSlaves) {
+		this.useSlaves = useSlaves;
+	}
+
+
+	/**
+	 * @return the writeConcern
+	 */
+	public WriteConcern getWriteConcern() {
+		return writeConcern;
+	}
+
+
+	/**
+	 * @param writeConcern the writeConcern to set
+	 */
+	public void setWriteConcern(WriteConcern writeConcern) {
+		this.writeConcern = writeConcern;
+	}
+
+
+	/**
+	 * @return the timeToLive
+	 */
+	public int getTimeToLive() {
+		return timeToLive;
+	}
+
+
+	/**
+	 * @param timeToLive the timeToLive to set
+	 */
+	public void setTimeToLive(int timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+
+	/**
+	 * @return the storeAttributes
+	 */
+	public boolean isStoreAttributes() {
+		return storeAttributes;
+	}
+
+
+	/**
+	 * @param storeAttributes the storeAttributes to set
+	 */
+	public void setStoreAttributes(boolean storeAttributes) {
+		this.storeAttributes = storeAttributes;
+	}
+
+
+	/**
+	 * @return the touchUnmodifiedSessions
+	 */
+	public boolean isTouchUnmodifiedSessions() {
+		return touchUnmodifiedSessions;
+	}
+
+
+	/**
+	 * @param touchUnmodifiedSessions the touchUnmodifiedSessions to set
+	 */
+	public void setTouchUnmodifiedSessions(boolean touchUnmodifiedSessions) {
+		this.touchUnmodifiedSessions = touchUnmodifiedSessions;
+	}
+
+
+	/**
+	 * @return the touchThrottleSeconds
+	 */
+	public int getTouchThrottleSeconds() {
+		return touchThrottleSeconds;
+	}
+
+
+	/**
+	 * @param touchThrottleSeconds the touchThrottleSeconds to set
+	 */
+	public void setTouchThrottleSeconds(int touchThrottleSeconds) {
+		this.touchThrottleSeconds = touchThrottleSeconds;
+	}
+
+
+	/**
+	 * @return the serializerClassName
+	 */
+	public String getSerializerClassName() {
+		return serializerClassName;
+	}
+
+
+	/**
+	 * @param serializerClassName the serializerClassName to set
+	 */
+	public void setSerializerClassName(String serializerClassName) {
+		this.serializerClassName = serializerClassName;
+	}
+
+
+	/**
+	 * @return the registeredClasses
+	 */
+	public String getRegisteredClasses() {
+		return registeredClasses;
+	}
+
+
+	/**
+	 * @param registeredClasses the registeredClasses to set
+	 */
+	public void setRegisteredClasses(String registeredClasses) {
+		this.registeredClasses = registeredClasses;
+	}
+
+
+	/**
+	 * @return the compression
+	 */
+	public String getCompression() {
+		return compression;
+	}
+
+
+	/**
+	 * @param compression the compression to set
+	 */
+	public void setCompression(String compression) {
+		this.compression = compression;
+	}
+
+
+	/**
+	 * @return the compressionThreshold
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+
+	/**
+	 * @param compressionThreshold the compressionThreshold to set
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+
+	/**
+	 * @return the compressionLevel
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+
+	/**
+	 * @param compressionLevel the compressionLevel to set
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+
+	/**
+	 * @return the compressionDictionary
+	 */
+	public String getCompressionDictionary() {
+		return compressionDictionary;
+	}
+
+
+	/**
+	 * @param compressionDictionary the compressionDictionary to set
+	 */
+	public void setCompressionDictionary(String compressionDictionary) {
+		this.compressionDictionary = compressionDictionary;
+	}
+
+
+	/**
+	 * @return the writeBehind
+	 */
+	public boolean isWriteBehind() {
+		return writeBehind;
+	}
+
+
+	/**
+	 * @param writeBehind the writeBehind to set
+	 */
+	public void setWriteBehind(boolean writeBehind) {
+		this.writeBehind = writeBehind;
+	}
+
+
+	/**
+	 * @return the writeBehindBatchSize
+	 */
+	public int getWriteBehindBatchSize() {
+		return writeBehindBatchSize;
+	}
+
+
+	/**
+	 * @param writeBehindBatchSize the writeBehindBatchSize to set
+	 */
+	public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+		this.writeBehindBatchSize = writeBehindBatchSize;
+	}
+
+
+	/**
+	 * @return the writeBehindFlushIntervalMs
+	 */
+	public int getWriteBehindFlushIntervalMs() {
+		return writeBehindFlushIntervalMs;
+	}
+
+
+	/**
+	 * @param writeBehindFlushIntervalMs the writeBehindFlushIntervalMs to set
+	 */
+	public void setWriteBehindFlushIntervalMs(int writeBehindFlushIntervalMs) {
+		this.writeBehindFlushIntervalMs = writeBehindFlushIntervalMs;
+	}
+
+
+	/**
+	 * @return the writeBehindQueueLimit
+	 */
+	public int getWriteBehindQueueLimit() {
+		return writeBehindQueueLimit;
+	}
+
 
 	/**
-	 * {@inheritDoc}
+	 * @param writeBehindQueueLimit the writeBehindQueueLimit to set
 	 */
-	@Override
-	public void remove(String id) throws IOException {
-		/* build up the query, looking for all sessions with this app context property and id */
-		BasicDBObject sessionQuery = new BasicDBObject();
-		sessionQuery.put("_id", id);
-		sessionQuery.put(appContextProperty, this.getName());
-		
-		/* remove all sessions for this context and id */
-		try {
-			this.collection.remove(sessionQuery);
-		} catch (MongoException e) {
-			/* for some reason we couldn't remove the data */
-			this.manager.getContainer().getLogger().fatal(
-					"Unable to remove sessions for [" + id + ":" + this.getName() + "] from MongoDB", e);
-			throw e;
-		}
+	public void setWriteBehindQueueLimit(int writeBehindQueueLimit) {
+		this.writeBehindQueueLimit = writeBehindQueueLimit;
 	}
 
+
 	/**
-	 * {@inheritDoc}
+	 * @return the number of session writes waiting in the write behind queue
 	 */
-	@Override
-	public void clear() throws IOException {
-		/* build up the query, looking for all sessions with this app context property */
-		BasicDBObject sessionQuery = new BasicDBObject();
-		sessionQuery.put(appContextProperty, this.getName());
-		
-		/* remove all sessions for this context */
-		try {
-			this.collection.remove(sessionQuery);
-		} catch (MongoException e) {
-			/* for some reason we couldn't save the data */
-			this.manager.getContainer().getLogger().fatal("Unable to remove sessions for [" + this.getName() + "] from MongoDB", e);
-			throw e;
-		}
+	public int getWriteBehindQueueSize() {
+		WriteBehindQueue queue = this.writeBehindQueue;
+		return queue == null ? 0 : queue.size();
 	}
 
+
 	/**
-	 * {@inheritDoc}
+	 * @return the nearCacheMaxBytes
 	 */
-	@Override
-	public void save(Session session) throws IOException {
-		/* we will store the session data as a byte array in Mongo, so
-		 * we need to set up our output streams
-		 */
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		ObjectOutputStream oos = new ObjectOutputStream(bos);
-		
-		/* serialize the session using the object output stream */		
-		((StandardSession)session).writeObjectData(oos);
-		
-		/* get the byte array of the data */
-		byte[] data = bos.toByteArray();
-		
-		/* close the streams */
-		try {
-			oos.close();
-			oos = null;
-		} catch (Exception e) {}
-		
-		/* create the DBObject */
-		BasicDBObject mongoSession = new BasicDBObject();
-		mongoSession.put("_id", session.getIdInternal());
-		mongoSession.put(appContextProperty, this.getName());
-		mongoSession.put(creationTimeProperty, session.getCreationTime());
-		mongoSession.put(sessionDataProperty, data);
-		mongoSession.put(lastModifiedProperty, Calendar.getInstance().getTime());
-		
-		/* create our upsert lookup */
-		BasicDBObject sessionQuery = new BasicDBObject();
-		sessionQuery.put("_id", session.getId());
-		try {
-			/* update the object in the collection, inserting if necessary */
-			this.collection.update(sessionQuery, mongoSession, true, false);
-		} catch (MongoException e) {
-			/* for some reason we couldn't save the data */
-			this.manager.getContainer().getLogger().fatal("Unable to save session to MongoDB", e);
-			throw e;
-		} finally {
-			if (oos != null) {
-				try {
-					oos.close();
-					oos = null;
-				} catch (Exception e) {}
-			}
-			if (bos != null) {
-				try {
-					bos.close();
-					bos = null;
-				} catch (Exception e) {}
-			}
-		}
+	public long getNearCacheMaxBytes() {
+		return nearCacheMaxBytes;
 	}
 
+
 	/**
-	 * Initialize this Store by connecting to the MongoDB using the
-	 * configuration parameters supplied.
+	 * @param nearCacheMaxBytes the nearCacheMaxBytes to set
 	 */
-	@Override
-	protected void initInternal()  {
-		super.initInternal();
-		try {
-			this.getConnection();
-		} catch (LifecycleException le) {
-			throw new RuntimeException(le);
-		}
+	public void setNearCacheMaxBytes(long nearCacheMaxBytes) {
+		this.nearCacheMaxBytes = nearCacheMaxBytes;
 	}
 
+
 	/**
-	 * {@inheritDoc}
+	 * @return the fingerprintCacheSize
 	 */
-	@Override
-	protected void destroyInternal() {		
-		super.destroyInternal();
-		
-		/* close the mongo client */
-		this.mongoClient.close();		
+	public int getFingerprintCacheSize() {
+		return fingerprintCacheSize;
 	}
 
+
 	/**
-	 * {@inheritDoc}
+	 * @param fingerprintCacheSize the fingerprintCacheSize to set
 	 */
-	@Override
-	protected synchronized void startInternal() throws LifecycleException {		
-		super.startInternal();
-		
-		/* verify that the collection reference is valid */
-		if (this.collection == null) {
-			this.getConnection();
-		}
+	public void setFingerprintCacheSize(int fingerprintCacheSize) {
+		this.fingerprintCacheSize = fingerprintCacheSize;
 	}
 
+
 	/**
-	 * {@inheritDoc}
+	 * @return the chunkThreshold
 	 */
-	@Override
-	protected synchronized void stopInternal() throws LifecycleException {		
-		super.stopInternal();
+	public int getChunkThreshold() {
+		return chunkThreshold;
 	}
 
+
 	/**
-     * Return the name for this Store, used for logging.
-     */
-    @Override
-    public String getStoreName() {
-        return (storeName);
-    }
-	
+	 * @param chunkThreshold the chunkThreshold to set
+	 */
+	public void setChunkThreshold(int chunkThreshold) {
+		this.chunkThreshold = chunkThreshold;
+	}
+
+
 	/**
-	 * Create the {@link MongoClient}.
-	 * @throws LifecycleException
+	 * @return the chunkSize
 	 */
-	private void getConnection() throws LifecycleException {
-		try {
-			/* create our MongoClient */
-			if (this.connectionUri != null) {
-				manager.getContainer().getLogger().info(getStoreName() + "[" + this.getName() + "]: Connecting to MongoDB [" + this.connectionUri + "]");
-				this.mongoClient = new MongoClient(this.connectionUri);
-			} else {
-				/* create the client using the Mongo options */
-				ReadPreference readPreference = ReadPreference.primaryPreferred();
-				if (this.useSlaves) {
-					readPreference = ReadPreference.secondaryPreferred();
-				}
-				MongoClientOptions options = MongoClientOptions.builder()
-					.connectTimeout(connectionTimeoutMs)
-					.maxWaitTime(connectionWaitTimeoutMs)
-					.connectionsPerHost(maxPoolSize)
-					.writeConcern(writeConcern)
-					.readPreference(readPreference)
-					.build();
-				
-				/* build up the host list */
-				List<ServerAddress> hosts = new ArrayList<ServerAddress>();
-				String[] dbHosts = this.hosts.split(",");
-				for(String dbHost: dbHosts) {
-					String[] hostInfo = dbHost.split(":");
-					ServerAddress address = new ServerAddress(hostInfo[0], Integer.parseInt(hostInfo[1]));
-					hosts.add(address);
-				}
-				
-				this.manager.getContainer().getLogger().info(getStoreName() + "[" + this.getName() + "]: Connecting to MongoDB [" + this.hosts + "]");
-				
-				/* connect */				
-				this.mongoClient = new MongoClient(hosts, options);
-			}
-			
-			/* get a connection to our db */
-			this.manager.getContainer().getLogger().info(getStoreName() + "[" + this.getName() + "]: Using Database [" + this.dbName + "]");
-			this.db = this.mongoClient.getDB(this.dbName);
-			
-			/* see if we need to authenticate */
-			if (this.username != null || this.password != null) {
-				this.manager.getContainer().getLogger().info(getStoreName() + "[" + this.getName() + "]: Authenticating using [" + this.username + "]");
-				if (!this.db.authenticate(this.username, this.password.toCharArray())) {
-					throw new RuntimeException("MongoDB Authentication Failed");
-				}
-			}
-			
-			/* get a reference to the collection */
-			this.collection = this.db.getCollection(this.collectionName);			
-			this.manager.getContainer().getLogger().info(getStoreName() + "[" + this.getName() + "]: Preparing indexes");
-			
-			/* drop any existing indexes */
-			try {
-				this.collection.dropIndex(new BasicDBObject(lastModifiedProperty, 1));
-				this.collection.dropIndex(new BasicDBObject(appContextProperty, 1));
-			} catch (Exception e) {
-				/* these indexes may not exist, so ignore */
-			}
-			
-			/* make sure the last modified and app name indexes exists */			
-			this.collection.ensureIndex(new BasicDBObject(appContextProperty, 1));
-			
-			/* determine if we need to expire our db sessions */
-			if (this.timeToLive != -1) {
-				/* use the time to live set */
-				this.collection.ensureIndex(new BasicDBObject(lastModifiedProperty, 1), 
-						new BasicDBObject("lastModifiedProperty", this.timeToLive));	
-			} else {
-				/* no custom time to live specified, use the manager's settings */
-				if (this.manager.getMaxInactiveInterval() != -1) {
-					/* create a ttl index on the app property */
-					this.collection.ensureIndex(new BasicDBObject(lastModifiedProperty, 1), 
-							new BasicDBObject("lastModifiedProperty", this.manager.getMaxInactiveInterval()));	
-				} else {
-					/* create a regular index */
-					this.collection.ensureIndex(new BasicDBObject(lastModifiedProperty, 1));
-				}
-			}
-			
-			this.manager.getContainer().getLogger().info(getStoreName() + "[" + this.getName() + "]: Store ready.");
-		} catch (UnknownHostException uhe) {
-			this.manager.getContainer().getLogger().error("Unable to Connect to MongoDB", uhe);
-			throw new LifecycleException(uhe);
-		} catch (MongoException me) {
-			this.manager.getContainer().getLogger().error("Unable to Connect to MongoDB", me);
-			throw new LifecycleException(me);
-		}
+	public int getChunkSize() {
+		return chunkSize;
 	}
 
 
 	/**
-	 * @return the connectionUri
+	 * @param chunkSize the chunkSize to set
 	 */
-	public String getConnectionUri() {
-		return connectionUri;
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
 	}
 
 
 	/**
-	 * @param connectionUri the connectionUri to set
+	 * @return the maxDataSize
 	 */
-	public void setConnectionUri(String connectionUri) {
-		this.connectionUri = connectionUri;
+	public int getMaxDataSize() {
+		return maxDataSize;
 	}
 
 
 	/**
-	 * @return the hosts
+	 * @param maxDataSize the maxDataSize to set
 	 */
-	public String getHosts() {
-		return hosts;
+	public void setMaxDataSize(int maxDataSize) {
+		this.maxDataSize = maxDataSize;
 	}
 
 
 	/**
-	 * @param hosts the hosts to set
+	 * @return the rejectOversizedSessions
 	 */
-	public void setHosts(String hosts) {
-		this.hosts = hosts;
+	public boolean isRejectOversizedSessions() {
+		return rejectOversizedSessions;
 	}
 
 
 	/**
-	 * @return the dbName
+	 * @param rejectOversizedSessions the rejectOversizedSessions to set
 	 */
-	public String getDbName() {
-		return dbName;
+	public void setRejectOversizedSessions(boolean rejectOversizedSessions) {
+		this.rejectOversizedSessions = rejectOversizedSessions;
 	}
 
 
 	/**
-	 * @param dbName the dbName to set
+	 * @return the number of sessions in the near cache
 	 */
-	public void setDbName(String dbName) {
-		this.dbName = dbName;
+	public int getNearCacheSize() {
+		SessionCache cache = this.nearCache;
+		return cache == null ? 0 : cache.size();
 	}
 
 
 	/**
-	 * @return the collectionName
+	 * @return the indexMode
 	 */
-	public String getCollectionName() {
-		return collectionName;
+	public String getIndexMode() {
+		return indexMode;
 	}
 
 
 	/**
-	 * @param collectionName the collectionName to set
+	 * @param indexMode the indexMode to set
 	 */
-	public void setCollectionName(String collectionName) {
-		this.collectionName = collectionName;
+	public void setIndexMode(String indexMode) {
+		this.indexMode = indexMode;
 	}
 
 
 	/**
-	 * @return the username
+	 * @return the keysBatchSize
 	 */
-	public String getUsername() {
-		return username;
+	public int getKeysBatchSize() {
+		return keysBatchSize;
 	}
 
 
 	/**
-	 * @param username the username to set
+	 * @param keysBatchSize the keysBatchSize to set
 	 */
-	public void setUsername(String username) {
-		this.username = username;
+	public void setKeysBatchSize(int keysBatchSize) {
+		this.keysBatchSize = keysBatchSize;
 	}
 
 
 	/**
-	 * @return the password
+	 * @return the exactSize
 	 */
-	public String getPassword() {
-		return password;
+	public boolean isExactSize() {
+		return exactSize;
 	}
 
 
 	/**
-	 * @param password the password to set
+	 * @param exactSize the exactSize to set
 	 */
-	public void setPassword(String password) {
-		this.password = password;
+	public void setExactSize(boolean exactSize) {
+		this.exactSize = exactSize;
 	}
 
 
 	/**
-	 * @return the connectionTimeoutMs
+	 * @return the sizeRefreshSeconds
 	 */
-	public int getConnectionTimeoutMs() {
-		return connectionTimeoutMs;
+	public int getSizeRefreshSeconds() {
+		return sizeRefreshSeconds;
 	}
 
 
 	/**
-	 * @param connectionTimeoutMs the connectionTimeoutMs to set
+	 * @param sizeRefreshSeconds the sizeRefreshSeconds to set
 	 */
-	public void setConnectionTimeoutMs(int connectionTimeoutMs) {
-		this.connectionTimeoutMs = connectionTimeoutMs;
+	public void setSizeRefreshSeconds(int sizeRefreshSeconds) {
+		this.sizeRefreshSeconds = sizeRefreshSeconds;
 	}
 
 
 	/**
-	 * @return the connectionWaitTimeoutMs
+	 * @return the loadBatchSize
 	 */
-	public int getConnectionWaitTimeoutMs() {
-		return connectionWaitTimeoutMs;
+	public int getLoadBatchSize() {
+		return loadBatchSize;
 	}
 
 
 	/**
-	 * @param connectionWaitTimeoutMs the connectionWaitTimeoutMs to set
+	 * @param loadBatchSize the loadBatchSize to set
 	 */
-	public void setConnectionWaitTimeoutMs(int connectionWaitTimeoutMs) {
-		this.connectionWaitTimeoutMs = connectionWaitTimeoutMs;
+	public void setLoadBatchSize(int loadBatchSize) {
+		this.loadBatchSize = loadBatchSize;
 	}
 
 
 	/**
-	 * @return the minPoolSize
+	 * @return the loadThreads
 	 */
-	public int getMinPoolSize() {
-		return minPoolSize;
+	public int getLoadThreads() {
+		return loadThreads;
 	}
 
 
 	/**
-	 * @param minPoolSize the minPoolSize to set
+	 * @param loadThreads the loadThreads to set
 	 */
-	public void setMinPoolSize(int minPoolSize) {
-		this.minPoolSize = minPoolSize;
+	public void setLoadThreads(int loadThreads) {
+		this.loadThreads = loadThreads;
 	}
 
 
 	/**
-	 * @return the maxPoolSize
+	 * @return the compactIds
 	 */
-	public int getMaxPoolSize() {
-		return maxPoolSize;
+	public boolean isCompactIds() {
+		return compactIds;
 	}
 
 
 	/**
-	 * @param maxPoolSize the maxPoolSize to set
+	 * @param compactIds the compactIds to set
 	 */
-	public void setMaxPoolSize(int maxPoolSize) {
-		this.maxPoolSize = maxPoolSize;
+	public void setCompactIds(boolean compactIds) {
+		this.compactIds = compactIds;
 	}
 
 
 	/**
-	 * @return the replicaSet
+	 * @return the nativeAttributes
 	 */
-	public String getReplicaSet() {
-		return replicaSet;
+	public boolean isNativeAttributes() {
+		return nativeAttributes;
 	}
 
 
 	/**
-	 * @param replicaSet the replicaSet to set
+	 * @param nativeAttributes the nativeAttributes to set
 	 */
-	public void setReplicaSet(String replicaSet) {
-		this.replicaSet = replicaSet;
+	public void setNativeAttributes(boolean nativeAttributes) {
+		this.nativeAttributes = nativeAttributes;
 	}
 
 
 	/**
-	 * @return the useSecureConnection
+	 * @return the lazyAttributes
 	 */
-	public boolean isUseSecureConnection() {
-		return useSecureConnection;
+	public boolean isLazyAttributes() {
+		return lazyAttributes;
 	}
 
 
 	/**
-	 * @param useSecureConnection the useSecureConnection to set
+	 * @param lazyAttributes the lazyAttributes to set
 	 */
-	public void setUseSecureConnection(boolean useSecureConnection) {
-		this.useSecureConnection = useSecureConnection;
+	public void setLazyAttributes(boolean lazyAttributes) {
+		this.lazyAttributes = lazyAttributes;
 	}
 
 
 	/**
-	 * @return the useSlaves
+	 * @return the connection pool usage of the MongoClient used by this store,
+	 * 	which may be shared with other stores
 	 */
-	public boolean isUseSlaves() {
-		return useSlaves;
+	public String getConnectionPoolUsage() {
+		MongoClient client = this.mongoClient;
+		return client == null ? null : MongoClientRegistry.getPoolUsage(client);
 	}
 
 
 	/**
-	 * @param useSlaves the useSlaves to set
+	 * @return the statistics of this store's operations
 	 */
-	public void setUseSlaves(boolean useSlaves) {
-		this.useSlaves = useSlaves;
+	public StoreStatistics getStatistics() {
+		return statistics;
 	}
 
 
 	/**
-	 * @return the writeConcern
+	 * @return the expireBatchSize
 	 */
-	public WriteConcern getWriteConcern() {
-		return writeConcern;
+	public int getExpireBatchSize() {
+		return expireBatchSize;
 	}
 
 
 	/**
-	 * @param writeConcern the writeConcern to set
+	 * @param expireBatchSize the expireBatchSize to set
 	 */
-	public void setWriteConcern(WriteConcern writeConcern) {
-		this.writeConcern = writeConcern;
+	public void setExpireBatchSize(int expireBatchSize) {
+		this.expireBatchSize = expireBatchSize;
 	}
 
 
 	/**
-	 * @return the timeToLive
+	 * @return the loadExpiredSessions
 	 */
-	public int getTimeToLive() {
-		return timeToLive;
+	public boolean isLoadExpiredSessions() {
+		return loadExpiredSessions;
 	}
 
 
 	/**
-	 * @param timeToLive the timeToLive to set
+	 * @param loadExpiredSessions the loadExpiredSessions to set
 	 */
-	public void setTimeToLive(int timeToLive) {
-		this.timeToLive = timeToLive;
-	}	
+	public void setLoadExpiredSessions(boolean loadExpiredSessions) {
+		this.loadExpiredSessions = loadExpiredSessions;
+	}
 }
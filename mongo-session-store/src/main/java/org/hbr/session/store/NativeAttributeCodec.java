@@ -0,0 +1,199 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.store;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+
+/**
+ * Converts Session attribute values of well known types to and from native
+ * BSON values, so the {@link MongoStore} can store them without a serializer.
+ * <p>
+ * Only types that read back as the same class are native: {@link String},
+ * {@link Boolean}, {@link Integer}, {@link Long}, {@link Double}, {@link Date},
+ * and {@link HashMap}, {@link LinkedHashMap} and {@link ArrayList} holding
+ * native values or nulls.  Maps must have String keys that are valid field
+ * names.  Maps are read back as {@link LinkedHashMap}.  Values are copied in
+ * both directions, so a document queued or cached by the store does not
+ * share state with the Session.
+ * </p>
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public final class NativeAttributeCodec {
+
+	/**
+	 * Deepest nesting of maps and lists stored as native values.
+	 */
+	public static final int MAX_DEPTH = 8;
+
+	private NativeAttributeCodec() {
+	}
+
+	/**
+	 * Determine if a value can be stored as a native BSON value.
+	 *
+	 * @param value Attribute value
+	 * @return true if the value is read back unchanged from its native form
+	 */
+	public static boolean isNative(Object value) {
+		return value != null && isNative(value, 0);
+	}
+
+	/**
+	 * @param value Value, may be null inside maps and lists
+	 * @param depth Nesting depth of the value
+	 * @return true if the value can be stored as a native BSON value
+	 */
+	private static boolean isNative(Object value, int depth) {
+		if (value == null || value instanceof String || value instanceof Boolean
+				|| value instanceof Integer || value instanceof Long || value instanceof Double) {
+			return true;
+		}
+		Class<?> type = value.getClass();
+		if (type == Date.class) {
+			return true;
+		}
+		if (depth >= MAX_DEPTH) {
+			return false;
+		}
+		if (type == HashMap.class || type == LinkedHashMap.class) {
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+				if (!isFieldName(entry.getKey()) || !isNative(entry.getValue(), depth + 1)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (type == ArrayList.class) {
+			for (Object element : (List<?>)value) {
+				if (!isNative(element, depth + 1)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param key Map key
+	 * @return true if the key can be stored as a MongoDB field name
+	 */
+	private static boolean isFieldName(Object key) {
+		if (!(key instanceof String)) {
+			return false;
+		}
+		String name = (String)key;
+		return !name.startsWith("$") && name.indexOf('.') == -1 && name.indexOf('\0') == -1;
+	}
+
+	/**
+	 * Copy a native value into the form written to MongoDB.
+	 *
+	 * @param value Value accepted by {@link #isNative(Object)}
+	 * @return BSON value
+	 */
+	public static Object encode(Object value) {
+		if (value instanceof Map) {
+			BasicDBObject document = new BasicDBObject();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+				document.put((String)entry.getKey(), encode(entry.getValue()));
+			}
+			return document;
+		}
+		if (value instanceof List) {
+			BasicDBList list = new BasicDBList();
+			for (Object element : (List<?>)value) {
+				list.add(encode(element));
+			}
+			return list;
+		}
+		if (value instanceof Date) {
+			return new Date(((Date)value).getTime());
+		}
+		return value;
+	}
+
+	/**
+	 * Copy a native value read from MongoDB back into an attribute value.
+	 *
+	 * @param value BSON value
+	 * @return attribute value
+	 */
+	public static Object decode(Object value) {
+		if (value instanceof List) {
+			List<?> list = (List<?>)value;
+			List<Object> decoded = new ArrayList<Object>(list.size());
+			for (Object element : list) {
+				decoded.add(decode(element));
+			}
+			return decoded;
+		}
+		if (value instanceof Map) {
+			Map<String, Object> decoded = new LinkedHashMap<String, Object>();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+				decoded.put((String)entry.getKey(), decode(entry.getValue()));
+			}
+			return decoded;
+		}
+		if (value instanceof Date) {
+			return new Date(((Date)value).getTime());
+		}
+		return value;
+	}
+
+	/**
+	 * Estimate the number of bytes a native value takes in a document.
+	 *
+	 * @param value BSON value
+	 * @return approximate size, in bytes
+	 */
+	public static long sizeOf(Object value) {
+		if (value instanceof String) {
+			return ((String)value).length() + 5;
+		}
+		if (value instanceof Integer) {
+			return 4;
+		}
+		if (value instanceof Boolean) {
+			return 1;
+		}
+		if (value instanceof Map) {
+			long size = 5;
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+				size += entry.getKey().toString().length() + 2 + sizeOf(entry.getValue());
+			}
+			return size;
+		}
+		if (value instanceof List) {
+			long size = 5;
+			for (Object element : (List<?>)value) {
+				size += 4 + sizeOf(element);
+			}
+			return size;
+		}
+		return value == null ? 0 : 8;
+	}
+}
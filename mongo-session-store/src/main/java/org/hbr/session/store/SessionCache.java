@@ -0,0 +1,141 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.store;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import com.mongodb.DBObject;
+
+/**
+ * Least recently used cache of stored session documents, bounded by the
+ * size of the serialized session data it holds.
+ * <p>
+ * The cache holds the documents as they were read from, or written to,
+ * MongoDB.  It is up to the caller to check that a cached document is still
+ * current before using it.
+ * </p>
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class SessionCache {
+
+	/**
+	 * Estimated size of a document without its session data.
+	 */
+	private static final int DOCUMENT_OVERHEAD = 256;
+
+	/**
+	 * A cached document and its estimated size.
+	 */
+	private static final class Entry {
+		private final DBObject document;
+		private final long size;
+
+		private Entry(DBObject document, long size) {
+			this.document = document;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Cached documents, by session id, in access order.
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private final long maxBytes;
+	private long bytes = 0L;
+
+	/**
+	 * Create a cache.
+	 *
+	 * @param maxBytes Maximum size of the cached session data, in bytes
+	 */
+	public SessionCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Retrieve a cached document.
+	 *
+	 * @param id Session id
+	 * @return the cached document, or null
+	 */
+	public synchronized DBObject get(String id) {
+		Entry entry = this.entries.get(id);
+		return entry == null ? null : entry.document;
+	}
+
+	/**
+	 * Cache a document, evicting the least recently used documents if the
+	 * cache is full.  Documents larger than the whole cache are not cached.
+	 *
+	 * @param id Session id
+	 * @param document Session document
+	 * @param dataSize Size of the serialized session data in the document, in bytes
+	 */
+	public synchronized void put(String id, DBObject document, long dataSize) {
+		this.remove(id);
+		long size = dataSize + DOCUMENT_OVERHEAD;
+		if (size > this.maxBytes) {
+			return;
+		}
+
+		this.entries.put(id, new Entry(document, size));
+		this.bytes += size;
+
+		Iterator<Entry> eldest = this.entries.values().iterator();
+		while (this.bytes > this.maxBytes && eldest.hasNext()) {
+			this.bytes -= eldest.next().size;
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Remove a cached document.
+	 *
+	 * @param id Session id
+	 */
+	public synchronized void remove(String id) {
+		Entry entry = this.entries.remove(id);
+		if (entry != null) {
+			this.bytes -= entry.size;
+		}
+	}
+
+	/**
+	 * Remove all cached documents.
+	 */
+	public synchronized void clear() {
+		this.entries.clear();
+		this.bytes = 0L;
+	}
+
+	/**
+	 * @return the number of cached documents
+	 */
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * @return the estimated size of the cached documents, in bytes
+	 */
+	public synchronized long getBytes() {
+		return this.bytes;
+	}
+}
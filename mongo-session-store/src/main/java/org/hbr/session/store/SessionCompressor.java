@@ -0,0 +1,157 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package org.hbr.session.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses serialized Session data for the {@link MongoStore} using
+ * Deflate, optionally primed with a preset dictionary.  A dictionary built
+ * from typical serialized Sessions lets even small Sessions compress well,
+ * as the class descriptors they share are already known.
+ * <p>
+ * The Deflate format records the checksum of the dictionary it was written
+ * with, so data written with a different dictionary is detected when it 
+ * is read.
+ * </p>
+ * 
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class SessionCompressor {
+
+	/**
+	 * Name of the Deflate algorithm, stored with each compressed Session.
+	 */
+	public static final String DEFLATE = "deflate";
+	
+	/**
+	 * Size of the buffer used while compressing and decompressing.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+	
+	/**
+	 * Deflate compression level.
+	 */
+	private final int level;
+	
+	/**
+	 * Preset dictionary, may be null.
+	 */
+	private final byte[] dictionary;
+	
+	/**
+	 * Checksum of the preset dictionary.
+	 */
+	private final long dictionaryChecksum;
+	
+	/**
+	 * Create a new compressor.
+	 * 
+	 * @param level Deflate compression level, from 0 to 9 or -1 for the default
+	 * @param dictionary preset dictionary, may be null
+	 */
+	public SessionCompressor(int level, byte[] dictionary) {
+		this.level = level;
+		this.dictionary = dictionary;
+		if (dictionary != null) {
+			Adler32 checksum = new Adler32();
+			checksum.update(dictionary);
+			this.dictionaryChecksum = checksum.getValue();
+		} else {
+			this.dictionaryChecksum = -1L;
+		}
+	}
+	
+	/**
+	 * Retrieve the name of the compression algorithm.
+	 * 
+	 * @return algorithm name
+	 */
+	public String getName() {
+		return DEFLATE;
+	}
+	
+	/**
+	 * Compress data.
+	 * 
+	 * @param data data to compress
+	 * @return compressed data
+	 */
+	public byte[] compress(byte[] data) {
+		Deflater deflater = new Deflater(this.level);
+		try {
+			if (this.dictionary != null) {
+				deflater.setDictionary(this.dictionary);
+			}
+			deflater.setInput(data);
+			deflater.finish();
+			
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2 + 64);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (!deflater.finished()) {
+				int length = deflater.deflate(buffer);
+				bos.write(buffer, 0, length);
+			}
+			return bos.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+	
+	/**
+	 * Decompress data written by {@link #compress(byte[])}.
+	 * 
+	 * @param data compressed data
+	 * @return decompressed data
+	 * @throws IOException if the data is corrupt, or was written with another dictionary
+	 */
+	public byte[] decompress(byte[] data) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+			
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length * 3);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (!inflater.finished()) {
+				int length = inflater.inflate(buffer);
+				if (length == 0) {
+					if (inflater.needsDictionary()) {
+						long checksum = inflater.getAdler() & 0xffffffffL;
+						if (this.dictionary == null || checksum != this.dictionaryChecksum) {
+							throw new IOException("Session data was compressed with an unknown dictionary [" + checksum + "]");
+						}
+						inflater.setDictionary(this.dictionary);
+					} else if (inflater.needsInput()) {
+						throw new EOFException("Compressed session data is truncated");
+					}
+				}
+				bos.write(buffer, 0, length);
+			}
+			return bos.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException("Compressed session data is corrupt", e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.store;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.mongodb.DBCursor;
+
+/**
+ * Iterator over the session ids returned by a cursor.  The ids are read
+ * from MongoDB a batch at a time, and the cursor is closed once it has
+ * been read to the end.  A caller that stops early should close the
+ * iterator.
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class SessionKeyIterator implements Iterator<String>, Closeable {
+
+	private final DBCursor cursor;
+	private boolean closed = false;
+
+	/**
+	 * Create an iterator over a cursor of session documents.
+	 *
+	 * @param cursor Cursor returning at least the <em>_id</em> and route of each session
+	 */
+	public SessionKeyIterator(DBCursor cursor) {
+		this.cursor = cursor;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean hasNext() {
+		if (this.closed) {
+			return false;
+		}
+		if (!this.cursor.hasNext()) {
+			this.close();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String next() {
+		if (!this.hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return MongoStore.decodeId(this.cursor.next());
+	}
+
+	/**
+	 * Not supported, sessions are removed through the Store.
+	 */
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Close the underlying cursor.
+	 */
+	@Override
+	public void close() {
+		if (!this.closed) {
+			this.closed = true;
+			this.cursor.close();
+		}
+	}
+}
@@ -0,0 +1,386 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.juli.logging.Log;
+
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+/**
+ * Queue of session writes that are sent to MongoDB by a background thread.
+ * <p>
+ * Writes are keyed by session id, so a newer write for a session replaces
+ * the one that is still pending.  The flusher thread sends the pending writes
+ * in unordered bulk operations, either every flush interval or as soon as a
+ * full batch is waiting.  Writes that fail because MongoDB could not be reached
+ * are queued again, unless they have been replaced or cancelled in the meantime.
+ * </p>
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class WriteBehindQueue implements Runnable {
+
+	/**
+	 * A write waiting to be sent to MongoDB.
+	 */
+	private static final class PendingWrite {
+		private final DBObject query;
+		private final DBObject document;
+		private final boolean replace;
+
+		private PendingWrite(DBObject query, DBObject document, boolean replace) {
+			this.query = query;
+			this.document = document;
+			this.replace = replace;
+		}
+	}
+
+	/**
+	 * Pending writes, by session id, in the order they were first queued.
+	 */
+	private final Map<String, PendingWrite> pending = new LinkedHashMap<String, PendingWrite>();
+
+	/**
+	 * Ids of the sessions in the batch being sent.
+	 */
+	private volatile Set<String> inFlight = Collections.emptySet();
+
+	/**
+	 * Ids of the sessions in the batch being sent whose write was cancelled,
+	 * so they are not queued again if the batch fails.
+	 */
+	private final Set<String> cancelled = new HashSet<String>();
+
+	/**
+	 * Held while a batch is sent, so single sessions can wait for their
+	 * write to complete.
+	 */
+	private final ReentrantLock flushLock = new ReentrantLock();
+
+	private final DBCollection collection;
+	private final WriteConcern writeConcern;
+	private final int batchSize;
+	private final long flushIntervalMs;
+	private final int queueLimit;
+	private final Log log;
+
+	private volatile boolean running = false;
+	private Thread flusher;
+
+	/**
+	 * Create a queue for a collection.
+	 *
+	 * @param collection Collection the sessions are written to
+	 * @param writeConcern Write concern of the bulk operations
+	 * @param batchSize Maximum number of writes in a bulk operation
+	 * @param flushIntervalMs Maximum time, in milliseconds, a write waits before it is sent
+	 * @param queueLimit Maximum number of pending writes
+	 * @param log Log for failed writes
+	 */
+	public WriteBehindQueue(DBCollection collection, WriteConcern writeConcern, int batchSize,
+			long flushIntervalMs, int queueLimit, Log log) {
+		this.collection = collection;
+		this.writeConcern = writeConcern;
+		this.batchSize = Math.max(1, batchSize);
+		this.flushIntervalMs = Math.max(1L, flushIntervalMs);
+		this.queueLimit = Math.max(1, queueLimit);
+		this.log = log;
+	}
+
+	/**
+	 * Start the flusher thread.
+	 *
+	 * @param threadName Name of the flusher thread
+	 */
+	public synchronized void start(String threadName) {
+		this.running = true;
+		this.flusher = new Thread(this, threadName);
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/**
+	 * Stop the flusher thread and send whatever is still pending.
+	 */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			this.running = false;
+			thread = this.flusher;
+			this.flusher = null;
+			this.notifyAll();
+		}
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/* the final flush runs on the stopping thread */
+		this.flushPending();
+		int lost = this.size();
+		if (lost > 0) {
+			this.log.error("Unable to write " + lost + " queued sessions to MongoDB");
+		}
+	}
+
+	/**
+	 * Queue a write for a session.  A write already pending for the session
+	 * is replaced.
+	 *
+	 * @param id Session id
+	 * @param query Query selecting the session document
+	 * @param document Replacement document, or update
+	 * @param replace true if the document replaces the stored session, and
+	 * 	is inserted if it does not exist
+	 * @return true if the write was queued, false if the queue is full and the
+	 * 	write must be done by the caller
+	 */
+	public synchronized boolean offer(String id, DBObject query, DBObject document, boolean replace) {
+		if (!this.pending.containsKey(id) && this.pending.size() >= this.queueLimit) {
+			this.notifyAll();
+			return false;
+		}
+		this.pending.put(id, new PendingWrite(query, document, replace));
+		if (this.pending.size() >= this.batchSize) {
+			this.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Determine if a write is pending for a session.
+	 *
+	 * @param id Session id
+	 * @return true if a write is pending
+	 */
+	public synchronized boolean isPending(String id) {
+		return this.pending.containsKey(id);
+	}
+
+	/**
+	 * @return the number of pending writes
+	 */
+	public synchronized int size() {
+		return this.pending.size();
+	}
+
+	/**
+	 * Make sure any write for a session has reached MongoDB, sending it
+	 * right away if it is still pending.
+	 *
+	 * @param id Session id
+	 * @throws MongoException if the pending write fails
+	 */
+	public void flush(String id) {
+		if (!this.isPending(id) && !this.inFlight.contains(id)) {
+			return;
+		}
+		this.flushLock.lock();
+		try {
+			PendingWrite write;
+			synchronized (this) {
+				write = this.pending.remove(id);
+			}
+			if (write != null) {
+				this.write(write);
+			}
+		} finally {
+			this.flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Drop the pending write for a session, and wait for a write that is
+	 * being sent to complete, so a removed session is not written again.
+	 *
+	 * @param id Session id
+	 */
+	public void cancel(String id) {
+		synchronized (this) {
+			this.pending.remove(id);
+			if (this.inFlight.contains(id)) {
+				this.cancelled.add(id);
+			}
+		}
+		if (this.inFlight.contains(id)) {
+			this.flushLock.lock();
+			this.flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Drop all pending writes, and wait for the batch being sent to complete.
+	 */
+	public void cancelAll() {
+		synchronized (this) {
+			this.pending.clear();
+			this.cancelled.addAll(this.inFlight);
+		}
+		this.flushLock.lock();
+		this.flushLock.unlock();
+	}
+
+	/**
+	 * Send pending writes every flush interval, or as soon as a batch is full.
+	 * After a failure the thread waits a full interval before trying again.
+	 */
+	@Override
+	public void run() {
+		boolean failed = false;
+		while (this.running) {
+			synchronized (this) {
+				if (this.running && (failed || this.pending.size() < this.batchSize)) {
+					try {
+						this.wait(this.flushIntervalMs);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+			try {
+				failed = !this.flushPending();
+			} catch (RuntimeException e) {
+				this.log.error("Unable to write queued sessions to MongoDB", e);
+				failed = true;
+			}
+		}
+	}
+
+	/**
+	 * Send all pending writes, a batch at a time.  Stops at the first batch
+	 * that could not be sent, leaving the rest for the next flush.
+	 *
+	 * @return true if the queue was emptied, false if a batch failed
+	 */
+	private boolean flushPending() {
+		while (true) {
+			this.flushLock.lock();
+			try {
+				Map<String, PendingWrite> batch = this.drain();
+				if (batch.isEmpty()) {
+					return true;
+				}
+				if (!this.send(batch)) {
+					return false;
+				}
+			} finally {
+				synchronized (this) {
+					this.inFlight = Collections.emptySet();
+					this.cancelled.clear();
+				}
+				this.flushLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Remove the oldest batch of pending writes from the queue.
+	 *
+	 * @return writes by session id
+	 */
+	private synchronized Map<String, PendingWrite> drain() {
+		Map<String, PendingWrite> batch = new LinkedHashMap<String, PendingWrite>();
+		Iterator<Map.Entry<String, PendingWrite>> entries = this.pending.entrySet().iterator();
+		while (entries.hasNext() && batch.size() < this.batchSize) {
+			Map.Entry<String, PendingWrite> entry = entries.next();
+			batch.put(entry.getKey(), entry.getValue());
+			entries.remove();
+		}
+		this.inFlight = new HashSet<String>(batch.keySet());
+		return batch;
+	}
+
+	/**
+	 * Send a batch of writes in an unordered bulk operation.
+	 *
+	 * @param batch writes by session id
+	 * @return true if the batch was sent, false if it was queued again
+	 */
+	private boolean send(Map<String, PendingWrite> batch) {
+		List<String> ids = new ArrayList<String>(batch.keySet());
+		BulkWriteOperation bulk = this.collection.initializeUnorderedBulkOperation();
+		for (PendingWrite write : batch.values()) {
+			if (write.replace) {
+				bulk.find(write.query).upsert().replaceOne(write.document);
+			} else {
+				bulk.find(write.query).updateOne(write.document);
+			}
+		}
+
+		try {
+			bulk.execute(this.writeConcern);
+		} catch (BulkWriteException e) {
+			/* individual writes were rejected, retrying them will not help */
+			for (BulkWriteError error : e.getWriteErrors()) {
+				this.log.error("Unable to write session [" + ids.get(error.getIndex()) + "] to MongoDB: " + error.getMessage());
+			}
+			if (e.getWriteConcernError() != null) {
+				this.log.error("Unable to confirm queued session writes: " + e.getWriteConcernError().getMessage());
+			}
+		} catch (MongoException e) {
+			this.log.error("Unable to write " + batch.size() + " queued sessions to MongoDB, they will be retried", e);
+			this.requeue(batch);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Send a single write.
+	 *
+	 * @param write Pending write
+	 */
+	private void write(PendingWrite write) {
+		this.collection.update(write.query, write.document, write.replace, false, this.writeConcern);
+	}
+
+	/**
+	 * Put back writes that could not be sent, unless a newer write for the
+	 * same session has been queued since, or the write was cancelled.
+	 *
+	 * @param batch writes by session id
+	 */
+	private synchronized void requeue(Map<String, PendingWrite> batch) {
+		Map<String, PendingWrite> newer = new LinkedHashMap<String, PendingWrite>(this.pending);
+		this.pending.clear();
+		for (Map.Entry<String, PendingWrite> entry : batch.entrySet()) {
+			if (!newer.containsKey(entry.getKey()) && !this.cancelled.contains(entry.getKey())) {
+				this.pending.put(entry.getKey(), entry.getValue());
+			}
+		}
+		this.pending.putAll(newer);
+	}
+}
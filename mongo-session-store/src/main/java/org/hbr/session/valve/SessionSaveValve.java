@@ -0,0 +1,162 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.valve;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletException;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.hbr.session.manager.MongoPersistentManager;
+
+import com.mongodb.MongoException;
+
+/**
+ * Valve that saves the session of a request once the request is done, if
+ * the request modified it, so other nodes see the changes right away.
+ * Sessions that were only read are left to the manager's persistence checks.
+ * <p>
+ * Requests for static resources are skipped.  The URIs skipped are set with
+ * {@link #setFilter(String)}, a regular expression matched against the
+ * decoded request URI.
+ * </p>
+ * <p>
+ * Requires the {@link MongoPersistentManager}, the valve does nothing with
+ * other managers.
+ * </p>
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class SessionSaveValve extends ValveBase {
+
+	/**
+	 * The descriptive information about this implementation.
+	 */
+	private static final String info = "org.hbr.session.valve.SessionSaveValve/1.0";
+
+	/**
+	 * URIs of static assets, which are skipped by default: stylesheets,
+	 * scripts, images, fonts and source maps.  Pages, even <em>.html</em> 
+	 * ones, may be rendered by the application and change the session.
+	 */
+	public static final String DEFAULT_FILTER = ".*\\.(css|js|gif|jpe?g|png|ico|svg|woff2?|ttf|eot|map)";
+
+	/**
+	 * Regular expression of the URIs whose sessions are not saved.
+	 */
+	private String filter = DEFAULT_FILTER;
+
+	/**
+	 * Compiled {@link #filter}, or null to save after every request.
+	 */
+	private Pattern filterPattern = Pattern.compile(DEFAULT_FILTER, Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * Create a new valve.
+	 */
+	public SessionSaveValve() {
+		super(true);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getInfo() {
+		return info;
+	}
+
+	/**
+	 * Process the request, then save its session if it was modified.
+	 *
+	 * @param request Request being processed
+	 * @param response Response being created
+	 * @throws IOException
+	 * @throws ServletException
+	 */
+	@Override
+	public void invoke(Request request, Response response) throws IOException, ServletException {
+		try {
+			this.getNext().invoke(request, response);
+		} finally {
+			if (!this.isFiltered(request.getDecodedRequestURI())) {
+				this.saveSession(request);
+			}
+		}
+	}
+
+	/**
+	 * Save the session of a request, if it was modified.
+	 *
+	 * @param request Request
+	 */
+	protected void saveSession(Request request) {
+		/* an invalidated session was removed from the Store already */
+		Session session = request.getSessionInternal(false);
+		if (session == null) {
+			return;
+		}
+		Context context = request.getContext();
+		Manager manager = context == null ? null : context.getManager();
+		if (manager instanceof MongoPersistentManager) {
+			try {
+				((MongoPersistentManager)manager).saveIfModified(session);
+			} catch (MongoException e) {
+				/* already logged by the store, the persistence checks will save it later */
+			} catch (RuntimeException e) {
+				context.getLogger().error("Unable to save session [" + session.getIdInternal() 
+						+ ":" + context.getName() + "]", e);
+			}
+		}
+	}
+
+	/**
+	 * Determine if the session of a request is not saved.
+	 *
+	 * @param uri Decoded request URI
+	 * @return true if the URI matches the filter
+	 */
+	protected boolean isFiltered(String uri) {
+		Pattern pattern = this.filterPattern;
+		return pattern != null && uri != null && pattern.matcher(uri).matches();
+	}
+
+	/**
+	 * @return the filter
+	 */
+	public String getFilter() {
+		return filter;
+	}
+
+	/**
+	 * @param filter the filter to set, empty to save after every request
+	 */
+	public void setFilter(String filter) {
+		this.filter = filter;
+		if (filter == null || filter.isEmpty()) {
+			this.filterPattern = null;
+		} else {
+			this.filterPattern = Pattern.compile(filter, Pattern.CASE_INSENSITIVE);
+		}
+	}
+}
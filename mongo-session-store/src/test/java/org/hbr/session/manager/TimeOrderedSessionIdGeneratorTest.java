@@ -0,0 +1,67 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * JUnit Test Case for {@link TimeOrderedSessionIdGenerator}.
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class TimeOrderedSessionIdGeneratorTest {
+
+	/**
+	 * Test that ids sort in the order they were created, and keep the
+	 * random part and the jvmRoute.
+	 */
+	@Test
+	public void testTimeOrdered() throws Exception {
+		TimeOrderedSessionIdGenerator generator = new TimeOrderedSessionIdGenerator();
+		generator.setSessionIdLength(16);
+		generator.setJvmRoute("node1");
+
+		long before = System.currentTimeMillis();
+		String first = generator.generateSessionId();
+		Thread.sleep(5);
+		String second = generator.generateSessionId();
+
+		assertTrue(first.compareTo(second) < 0);
+		assertEquals(TimeOrderedSessionIdGenerator.PREFIX_LENGTH + 32 + ".node1".length(), first.length());
+		assertTrue(first.endsWith(".node1"));
+		assertTrue(first.matches("[0-9A-F]+\\.node1"));
+		assertFalse(first.substring(TimeOrderedSessionIdGenerator.PREFIX_LENGTH)
+				.equals(second.substring(TimeOrderedSessionIdGenerator.PREFIX_LENGTH)));
+
+		long created = TimeOrderedSessionIdGenerator.getTime(first);
+		assertTrue(created >= before && created <= System.currentTimeMillis());
+	}
+
+	/**
+	 * Test that ids without a time prefix are recognized.
+	 */
+	@Test
+	public void testGetTimeWithoutPrefix() {
+		assertEquals(-1L, TimeOrderedSessionIdGenerator.getTime("ABC"));
+		assertEquals(-1L, TimeOrderedSessionIdGenerator.getTime("not-a-time-prefix"));
+		assertEquals(-1L, TimeOrderedSessionIdGenerator.getTime(null));
+	}
+}
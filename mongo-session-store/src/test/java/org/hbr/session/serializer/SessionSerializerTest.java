@@ -0,0 +1,176 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package org.hbr.session.serializer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.session.StandardSession;
+import org.hbr.session.manager.MongoPersistentManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+
+/**
+ * JUnit Test Case for the {@link SessionSerializer} implementations.
+ * 
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class SessionSerializerTest {
+	
+	/** Random Session */
+	private String sessionId = UUID.randomUUID().toString();
+	
+	/** Test Session Instance */
+	private StandardSession testSession;
+	
+	/** Session Manager */
+	private MongoPersistentManager manager = new MongoPersistentManager();
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		/* set up the manager */
+		this.manager.setContainer(new StandardContext());
+		this.manager.getContainer().setName("test");
+		this.manager.getContainer().setParent(new StandardEngine());
+		this.manager.getContainer().getParent().setName("parent");
+		
+		/* create the test session */
+		this.testSession = (StandardSession)this.manager.createSession(this.sessionId);
+		
+		/* add some data */
+		this.testSession.setAttribute("test", "test", false);
+		this.testSession.setAttribute("date", new Date(0L), false);
+		this.testSession.setAttribute("list", new ArrayList<String>(Collections.singletonList("test")), false);
+	}
+
+	/**
+	 * Test method for {@link JavaSessionSerializer#serialize(StandardSession)}
+	 * and {@link JavaSessionSerializer#deserialize(byte[], StandardSession, ClassLoader)}.
+	 */
+	@Test
+	public void testJavaSerializer() throws Exception {
+		this.assertSessionRoundTrip(new JavaSessionSerializer());
+	}
+
+	/**
+	 * Test method for {@link KryoSessionSerializer#serialize(StandardSession)}
+	 * and {@link KryoSessionSerializer#deserialize(byte[], StandardSession, ClassLoader)}.
+	 */
+	@Test
+	public void testKryoSerializer() throws Exception {
+		KryoSessionSerializer serializer = new KryoSessionSerializer();
+		List<Class<?>> classes = new ArrayList<Class<?>>();
+		classes.add(ArrayList.class);
+		serializer.registerClasses(classes);
+		this.assertSessionRoundTrip(serializer);
+	}
+
+	/**
+	 * Test method for {@link KryoSessionSerializer#serializeAttribute(Object)}
+	 * and {@link KryoSessionSerializer#deserializeAttribute(byte[], ClassLoader)}.
+	 */
+	@Test
+	public void testKryoAttribute() throws Exception {
+		KryoSessionSerializer serializer = new KryoSessionSerializer();
+		byte[] data = serializer.serializeAttribute(new Date(0L));
+		assertEquals(new Date(0L), serializer.deserializeAttribute(data, null));
+	}
+
+	/**
+	 * Test that classes cannot be registered once the Kryo serializer is used.
+	 */
+	@Test
+	public void testKryoRegisterAfterUse() throws Exception {
+		KryoSessionSerializer serializer = new KryoSessionSerializer();
+		serializer.serializeAttribute("test");
+		try {
+			serializer.registerClasses(Collections.<Class<?>>singletonList(ArrayList.class));
+			fail("Classes registered after the serializer was used");
+		} catch (IllegalStateException e) {
+			/* expected */
+		}
+	}
+
+	/**
+	 * Test that pooled Kryo instances do not keep the application's class loader.
+	 */
+	@Test
+	public void testKryoReleasesClassLoader() throws Exception {
+		final List<Kryo> created = new ArrayList<Kryo>();
+		KryoSessionSerializer serializer = new KryoSessionSerializer() {
+			@Override
+			protected Kryo createKryo() {
+				Kryo kryo = super.createKryo();
+				created.add(kryo);
+				return kryo;
+			}
+		};
+		byte[] data = serializer.serializeAttribute(new Date(0L));
+		URLClassLoader appLoader = new URLClassLoader(new URL[0], getClass().getClassLoader());
+		try {
+			assertEquals(new Date(0L), serializer.deserializeAttribute(data, appLoader));
+		} finally {
+			appLoader.close();
+		}
+		assertEquals(1, created.size());
+		assertSame(KryoSessionSerializer.class.getClassLoader(), created.get(0).getClassLoader());
+		
+		/* closing empties the pool */
+		serializer.close();
+		serializer.serializeAttribute(new Date(0L));
+		assertEquals(2, created.size());
+	}
+	
+	/**
+	 * Serialize the test session and read it back into an empty session.
+	 * 
+	 * @param serializer serializer to test
+	 * @throws Exception
+	 */
+	private void assertSessionRoundTrip(SessionSerializer serializer) throws Exception {
+		byte[] data = serializer.serialize(this.testSession);
+		
+		StandardSession session = (StandardSession)this.manager.createEmptySession();
+		serializer.deserialize(data, session, null);
+		
+		assertEquals(this.sessionId, session.getIdInternal());
+		assertEquals(this.testSession.getCreationTime(), session.getCreationTime());
+		assertEquals(this.testSession.getMaxInactiveInterval(), session.getMaxInactiveInterval());
+		assertEquals("test", session.getAttribute("test"));
+		assertEquals(new Date(0L), session.getAttribute("date"));
+		assertEquals(Collections.singletonList("test"), session.getAttribute("list"));
+		assertNull(session.getAttribute("missing"));
+	}
+}
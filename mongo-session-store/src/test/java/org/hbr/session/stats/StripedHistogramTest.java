@@ -0,0 +1,105 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * JUnit Test Case for {@link StripedHistogram}.
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class StripedHistogramTest {
+
+	/**
+	 * Test that every value falls in a bucket whose range holds it, and 
+	 * that the buckets are within the expected precision.
+	 */
+	@Test
+	public void testBuckets() {
+		long[] values = { 0L, 1L, 7L, 8L, 9L, 15L, 16L, 1000L, 123456789L, Long.MAX_VALUE };
+		for (long value : values) {
+			int bucket = StripedHistogram.bucketOf(value);
+			assertTrue(bucket < StripedHistogram.BUCKETS);
+			assertTrue(StripedHistogram.highestValueOf(bucket) >= value);
+			assertTrue(StripedHistogram.highestValueOf(bucket) - value <= value / 8);
+			if (bucket > 0) {
+				assertTrue(StripedHistogram.highestValueOf(bucket - 1) < value);
+			}
+		}
+	}
+
+	/**
+	 * Test the percentiles of a known distribution.
+	 */
+	@Test
+	public void testSnapshot() {
+		StripedHistogram histogram = new StripedHistogram(4);
+		for (long value = 1; value <= 1000; value++) {
+			histogram.record(value);
+		}
+
+		HistogramSnapshot snapshot = histogram.snapshot();
+		assertEquals(1000L, snapshot.getCount());
+		assertEquals(500.5, snapshot.getMean(), 0.001);
+		assertEquals(1000L, snapshot.getMax());
+		assertWithin(500L, snapshot.getP50());
+		assertWithin(900L, snapshot.getP90());
+		assertWithin(990L, snapshot.getP99());
+		assertTrue(snapshot.getP999() <= snapshot.getMax());
+
+		histogram.reset();
+		assertEquals(0L, histogram.snapshot().getCount());
+		assertEquals(0L, histogram.snapshot().getP99());
+	}
+
+	/**
+	 * Test that values recorded by concurrent threads are all counted.
+	 */
+	@Test
+	public void testConcurrentRecording() throws Exception {
+		final StripedHistogram histogram = new StripedHistogram(4);
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int n = 0; n < 10000; n++) {
+						histogram.record(n);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(80000L, histogram.snapshot().getCount());
+		assertEquals(9999L, histogram.snapshot().getMax());
+	}
+
+	/**
+	 * Assert that a percentile is within the precision of the histogram.
+	 */
+	private static void assertWithin(long expected, long actual) {
+		assertTrue("expected about " + expected + " but was " + actual, 
+				actual >= expected && actual <= expected + expected / 8);
+	}
+}
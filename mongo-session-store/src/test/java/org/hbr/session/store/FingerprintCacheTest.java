@@ -0,0 +1,85 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.store;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+/**
+ * JUnit Test Case for {@link FingerprintCache}.
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class FingerprintCacheTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Test fingerprints against the xxHash64 reference values.
+	 */
+	@Test
+	public void testFingerprint() {
+		assertEquals(0xEF46DB3751D8E999L, FingerprintCache.fingerprint(new byte[0]));
+		assertEquals(0xD24EC4F1A98C6E5BL, FingerprintCache.fingerprint("a".getBytes(UTF8)));
+		assertEquals(0x44BC2CF5AD770999L, FingerprintCache.fingerprint("abc".getBytes(UTF8)));
+		assertEquals(0xFBCEA83C8A378BF1L, FingerprintCache.fingerprint("Nobody inspects the spammish repetition".getBytes(UTF8)));
+	}
+
+	/**
+	 * Test matching data against the cached fingerprints.
+	 */
+	@Test
+	public void testContains() {
+		FingerprintCache cache = new FingerprintCache(16);
+		assertEquals(false, cache.contains("session", 1L));
+
+		cache.put("session", 1L);
+		assertEquals(true, cache.contains("session", 1L));
+		assertEquals(false, cache.contains("session", 2L));
+		assertEquals(false, cache.contains("other", 1L));
+
+		cache.remove("session");
+		assertEquals(false, cache.contains("session", 1L));
+
+		cache.put("session", 1L);
+		cache.clear();
+		assertEquals(false, cache.contains("session", 1L));
+	}
+
+	/**
+	 * Test that the cache does not grow past its capacity.
+	 */
+	@Test
+	public void testCapacity() {
+		FingerprintCache cache = new FingerprintCache(100);
+		assertEquals(128, cache.getCapacity());
+		for (int i = 0; i < 1000; i++) {
+			cache.put("session" + i, i + 1);
+		}
+		int held = 0;
+		for (int i = 0; i < 1000; i++) {
+			if (cache.contains("session" + i, i + 1)) {
+				held++;
+			}
+		}
+		assertEquals(128, cache.getCapacity());
+		assertEquals(true, held <= 128);
+	}
+}
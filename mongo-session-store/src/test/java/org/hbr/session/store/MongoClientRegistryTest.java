@@ -0,0 +1,84 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+
+/**
+ * JUnit Test Case for {@link MongoClientRegistry}.
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class MongoClientRegistryTest {
+
+	/** Number of clients created by the factory */
+	private final AtomicInteger created = new AtomicInteger();
+
+	/** Factory for clients that are never used to connect */
+	private final MongoClientRegistry.ClientFactory factory = new MongoClientRegistry.ClientFactory() {
+		@Override
+		public MongoClient createClient() throws UnknownHostException {
+			created.incrementAndGet();
+			return new MongoClient(new ServerAddress("127.0.0.1", 27017));
+		}
+	};
+
+	/**
+	 * Test that stores with the same settings share a client until the
+	 * last one releases it.
+	 */
+	@Test
+	public void testShared() throws Exception {
+		MongoClient first = MongoClientRegistry.acquire("test|shared", "shared", this.factory);
+		MongoClient second = MongoClientRegistry.acquire("test|shared", "shared", this.factory);
+		assertSame(first, second);
+		assertEquals(1, this.created.get());
+		assertEquals(2, MongoClientRegistry.getReferences(first));
+
+		MongoClientRegistry.release(first);
+		assertEquals(1, MongoClientRegistry.getReferences(first));
+		MongoClientRegistry.release(second);
+		assertEquals(0, MongoClientRegistry.getReferences(first));
+
+		/* once released, the next store gets a new client */
+		MongoClient third = MongoClientRegistry.acquire("test|shared", "shared", this.factory);
+		assertNotSame(first, third);
+		MongoClientRegistry.release(third);
+	}
+
+	/**
+	 * Test that stores with different settings get their own client.
+	 */
+	@Test
+	public void testSeparate() throws Exception {
+		MongoClient first = MongoClientRegistry.acquire("test|first", "first", this.factory);
+		MongoClient second = MongoClientRegistry.acquire("test|second", "second", this.factory);
+		assertNotSame(first, second);
+		MongoClientRegistry.release(first);
+		MongoClientRegistry.release(second);
+	}
+}
@@ -15,20 +15,41 @@
  */
 package org.hbr.session.store;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
 
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionEvent;
+
 import org.apache.catalina.Session;
 import org.apache.catalina.core.StandardContext;
 import org.apache.catalina.core.StandardEngine;
 import org.apache.catalina.session.StandardSession;
+import org.hbr.session.manager.LazyAttribute;
 import org.hbr.session.manager.MongoPersistentManager;
+import org.hbr.session.manager.MongoSession;
+import org.hbr.session.manager.TimeOrderedSessionIdGenerator;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
 /**
  * JUnit Test Case for {@link MongoStore}.  Uses an embedded MongoDB for testing.
  * 
@@ -98,6 +119,55 @@ public class MongoStoreTest {
 		assertNotNull(keys);
 	}
 
+	/**
+	 * Test that the store builds its time to live index.
+	 */
+	@Test
+	public void testIndexes() throws Exception {
+		boolean found = false;
+		for (DBObject index : this.mongoStore.collection.getIndexInfo()) {
+			found |= index.get("key").equals(new BasicDBObject(MongoStore.expireAtProperty, 1)) 
+					&& Integer.valueOf(0).equals(index.get("expireAfterSeconds"));
+		}
+		assertTrue(found);
+	}
+
+	/**
+	 * Test that the store warms up its connections when it starts.
+	 */
+	@Test
+	public void testWarmUp() throws Exception {
+		/* restart the store, it fails to start if the connections are not warmed up */
+		this.mongoStore.stop();
+		this.mongoStore.setMinPoolSize(2);
+		this.mongoStore.setWarmUp(true);
+		this.mongoStore.setWarmUpRequired(true);
+		this.mongoStore.start();
+		assertNotNull(this.mongoStore.getConnectionPoolUsage());
+	}
+
+	/**
+	 * Test method for {@link org.hbr.session.store.MongoStore#keyIterator()}.
+	 */
+	@Test
+	public void testKeyIterator() throws Exception {
+		/* save our session, it should be one of the keys */
+		this.mongoStore.save(this.testSession);
+		boolean found = false;
+		SessionKeyIterator keys = this.mongoStore.keyIterator();
+		try {
+			while (keys.hasNext()) {
+				found |= this.sessionId.equals(keys.next());
+			}
+		} finally {
+			keys.close();
+		}
+		assertTrue(found);
+		
+		/* the exact size always counts the saved session */
+		assertTrue(this.mongoStore.getExactSize() > 0);
+	}
+
 	/**
 	 * Test method for {@link org.hbr.session.store.MongoStore#load(java.lang.String)}.
 	 */
@@ -144,4 +214,598 @@ public class MongoStoreTest {
 		assertNotNull(session);
 		assertNotNull(((StandardSession)session).getAttribute("test"));
 	}
+
+	/**
+	 * Test that loads and saves are recorded in the store's statistics.
+	 */
+	@Test
+	public void testStatistics() throws Exception {
+		this.mongoStore.getStatistics().reset();
+		this.mongoStore.save(this.testSession);
+		assertNotNull(this.mongoStore.load(this.sessionId));
+		
+		assertEquals(1L, this.mongoStore.getStatistics().getSaveLatency().getCount());
+		assertEquals(1L, this.mongoStore.getStatistics().getLoadLatency().getCount());
+		assertTrue(this.mongoStore.getStatistics().getBytesWritten() > 0);
+		assertTrue(this.mongoStore.getStatistics().getBytesRead() > 0);
+		assertEquals(0L, this.mongoStore.getStatistics().getSaveErrors());
+	}
+
+	/**
+	 * Test method for {@link org.hbr.session.store.MongoStore#loadAll(java.util.Collection)}.
+	 */
+	@Test
+	public void testLoadAll() throws Exception {
+		/* restart the store so the sessions take several batches */
+		this.mongoStore.stop();
+		this.mongoStore.setLoadBatchSize(2);
+		this.mongoStore.start();
+		
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 5; i++) {
+			StandardSession session = (StandardSession)this.manager.createSession(UUID.randomUUID().toString());
+			session.setAttribute("test", "test" + i, false);
+			this.mongoStore.save(session);
+			ids.add(session.getIdInternal());
+		}
+		ids.add(UUID.randomUUID().toString());
+		
+		Map<String, Session> sessions = this.mongoStore.loadAll(ids);
+		assertEquals(5, sessions.size());
+		for (int i = 0; i < 5; i++) {
+			assertEquals("test" + i, ((StandardSession)sessions.get(ids.get(i))).getAttribute("test"));
+		}
+		
+		/* the sessions are still active, so none are swapped in */
+		assertEquals(0, this.manager.swapInAll(ids));
+		
+		/* another node of the same context swaps them all in, a batch at a time */
+		MongoPersistentManager otherManager = new MongoPersistentManager();
+		otherManager.setContainer(this.manager.getContainer());
+		MongoStore otherStore = new MongoStore();
+		otherStore.setHosts("127.0.0.1:27017");
+		otherStore.setDbName("unitest");
+		otherStore.setLoadBatchSize(2);
+		otherStore.setManager(otherManager);
+		otherManager.setStore(otherStore);
+		otherManager.start();
+		try {
+			otherManager.load();
+			for (String id : ids.subList(0, 5)) {
+				assertNotNull(otherManager.findSession(id));
+			}
+		} finally {
+			otherManager.stop();
+		}
+	}
+
+	/**
+	 * Test that the persistence checks write sessions with several threads,
+	 * and no more than the limit of each pass.
+	 */
+	@Test
+	public void testParallelPersistenceChecks() throws Exception {
+		/* restart the manager so it creates its threads */
+		this.manager.stop();
+		this.manager.setPersistenceThreads(4);
+		this.manager.setMaxPersistencePerPass(2);
+		this.manager.setMaxIdleBackup(0);
+		this.manager.start();
+		
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 5; i++) {
+			ids.add(this.manager.createSession(UUID.randomUUID().toString()).getId());
+		}
+		int active = this.manager.getActiveSessions();
+		
+		/* only two sessions are backed up by a pass */
+		this.manager.processPersistenceChecks();
+		assertEquals(2, this.manager.getLastPersistencePassSessions());
+		assertEquals(active, this.manager.getActiveSessions());
+		
+		/* the following passes back up the other sessions, not the same ones again */
+		int backedUp = 2;
+		while (backedUp < active) {
+			this.manager.processPersistenceChecks();
+			int passSessions = this.manager.getLastPersistencePassSessions();
+			assertTrue(passSessions > 0 && passSessions <= 2);
+			backedUp += passSessions;
+		}
+		assertEquals(active, backedUp);
+		for (String id : ids) {
+			assertNotNull(this.mongoStore.load(id));
+		}
+		this.manager.processPersistenceChecks();
+		assertEquals(0, this.manager.getLastPersistencePassSessions());
+		
+		/* without a limit, every idle session is swapped out */
+		this.manager.setMaxPersistencePerPass(-1);
+		this.manager.setMaxIdleBackup(-1);
+		this.manager.setMaxIdleSwap(0);
+		this.manager.processPersistenceChecks();
+		assertEquals(active, this.manager.getLastPersistencePassSessions());
+		assertEquals(0, this.manager.getActiveSessions());
+		assertTrue(this.manager.getMaxPersistencePassMs() >= this.manager.getLastPersistencePassMs());
+	}
+
+	/**
+	 * Test method for {@link MongoPersistentManager#saveIfModified(Session)}.
+	 */
+	@Test
+	public void testSaveIfModified() throws Exception {
+		/* a new session has not been stored yet */
+		assertTrue(this.manager.saveIfModified(this.testSession));
+		assertNotNull(this.mongoStore.load(this.sessionId));
+		
+		/* only accessed, nothing to save */
+		this.testSession.access();
+		this.testSession.endAccess();
+		assertFalse(this.manager.saveIfModified(this.testSession));
+		
+		this.testSession.setAttribute("test", "modified", false);
+		assertTrue(this.manager.saveIfModified(this.testSession));
+		assertEquals("modified", ((StandardSession)this.mongoStore.load(this.sessionId)).getAttribute("test"));
+	}
+
+	/**
+	 * Test that new sessions are only written once they are promoted.
+	 */
+	@Test
+	public void testDeferNewSessions() throws Exception {
+		this.manager.setDeferNewSessions(true);
+		
+		/* a session that was accessed once is kept in memory */
+		String id = UUID.randomUUID().toString();
+		Session session = this.manager.createSession(id);
+		session.access();
+		session.endAccess();
+		assertFalse(this.manager.saveIfModified(session));
+		assertNull(this.mongoStore.load(id));
+		assertEquals(1, this.manager.getDeferredWrites());
+		
+		/* the second access promotes it */
+		session.access();
+		session.endAccess();
+		assertTrue(this.manager.saveIfModified(session));
+		assertNotNull(this.mongoStore.load(id));
+		
+		/* setting an attribute promotes a session right away */
+		assertTrue(this.manager.saveIfModified(this.testSession));
+		
+		/* a session that ends before it is promoted is never written */
+		this.manager.createSession(UUID.randomUUID().toString()).expire();
+		assertEquals(1, this.manager.getUnpersistedSessions());
+		
+		/* sessions that are not promoted do not use up the limit of a persistence pass */
+		for (int i = 0; i < 5; i++) {
+			this.manager.createSession(UUID.randomUUID().toString());
+		}
+		Session promoted = this.manager.createSession(UUID.randomUUID().toString());
+		promoted.getSession().setAttribute("test", "promoted");
+		this.manager.setMaxPersistencePerPass(1);
+		this.manager.setMaxIdleBackup(0);
+		this.manager.processPersistenceChecks();
+		assertEquals(1, this.manager.getLastPersistencePassSessions());
+		assertEquals(1, this.manager.getDeferredWrites());
+		assertNotNull(this.mongoStore.load(promoted.getId()));
+	}
+
+	/**
+	 * Test that the manager creates time ordered session ids when enabled.
+	 */
+	@Test
+	public void testTimeOrderedSessionIds() throws Exception {
+		this.manager.stop();
+		this.manager.setTimeOrderedSessionIds(true);
+		this.manager.start();
+		
+		long before = System.currentTimeMillis();
+		Session session = this.manager.createSession(null);
+		assertTrue(TimeOrderedSessionIdGenerator.getTime(session.getId()) >= before);
+		this.mongoStore.save(session);
+		assertNotNull(this.mongoStore.load(session.getId()));
+	}
+
+	/**
+	 * Test that sessions stored with compact ids are read back with their
+	 * full id, and that sessions stored with string ids can still be read.
+	 */
+	@Test
+	public void testCompactIds() throws Exception {
+		/* a session stored before compact ids were enabled */
+		this.mongoStore.save(this.testSession);
+		this.mongoStore.setCompactIds(true);
+		
+		String compactId = UUID.randomUUID().toString().replace("-", "").toUpperCase() + ".node1";
+		StandardSession compactSession = (StandardSession)this.manager.createSession(compactId);
+		compactSession.setAttribute("test", "compact", false);
+		this.mongoStore.save(compactSession);
+		
+		Session session = this.mongoStore.load(compactId);
+		assertNotNull(session);
+		assertEquals(compactId, session.getId());
+		assertEquals("compact", ((StandardSession)session).getAttribute("test"));
+		assertNotNull(this.mongoStore.load(this.sessionId));
+		assertEquals(2, this.mongoStore.loadAll(Arrays.asList(compactId, this.sessionId)).size());
+		assertTrue(Arrays.asList(this.mongoStore.keys()).contains(compactId));
+		
+		this.mongoStore.remove(compactId);
+		assertNull(this.mongoStore.load(compactId));
+	}
+
+	/**
+	 * Test method for {@link org.hbr.session.store.MongoStore#processExpires()}.
+	 */
+	@Test
+	public void testProcessExpires() throws Exception {
+		/* save a session that has already expired */
+		this.manager.setMaxInactiveInterval(0);
+		this.testSession.setMaxInactiveInterval(0);
+		this.mongoStore.save(this.testSession);
+		Thread.sleep(10);
+		
+		/* expired sessions are left to the time to live index, unless they must be loaded */
+		this.mongoStore.setLoadExpiredSessions(true);
+		this.mongoStore.processExpires();
+		assertNull(this.mongoStore.load(this.sessionId));
+	}
+
+	/**
+	 * Test method for {@link org.hbr.session.store.MongoStore#getExpiryLagSeconds()}.
+	 */
+	@Test
+	public void testExpiryLag() throws Exception {
+		/* save a session that expired a minute ago, it has not been purged yet */
+		this.testSession.setMaxInactiveInterval(0);
+		this.testSession.setCreationTime(System.currentTimeMillis() - 60000);
+		this.mongoStore.save(this.testSession);
+		assertTrue(this.mongoStore.getExpiryLagSeconds() >= 59);
+	}
+
+	/**
+	 * Test method for {@link org.hbr.session.store.MongoStore#save(org.apache.catalina.Session)}
+	 * and {@link org.hbr.session.store.MongoStore#load(java.lang.String)} when attributes
+	 * are stored separately.
+	 */
+	@Test
+	public void testLoadAndSaveAttributes() throws Exception {
+		this.mongoStore.setStoreAttributes(true);
+		
+		/* save the whole session */
+		this.mongoStore.save(this.testSession);
+		
+		/* change the session, this save should only write the changes */
+		this.testSession.setAttribute("test.changed", "changed", false);
+		this.mongoStore.save(this.testSession);
+		
+		/* load the session */
+		Session session = this.mongoStore.load(this.sessionId);
+		assertNotNull(session);
+		assertEquals("test", ((StandardSession)session).getAttribute("test"));
+		assertEquals("changed", ((StandardSession)session).getAttribute("test.changed"));
+	}
+
+	/**
+	 * Test method for {@link org.hbr.session.store.MongoStore#save(org.apache.catalina.Session)}
+	 * and {@link org.hbr.session.store.MongoStore#load(java.lang.String)} when attributes
+	 * of well known types are stored as native values.
+	 */
+	@Test
+	public void testLoadAndSaveNativeAttributes() throws Exception {
+		this.mongoStore.setStoreAttributes(true);
+		this.mongoStore.setNativeAttributes(true);
+		
+		HashMap<String, Object> preferences = new HashMap<String, Object>();
+		preferences.put("count", 3);
+		preferences.put("updated", new Date());
+		this.testSession.setAttribute("preferences", preferences, false);
+		this.testSession.setAttribute("serialized", new StringBuilder("serialized"), false);
+		this.mongoStore.save(this.testSession);
+		
+		/* change a native attribute, this save should only write the change */
+		this.testSession.setAttribute("count", 42L, false);
+		this.mongoStore.save(this.testSession);
+		
+		Session session = this.mongoStore.load(this.sessionId);
+		assertNotNull(session);
+		assertEquals("test", ((StandardSession)session).getAttribute("test"));
+		assertEquals(preferences, ((StandardSession)session).getAttribute("preferences"));
+		assertEquals(42L, ((StandardSession)session).getAttribute("count"));
+		assertEquals("serialized", ((StandardSession)session).getAttribute("serialized").toString());
+	}
+
+	/**
+	 * Test method for {@link org.hbr.session.store.MongoStore#load(java.lang.String)}
+	 * when attributes are only deserialized once they are read.
+	 */
+	@Test
+	public void testLoadLazyAttributes() throws Exception {
+		this.mongoStore.setStoreAttributes(true);
+		this.mongoStore.setLazyAttributes(true);
+		
+		this.testSession.setAttribute("cart", new ArrayList<String>(Arrays.asList("item")), false);
+		this.testSession.setAttribute("listener", new ActivationListener(), false);
+		this.mongoStore.save(this.testSession);
+		
+		/* activation listeners are read right away, the others when they are first used */
+		MongoSession session = (MongoSession)this.mongoStore.load(this.sessionId);
+		assertTrue(session.peekAttribute("cart") instanceof LazyAttribute);
+		assertFalse(session.peekAttribute("listener") instanceof LazyAttribute);
+		
+		/* attributes that were never read are written back as they were */
+		this.mongoStore.save(session);
+		session = (MongoSession)this.mongoStore.load(this.sessionId);
+		assertEquals(Arrays.asList("item"), session.getAttribute("cart"));
+		assertFalse(session.peekAttribute("cart") instanceof LazyAttribute);
+		assertEquals("test", session.getAttribute("test"));
+	}
+	
+	/**
+	 * Attribute that is notified when its session is activated.
+	 */
+	private static class ActivationListener implements HttpSessionActivationListener, Serializable {
+		
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public void sessionWillPassivate(HttpSessionEvent event) {
+		}
+
+		@Override
+		public void sessionDidActivate(HttpSessionEvent event) {
+		}
+	}
+
+	/**
+	 * Test method for {@link org.hbr.session.store.MongoStore#save(org.apache.catalina.Session)}
+	 * when a session is accessed but not modified.
+	 */
+	@Test
+	public void testTouchUnmodified() throws Exception {
+		this.mongoStore.setTouchUnmodifiedSessions(true);
+		this.mongoStore.setTouchThrottleSeconds(0);
+		
+		/* save the whole session */
+		this.mongoStore.save(this.testSession);
+		
+		/* access the session, this save should only update the access times */
+		Thread.sleep(10);
+		this.testSession.access();
+		this.testSession.endAccess();
+		this.mongoStore.save(this.testSession);
+		
+		/* load the session */
+		Session session = this.mongoStore.load(this.sessionId);
+		assertNotNull(session);
+		assertEquals(this.testSession.getThisAccessedTimeInternal(), ((StandardSession)session).getThisAccessedTimeInternal());
+	}
+
+	/**
+	 * Test method for {@link org.hbr.session.store.MongoStore#save(org.apache.catalina.Session)}
+	 * and {@link org.hbr.session.store.MongoStore#load(java.lang.String)} with compression.
+	 */
+	@Test
+	public void testLoadAndSaveCompressed() throws Exception {
+		this.mongoStore.setCompression("deflate");
+		this.mongoStore.setCompressionThreshold(0);
+		
+		/* save our session */
+		this.mongoStore.save(this.testSession);
+		
+		/* load the session */
+		Session session = this.mongoStore.load(this.sessionId);
+		assertNotNull(session);
+		assertEquals("test", ((StandardSession)session).getAttribute("test"));
+	}
+
+	/**
+	 * Test method for {@link org.hbr.session.store.MongoStore#save(org.apache.catalina.Session)}
+	 * and {@link org.hbr.session.store.MongoStore#load(java.lang.String)} when sessions are
+	 * written in the background.
+	 */
+	@Test
+	public void testLoadAndSaveWriteBehind() throws Exception {
+		/* restart the store so it creates the queue */
+		this.mongoStore.stop();
+		this.mongoStore.setWriteBehind(true);
+		this.mongoStore.setWriteBehindFlushIntervalMs(60000);
+		this.mongoStore.start();
+		
+		/* the save is queued, loading the session sends it */
+		this.mongoStore.save(this.testSession);
+		assertEquals(1, this.mongoStore.getWriteBehindQueueSize());
+		Session session = this.mongoStore.load(this.sessionId);
+		assertNotNull(session);
+		assertEquals("test", ((StandardSession)session).getAttribute("test"));
+		
+		/* stopping the store sends whatever is still queued */
+		this.testSession.setAttribute("test", "changed", false);
+		this.mongoStore.save(this.testSession);
+		this.mongoStore.stop();
+		this.mongoStore.setWriteBehind(false);
+		this.mongoStore.start();
+		session = this.mongoStore.load(this.sessionId);
+		assertEquals("changed", ((StandardSession)session).getAttribute("test"));
+	}
+
+	/**
+	 * Test method for {@link org.hbr.session.store.MongoStore#save(org.apache.catalina.Session)}
+	 * when a session is accessed but not modified, and sessions are written in the background.
+	 */
+	@Test
+	public void testTouchWriteBehind() throws Exception {
+		/* restart the store so it creates the queue */
+		this.mongoStore.stop();
+		this.mongoStore.setWriteBehind(true);
+		this.mongoStore.setWriteBehindFlushIntervalMs(60000);
+		this.mongoStore.setTouchUnmodifiedSessions(true);
+		this.mongoStore.setTouchThrottleSeconds(0);
+		this.mongoStore.start();
+		
+		/* save the whole session, loading it sends the write */
+		this.mongoStore.save(this.testSession);
+		assertNotNull(this.mongoStore.load(this.sessionId));
+		
+		/* the stored copy is gone, so the touch falls back to a full save */
+		this.mongoStore.collection.remove(new BasicDBObject("_id", this.sessionId));
+		Thread.sleep(10);
+		this.testSession.access();
+		this.testSession.endAccess();
+		this.mongoStore.save(this.testSession);
+		assertEquals(1, this.mongoStore.getWriteBehindQueueSize());
+		assertNotNull(this.mongoStore.load(this.sessionId));
+		
+		this.mongoStore.stop();
+		this.mongoStore.setWriteBehind(false);
+		this.mongoStore.start();
+	}
+
+	/**
+	 * Test method for {@link org.hbr.session.store.MongoStore#load(java.lang.String)}
+	 * with the near cache.
+	 */
+	@Test
+	public void testLoadNearCache() throws Exception {
+		/* restart the store so it creates the cache */
+		this.mongoStore.stop();
+		this.mongoStore.setNearCacheMaxBytes(1024 * 1024);
+		this.mongoStore.start();
+		
+		/* the save caches the session */
+		this.mongoStore.save(this.testSession);
+		assertEquals(1, this.mongoStore.getNearCacheSize());
+		Session session = this.mongoStore.load(this.sessionId);
+		assertEquals("test", ((StandardSession)session).getAttribute("test"));
+		
+		/* a change saved elsewhere has a new version, so the cached copy is not used */
+		StandardSession changedSession = (StandardSession)session;
+		changedSession.setAttribute("test", "changed", false);
+		this.mongoStore.nearCache.clear();
+		this.mongoStore.save(changedSession);
+		this.mongoStore.nearCache.put(this.sessionId, new BasicDBObject(MongoStore.versionProperty, 0L), 0);
+		session = this.mongoStore.load(this.sessionId);
+		assertEquals("changed", ((StandardSession)session).getAttribute("test"));
+	}
+
+	/**
+	 * Test method for {@link org.hbr.session.store.MongoStore#save(org.apache.catalina.Session)}
+	 * with the fingerprint cache.
+	 */
+	@Test
+	public void testSaveUnchanged() throws Exception {
+		/* restart the store so it creates the cache */
+		this.mongoStore.stop();
+		this.mongoStore.setFingerprintCacheSize(1000);
+		this.mongoStore.start();
+		
+		/* saving the same data again does not write it */
+		this.mongoStore.save(this.testSession);
+		this.mongoStore.save(this.testSession);
+		assertEquals(1, this.mongoStore.getStatistics().getUnchangedWrites());
+		
+		/* the stored session was removed elsewhere, so it is written again */
+		this.mongoStore.collection.remove(new BasicDBObject("_id", this.sessionId));
+		this.mongoStore.save(this.testSession);
+		assertEquals(1, this.mongoStore.getStatistics().getUnchangedWrites());
+		assertNotNull(this.mongoStore.load(this.sessionId));
+		
+		/* changed data is written */
+		this.testSession.setAttribute("test", "changed", false);
+		this.mongoStore.save(this.testSession);
+		assertEquals(1, this.mongoStore.getStatistics().getUnchangedWrites());
+		assertEquals("changed", ((StandardSession)this.mongoStore.load(this.sessionId)).getAttribute("test"));
+		
+		/* the stored data changed elsewhere, so the expiry refresh falls back to a full write */
+		this.mongoStore.setTimeToLive(60);
+		this.mongoStore.collection.update(new BasicDBObject("_id", this.sessionId), 
+				new BasicDBObject("$set", new BasicDBObject(MongoStore.fingerprintProperty, 0L)));
+		Thread.sleep(5);
+		this.mongoStore.save(this.testSession);
+		assertEquals(1, this.mongoStore.getStatistics().getUnchangedWrites());
+		
+		/* the stored data is the same */
+		Thread.sleep(5);
+		this.mongoStore.save(this.testSession);
+		assertEquals(2, this.mongoStore.getStatistics().getUnchangedWrites());
+	}
+
+	/**
+	 * Test that large sessions are stored in chunks, and read back whole.
+	 */
+	@Test
+	public void testSaveChunked() throws Exception {
+		/* restart the store with small chunks */
+		this.mongoStore.stop();
+		this.mongoStore.setChunkThreshold(1024);
+		this.mongoStore.setChunkSize(512);
+		this.mongoStore.setNearCacheMaxBytes(1024 * 1024);
+		this.mongoStore.start();
+		
+		/* random data does not compress */
+		byte[] large = new byte[3000];
+		new Random(1L).nextBytes(large);
+		this.testSession.setAttribute("large", large, false);
+		this.mongoStore.save(this.testSession);
+		
+		/* only a pointer to the chunks is stored with the session */
+		DBObject stored = this.mongoStore.collection.findOne(new BasicDBObject("_id", this.sessionId));
+		assertFalse(stored.containsField(MongoStore.sessionDataProperty));
+		int chunks = ((Number)stored.get(MongoStore.chunksProperty)).intValue();
+		assertTrue(chunks > 1);
+		BasicDBObject chunkQuery = new BasicDBObject(MongoStore.chunkSessionProperty, this.sessionId);
+		assertEquals(chunks, this.mongoStore.chunks.count(chunkQuery));
+		
+		StandardSession session = (StandardSession)this.mongoStore.load(this.sessionId);
+		assertTrue(Arrays.equals(large, (byte[])session.getAttribute("large")));
+		
+		/* the near cache would only hold the pointer */
+		assertEquals(0, this.mongoStore.getNearCacheSize());
+		
+		/* a new save replaces the chunks */
+		this.testSession.setAttribute("test", "changed", false);
+		this.mongoStore.save(this.testSession);
+		assertEquals(chunks, this.mongoStore.chunks.count(chunkQuery));
+		session = (StandardSession)this.mongoStore.load(this.sessionId);
+		assertEquals("changed", session.getAttribute("test"));
+		
+		/* removing the session removes its chunks */
+		this.mongoStore.remove(this.sessionId);
+		assertEquals(0, this.mongoStore.chunks.count(chunkQuery));
+		
+		/* chunks left behind are swept with the expired sessions */
+		BasicDBObject orphan = new BasicDBObject(MongoStore.chunkSessionProperty, "orphan");
+		orphan.put(MongoStore.appContextProperty, this.mongoStore.getName());
+		orphan.put(MongoStore.versionProperty, 1L);
+		orphan.put(MongoStore.chunkIndexProperty, 0);
+		orphan.put(MongoStore.lastModifiedProperty, new Date(0L));
+		this.mongoStore.chunks.insert(orphan);
+		this.mongoStore.processExpires();
+		assertEquals(0, this.mongoStore.chunks.count(new BasicDBObject(MongoStore.chunkSessionProperty, "orphan")));
+	}
+
+	/**
+	 * Test that sessions over the maximum size are rejected when enabled.
+	 */
+	@Test
+	public void testRejectOversizedSessions() throws Exception {
+		this.mongoStore.setMaxDataSize(1024);
+		this.mongoStore.setRejectOversizedSessions(true);
+		this.mongoStore.save(this.testSession);
+		
+		byte[] large = new byte[3000];
+		new Random(1L).nextBytes(large);
+		this.testSession.setAttribute("large", large, false);
+		try {
+			this.mongoStore.save(this.testSession);
+			fail("Oversized session was saved");
+		} catch (IOException e) {
+			/* expected */
+		}
+		assertNull(((StandardSession)this.mongoStore.load(this.sessionId)).getAttribute("large"));
+		
+		/* only logged when not rejected */
+		this.mongoStore.setRejectOversizedSessions(false);
+		this.mongoStore.save(this.testSession);
+		assertNotNull(((StandardSession)this.mongoStore.load(this.sessionId)).getAttribute("large"));
+	}
 }
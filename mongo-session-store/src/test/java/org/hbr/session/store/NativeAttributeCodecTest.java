@@ -0,0 +1,109 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * JUnit Test Case for {@link NativeAttributeCodec}.
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class NativeAttributeCodecTest {
+
+	/**
+	 * Test that native values read back as equal values of the same class.
+	 */
+	@Test
+	public void testRoundTrip() throws Exception {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("name", "value");
+		map.put("count", 3);
+		map.put("total", 4L);
+		map.put("ratio", 0.5d);
+		map.put("flag", Boolean.TRUE);
+		map.put("empty", null);
+		map.put("list", new ArrayList<Object>(Arrays.asList("a", 1, new Date(1000L))));
+
+		Object[] values = { "test", 1, 2L, 1.5d, Boolean.FALSE, new Date(), map };
+		for (Object value : values) {
+			assertTrue(NativeAttributeCodec.isNative(value));
+
+			/* write and read the value through BSON, as MongoDB would */
+			BasicDBObject document = new BasicDBObject("value", NativeAttributeCodec.encode(value));
+			Object stored = new BasicBSONDecoder().readObject(new BasicBSONEncoder().encode(document)).get("value");
+			Object decoded = NativeAttributeCodec.decode(stored);
+
+			assertEquals(value, decoded);
+			assertTrue(value.getClass().isInstance(decoded));
+		}
+	}
+
+	/**
+	 * Test that values that would not read back as the same class are
+	 * left to the serializer.
+	 */
+	@Test
+	public void testNotNative() {
+		assertFalse(NativeAttributeCodec.isNative(null));
+		assertFalse(NativeAttributeCodec.isNative(new byte[] { 1 }));
+		assertFalse(NativeAttributeCodec.isNative((short)1));
+		assertFalse(NativeAttributeCodec.isNative(1.5f));
+		assertFalse(NativeAttributeCodec.isNative(new Timestamp(0L)));
+		assertFalse(NativeAttributeCodec.isNative(new TreeMap<String, Object>()));
+		assertFalse(NativeAttributeCodec.isNative(Arrays.asList("a")));
+
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("a.b", "dotted");
+		assertFalse(NativeAttributeCodec.isNative(map));
+		map.clear();
+		map.put("nested", new StringBuilder());
+		assertFalse(NativeAttributeCodec.isNative(map));
+	}
+
+	/**
+	 * Test that encoded values do not share state with the attribute.
+	 */
+	@Test
+	public void testCopies() {
+		Date date = new Date(1000L);
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("date", date);
+
+		Map<?, ?> encoded = (Map<?, ?>)NativeAttributeCodec.encode(map);
+		assertNotSame(date, encoded.get("date"));
+		map.put("other", "changed");
+		assertFalse(encoded.containsKey("other"));
+	}
+}
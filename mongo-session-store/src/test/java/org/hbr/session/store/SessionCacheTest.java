@@ -0,0 +1,74 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * JUnit Test Case for {@link SessionCache}.
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class SessionCacheTest {
+
+	/**
+	 * Test that the least recently used documents are evicted when the
+	 * cache is full.
+	 */
+	@Test
+	public void testEvictLeastRecentlyUsed() {
+		SessionCache cache = new SessionCache(2000);
+		cache.put("a", new BasicDBObject("_id", "a"), 600);
+		cache.put("b", new BasicDBObject("_id", "b"), 600);
+
+		/* use a, so b is the least recently used */
+		assertNotNull(cache.get("a"));
+		cache.put("c", new BasicDBObject("_id", "c"), 600);
+
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("a"));
+		assertNotNull(cache.get("c"));
+		assertEquals(2, cache.size());
+	}
+
+	/**
+	 * Test that replacing and removing documents keeps the size accurate,
+	 * and that documents larger than the cache are not cached.
+	 */
+	@Test
+	public void testSize() {
+		SessionCache cache = new SessionCache(2000);
+		cache.put("a", new BasicDBObject("_id", "a"), 600);
+		cache.put("a", new BasicDBObject("_id", "a"), 100);
+		assertEquals(1, cache.size());
+		long bytes = cache.getBytes();
+
+		cache.put("b", new BasicDBObject("_id", "b"), 5000);
+		assertNull(cache.get("b"));
+		assertEquals(bytes, cache.getBytes());
+
+		cache.remove("a");
+		assertEquals(0, cache.size());
+		assertEquals(0L, cache.getBytes());
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package org.hbr.session.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * JUnit Test Case for {@link SessionCompressor}.
+ * 
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class SessionCompressorTest {
+	
+	/** Repetitive test data, which compresses well */
+	private byte[] data = this.createData();
+
+	/**
+	 * Test method for {@link SessionCompressor#compress(byte[])} and
+	 * {@link SessionCompressor#decompress(byte[])}.
+	 */
+	@Test
+	public void testCompress() throws Exception {
+		SessionCompressor compressor = new SessionCompressor(-1, null);
+		byte[] compressed = compressor.compress(this.data);
+		assertTrue(compressed.length < this.data.length);
+		assertArrayEquals(this.data, compressor.decompress(compressed));
+	}
+
+	/**
+	 * Test method for {@link SessionCompressor#compress(byte[])} and
+	 * {@link SessionCompressor#decompress(byte[])} with a preset dictionary.
+	 */
+	@Test
+	public void testCompressWithDictionary() throws Exception {
+		SessionCompressor compressor = new SessionCompressor(-1, Arrays.copyOf(this.data, 256));
+		byte[] compressed = compressor.compress(this.data);
+		assertArrayEquals(this.data, compressor.decompress(compressed));
+	}
+
+	/**
+	 * Test method for {@link SessionCompressor#decompress(byte[])} when the
+	 * data was written with a different dictionary.
+	 */
+	@Test(expected = IOException.class)
+	public void testWrongDictionary() throws Exception {
+		byte[] compressed = new SessionCompressor(-1, Arrays.copyOf(this.data, 256)).compress(this.data);
+		new SessionCompressor(-1, null).decompress(compressed);
+	}
+	
+	/**
+	 * @return test data
+	 */
+	private byte[] createData() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			builder.append("org.hbr.session.Attribute").append(i % 10).append(';');
+		}
+		return builder.toString().getBytes();
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.juli.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
+
+/**
+ * JUnit Test Case for {@link WriteBehindQueue}.
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class WriteBehindQueueTest {
+
+	/** Client for a server that is not there, so every flush fails */
+	private MongoClient client;
+
+	private WriteBehindQueue queue;
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		MongoClientOptions options = MongoClientOptions.builder().connectTimeout(100).maxWaitTime(1000).build();
+		this.client = new MongoClient(new ServerAddress("127.0.0.1", 1), options);
+		this.queue = new WriteBehindQueue(this.client.getDB("test").getCollection("sessions"), WriteConcern.ACKNOWLEDGED, 
+				10, 10, 100, LogFactory.getLog(WriteBehindQueueTest.class));
+		this.queue.start("WriteBehindQueueTest");
+	}
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		this.queue.cancelAll();
+		this.queue.stop();
+		this.client.close();
+	}
+
+	/**
+	 * Test that a write that could not be sent is queued again.
+	 */
+	@Test
+	public void testRequeue() throws Exception {
+		this.offer("session");
+		this.awaitPending("session", false);
+		this.awaitPending("session", true);
+	}
+
+	/**
+	 * Test that a write cancelled while its batch is being sent is not
+	 * queued again when the batch fails.
+	 */
+	@Test
+	public void testCancelInFlight() throws Exception {
+		this.offer("session");
+		this.awaitPending("session", false);
+		this.queue.cancel("session");
+		assertFalse(this.queue.isPending("session"));
+		assertEquals(0, this.queue.size());
+	}
+
+	/**
+	 * Test that writes cancelled together while their batch is being sent
+	 * are not queued again when the batch fails.
+	 */
+	@Test
+	public void testCancelAllInFlight() throws Exception {
+		this.offer("session");
+		this.awaitPending("session", false);
+		this.queue.cancelAll();
+		assertEquals(0, this.queue.size());
+	}
+
+	/**
+	 * Queue the replacement of a session.
+	 * 
+	 * @param id Session id
+	 */
+	private void offer(String id) {
+		BasicDBObject query = new BasicDBObject("_id", id);
+		assertTrue(this.queue.offer(id, query, new BasicDBObject(query), true));
+	}
+
+	/**
+	 * Wait for the flusher thread to take a write from the queue, or to 
+	 * put it back.
+	 * 
+	 * @param id Session id
+	 * @param pending true to wait for the write to be pending
+	 */
+	private void awaitPending(String id, boolean pending) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000L;
+		while (this.queue.isPending(id) != pending) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+	}
+}
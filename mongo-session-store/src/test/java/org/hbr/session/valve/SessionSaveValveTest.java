@@ -0,0 +1,57 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.session.valve;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * JUnit Test Case for {@link SessionSaveValve}.
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class SessionSaveValveTest {
+
+	/**
+	 * Test that requests for static resources are skipped by default.
+	 */
+	@Test
+	public void testDefaultFilter() {
+		SessionSaveValve valve = new SessionSaveValve();
+		assertTrue(valve.isFiltered("/app/styles/site.css"));
+		assertTrue(valve.isFiltered("/app/images/Logo.PNG"));
+		assertFalse(valve.isFiltered("/app/cart"));
+		assertFalse(valve.isFiltered("/app/search.do"));
+		assertFalse(valve.isFiltered("/app/index.html"));
+	}
+
+	/**
+	 * Test that the filter can be changed, or turned off.
+	 */
+	@Test
+	public void testSetFilter() {
+		SessionSaveValve valve = new SessionSaveValve();
+		valve.setFilter("/static/.*");
+		assertTrue(valve.isFiltered("/static/app.js"));
+		assertFalse(valve.isFiltered("/app/app.js"));
+
+		valve.setFilter("");
+		assertFalse(valve.isFiltered("/static/app.js"));
+	}
+}
@@ -15,14 +15,20 @@
  */
 package org.hbr.mongo.session.controller;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.servlet.ModelAndView;
 
 /**
@@ -46,4 +52,73 @@ public class SessionController {
 		model.put("id", session.getId());
 		return new ModelAndView("displaySession", model);
 	}
+	
+	/**
+	 * Start a new session, replacing the current one, and fill it with
+	 * attributes.
+	 * 
+	 * @param attributes Number of attributes
+	 * @param attributeBytes Size of each attribute, in bytes
+	 * @return the new session id
+	 */
+	@RequestMapping(value = "/session/create", method = RequestMethod.GET)
+	@ResponseBody
+	public String createSession(HttpServletRequest request, 
+			@RequestParam(value = "attributes", defaultValue = "10") int attributes,
+			@RequestParam(value = "attributeBytes", defaultValue = "256") int attributeBytes) {
+		HttpSession current = request.getSession(false);
+		if (current != null) {
+			current.invalidate();
+		}
+		HttpSession session = request.getSession(true);
+		Random random = new Random();
+		for (int i = 0; i < attributes; i++) {
+			byte[] value = new byte[attributeBytes];
+			random.nextBytes(value);
+			session.setAttribute("attribute" + i, value);
+		}
+		session.setAttribute("counter", 0);
+		return session.getId();
+	}
+	
+	/**
+	 * Read every attribute of the current session.
+	 * 
+	 * @return the number of attributes, or a 404 if there is no session
+	 */
+	@RequestMapping(value = "/session/read", method = RequestMethod.GET)
+	@ResponseBody
+	public String readSession(HttpServletRequest request, HttpServletResponse response) {
+		HttpSession session = request.getSession(false);
+		if (session == null) {
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			return "none";
+		}
+		int count = 0;
+		for (String name : Collections.list(session.getAttributeNames())) {
+			if (session.getAttribute(name) != null) {
+				count++;
+			}
+		}
+		return String.valueOf(count);
+	}
+	
+	/**
+	 * Change an attribute of the current session.
+	 * 
+	 * @return the new value of the session's counter, or a 404 if there is no session
+	 */
+	@RequestMapping(value = "/session/mutate", method = RequestMethod.GET)
+	@ResponseBody
+	public String mutateSession(HttpServletRequest request, HttpServletResponse response) {
+		HttpSession session = request.getSession(false);
+		if (session == null) {
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			return "none";
+		}
+		Integer counter = (Integer)session.getAttribute("counter");
+		int next = counter == null ? 1 : counter + 1;
+		session.setAttribute("counter", next);
+		return String.valueOf(next);
+	}
 }
@@ -0,0 +1,330 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.mongo.session.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.http.Consts;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.hbr.session.benchmark.LoopbackMongoServer;
+import org.hbr.session.manager.MongoPersistentManager;
+import org.hbr.session.stats.StripedHistogram;
+import org.hbr.session.store.MongoStore;
+
+/**
+ * Runs {@link LoadScenario}s against the test webapp, deployed in an
+ * embedded Tomcat with a {@link MongoPersistentManager}.
+ * <p>
+ * The manager swaps out sessions that have been idle for a second, and its
+ * persistence checks run several times a second, so the sessions of every
+ * scenario keep moving between memory and MongoDB.  Unless MongoDB hosts are
+ * given, the store uses an in-memory {@link LoopbackMongoServer}.
+ * </p>
+ * <p>
+ * Run it with <code>mvn verify -Dit.test=SessionLoadIT</code>,
+ * or from the test classpath with <code>java org.hbr.mongo.session.load.LoadHarness</code>.
+ * The system properties <em>load.clients</em>, <em>load.durationSeconds</em>,
+ * <em>load.mongoHosts</em> and <em>load.output</em> change the number of
+ * clients, the length of each scenario, the MongoDB hosts and where the
+ * JSON results are written.
+ * </p>
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class LoadHarness {
+
+	/**
+	 * Path the webapp is deployed under.
+	 */
+	public static final String CONTEXT_PATH = "/mongo-session-testwebapp";
+
+	/**
+	 * How often the manager's persistence checks run, in milliseconds.
+	 */
+	private static final long PERSISTENCE_CHECK_INTERVAL_MS = 250L;
+
+	private final String mongoHosts;
+	private LoopbackMongoServer mongoServer;
+	private Tomcat tomcat;
+	private MongoPersistentManager manager;
+	private MongoStore store;
+	private ScheduledExecutorService persistenceChecks;
+	private CloseableHttpClient httpClient;
+	private String baseUrl;
+
+	/**
+	 * Create a harness.
+	 *
+	 * @param mongoHosts MongoDB hosts, or null to use a {@link LoopbackMongoServer}
+	 */
+	public LoadHarness(String mongoHosts) {
+		this.mongoHosts = mongoHosts;
+	}
+
+	/**
+	 * Start MongoDB, if needed, and Tomcat.
+	 *
+	 * @throws Exception if either cannot be started
+	 */
+	public void start() throws Exception {
+		String hosts = this.mongoHosts;
+		if (hosts == null) {
+			this.mongoServer = new LoopbackMongoServer();
+			hosts = this.mongoServer.getHosts();
+		}
+
+		/* swap idle sessions out quickly, so requests swap them back in */
+		this.store = new MongoStore();
+		this.store.setHosts(hosts);
+		this.store.setDbName("loadtest");
+		this.store.setConnectionTimeoutMs(5000);
+		this.store.setConnectionWaitTimeoutMs(5000);
+		this.manager = new MongoPersistentManager();
+		this.manager.setMaxIdleSwap(1);
+		this.manager.setMinIdleSwap(0);
+		this.manager.setStore(this.store);
+
+		this.tomcat = new Tomcat();
+		this.tomcat.setBaseDir(new File("target/load-tomcat").getAbsolutePath());
+		this.tomcat.setPort(0);
+		Context context = this.tomcat.addWebapp(CONTEXT_PATH, new File("src/main/webapp").getAbsolutePath());
+		context.setManager(this.manager);
+		this.tomcat.start();
+		this.baseUrl = "http://127.0.0.1:" + this.tomcat.getConnector().getLocalPort() + CONTEXT_PATH;
+
+		this.persistenceChecks = Executors.newSingleThreadScheduledExecutor();
+		this.persistenceChecks.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				manager.processPersistenceChecks();
+			}
+		}, PERSISTENCE_CHECK_INTERVAL_MS, PERSISTENCE_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+		/* every client sends its own session cookie */
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(1000);
+		connectionManager.setDefaultMaxPerRoute(1000);
+		connectionManager.setDefaultConnectionConfig(ConnectionConfig.custom().setCharset(Consts.UTF_8).build());
+		this.httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.disableCookieManagement()
+				.build();
+	}
+
+	/**
+	 * Stop Tomcat and MongoDB.
+	 *
+	 * @throws Exception if Tomcat cannot be stopped
+	 */
+	public void stop() throws Exception {
+		if (this.httpClient != null) {
+			this.httpClient.close();
+		}
+		if (this.persistenceChecks != null) {
+			this.persistenceChecks.shutdownNow();
+		}
+		if (this.tomcat != null) {
+			this.tomcat.stop();
+			this.tomcat.destroy();
+		}
+		if (this.mongoServer != null) {
+			this.mongoServer.stop();
+		}
+	}
+
+	/**
+	 * Run a scenario.
+	 *
+	 * @param scenario Scenario to run
+	 * @return the result
+	 * @throws InterruptedException if interrupted while the clients run
+	 */
+	public LoadResult run(final LoadScenario scenario) throws InterruptedException {
+		this.store.getStatistics().reset();
+		final StripedHistogram latency = new StripedHistogram(scenario.getClients());
+		final AtomicLong requests = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+
+		long startTime = System.nanoTime();
+		final long deadline = startTime + TimeUnit.SECONDS.toNanos(scenario.getDurationSeconds());
+		ExecutorService clients = Executors.newFixedThreadPool(scenario.getClients());
+		for (int i = 0; i < scenario.getClients(); i++) {
+			final long seed = i;
+			clients.execute(new Runnable() {
+				@Override
+				public void run() {
+					runClient(scenario, new Random(seed), deadline, latency, requests, errors);
+				}
+			});
+		}
+		clients.shutdown();
+		clients.awaitTermination(scenario.getDurationSeconds() + 60L, TimeUnit.SECONDS);
+		long durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+
+		return new LoadResult(scenario, requests.get(), errors.get(), durationMs, latency.snapshot(), this.store.getStatistics());
+	}
+
+	/**
+	 * Send requests until the deadline.  A read or change of a session that
+	 * the server no longer knows is an error, as the sessions never expire
+	 * during a scenario.
+	 */
+	private void runClient(LoadScenario scenario, Random random, long deadline, StripedHistogram latency,
+			AtomicLong requests, AtomicLong errors) {
+		String[] sessions = new String[scenario.getSessionsPerClient()];
+		String createPath = "/session/create?attributes=" + scenario.getAttributes() + "&attributeBytes=" + scenario.getAttributeBytes();
+		while (System.nanoTime() < deadline) {
+			int slot = random.nextInt(sessions.length);
+			int choice = random.nextInt(100);
+			String path;
+			boolean create = sessions[slot] == null || choice < scenario.getCreatePercent();
+			if (create) {
+				path = createPath;
+			} else if (choice < scenario.getCreatePercent() + scenario.getReadPercent()) {
+				path = "/session/read";
+			} else {
+				path = "/session/mutate";
+			}
+
+			long start = System.nanoTime();
+			String body = this.get(path, sessions[slot]);
+			latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+			requests.incrementAndGet();
+			if (body == null) {
+				errors.incrementAndGet();
+				sessions[slot] = null;
+			} else if (create) {
+				sessions[slot] = body;
+			}
+		}
+	}
+
+	/**
+	 * Send a request.
+	 *
+	 * @param path Path under the webapp
+	 * @param sessionId Session to send, or null
+	 * @return the response body, or null if the request failed
+	 */
+	private String get(String path, String sessionId) {
+		HttpGet method = new HttpGet(this.baseUrl + path);
+		if (sessionId != null) {
+			method.setHeader("Cookie", "JSESSIONID=" + sessionId);
+		}
+		try {
+			CloseableHttpResponse response = this.httpClient.execute(method);
+			try {
+				String body = EntityUtils.toString(response.getEntity());
+				return response.getStatusLine().getStatusCode() == 200 ? body.trim() : null;
+			} finally {
+				response.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The standard scenarios: mostly reads, mostly changes, mostly new
+	 * sessions, and larger sessions.
+	 *
+	 * @param clients Number of concurrent clients
+	 * @param durationSeconds Length of each scenario
+	 * @return the scenarios
+	 */
+	public static List<LoadScenario> getDefaultScenarios(int clients, int durationSeconds) {
+		List<LoadScenario> scenarios = new ArrayList<LoadScenario>();
+		scenarios.add(new LoadScenario("read-heavy", clients, durationSeconds, 5, 80, 500, 10, 256));
+		scenarios.add(new LoadScenario("write-heavy", clients, durationSeconds, 5, 25, 500, 10, 256));
+		scenarios.add(new LoadScenario("churn", clients, durationSeconds, 50, 25, 500, 10, 256));
+		scenarios.add(new LoadScenario("large-sessions", clients, durationSeconds, 5, 50, 500, 50, 2048));
+		return scenarios;
+	}
+
+	/**
+	 * Write results as JSON.
+	 *
+	 * @param results Results to write
+	 * @param output File to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void writeResults(List<LoadResult> results, File output) throws IOException {
+		if (output.getParentFile() != null) {
+			output.getParentFile().mkdirs();
+		}
+		Files.write(output.toPath(), LoadResult.toJson(results).getBytes("UTF-8"));
+	}
+
+	/**
+	 * Run the standard scenarios and write their results.
+	 *
+	 * @param args Not used, see the system properties
+	 * @throws Exception if the harness fails
+	 */
+	public static void main(String[] args) throws Exception {
+		List<LoadResult> results = runDefaultScenarios(16, 30);
+		for (LoadResult result : results) {
+			System.out.println(result);
+		}
+	}
+
+	/**
+	 * Run the standard scenarios, honouring the system properties, and
+	 * write their results.
+	 *
+	 * @param defaultClients Number of clients, unless <em>load.clients</em> is set
+	 * @param defaultDurationSeconds Length of each scenario, unless <em>load.durationSeconds</em> is set
+	 * @return the results
+	 * @throws Exception if the harness fails
+	 */
+	public static List<LoadResult> runDefaultScenarios(int defaultClients, int defaultDurationSeconds) throws Exception {
+		int clients = Integer.getInteger("load.clients", defaultClients);
+		int durationSeconds = Integer.getInteger("load.durationSeconds", defaultDurationSeconds);
+		File output = new File(System.getProperty("load.output", "target/load-results.json"));
+
+		LoadHarness harness = new LoadHarness(System.getProperty("load.mongoHosts"));
+		harness.start();
+		try {
+			List<LoadResult> results = new ArrayList<LoadResult>();
+			for (LoadScenario scenario : getDefaultScenarios(clients, durationSeconds)) {
+				results.add(harness.run(scenario));
+			}
+			writeResults(results, output);
+			return results;
+		} finally {
+			harness.stop();
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.mongo.session.load;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.hbr.session.stats.HistogramSnapshot;
+import org.hbr.session.stats.StoreStatistics;
+
+/**
+ * Outcome of a {@link LoadScenario}: request throughput and latencies, as
+ * seen by the clients, and the work the store did in MongoDB meanwhile.
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class LoadResult {
+
+	private final LoadScenario scenario;
+	private final long requests;
+	private final long errors;
+	private final long durationMs;
+	private final HistogramSnapshot latency;
+	private final HistogramSnapshot loadLatency;
+	private final HistogramSnapshot saveLatency;
+	private final long removes;
+	private final long mongoReads;
+	private final long mongoWrites;
+	private final long bytesRead;
+	private final long bytesWritten;
+
+	/**
+	 * Record the outcome of a scenario.
+	 *
+	 * @param scenario Scenario that was run
+	 * @param requests Number of requests sent
+	 * @param errors Number of requests that failed
+	 * @param durationMs How long the requests took, in milliseconds
+	 * @param latency Latency of the requests, in microseconds
+	 * @param statistics Statistics of the store, covering the scenario only
+	 */
+	public LoadResult(LoadScenario scenario, long requests, long errors, long durationMs,
+			HistogramSnapshot latency, StoreStatistics statistics) {
+		this.scenario = scenario;
+		this.requests = requests;
+		this.errors = errors;
+		this.durationMs = durationMs;
+		this.latency = latency;
+		this.loadLatency = statistics.getLoadLatency();
+		this.saveLatency = statistics.getSaveLatency();
+		this.removes = statistics.getRemoveLatency().getCount();
+		this.mongoReads = statistics.getMongoReadLatency().getCount();
+		this.mongoWrites = statistics.getMongoWriteLatency().getCount();
+		this.bytesRead = statistics.getBytesRead();
+		this.bytesWritten = statistics.getBytesWritten();
+	}
+
+	/**
+	 * @return the scenario
+	 */
+	public LoadScenario getScenario() {
+		return scenario;
+	}
+
+	/**
+	 * @return the requests
+	 */
+	public long getRequests() {
+		return requests;
+	}
+
+	/**
+	 * @return the errors
+	 */
+	public long getErrors() {
+		return errors;
+	}
+
+	/**
+	 * @return the throughput, in requests per second
+	 */
+	public double getThroughput() {
+		return durationMs == 0 ? 0.0 : requests * 1000.0 / durationMs;
+	}
+
+	/**
+	 * @return the number of sessions loaded from MongoDB, which are the swap ins
+	 */
+	public long getLoads() {
+		return loadLatency.getCount();
+	}
+
+	/**
+	 * @return the number of sessions saved to MongoDB
+	 */
+	public long getSaves() {
+		return saveLatency.getCount();
+	}
+
+	/**
+	 * @return a one line summary
+	 */
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "%s: %d requests, %d errors, %.1f req/s, p50=%dus p99=%dus, %d loads, %d saves, %d mongo reads, %d mongo writes",
+				scenario.getName(), requests, errors, getThroughput(), latency.getP50(), latency.getP99(),
+				getLoads(), getSaves(), mongoReads, mongoWrites);
+	}
+
+	/**
+	 * Write the results as a JSON array.
+	 *
+	 * @param results Results to write
+	 * @return JSON text
+	 */
+	public static String toJson(List<LoadResult> results) {
+		StringBuilder json = new StringBuilder("[\n");
+		for (int i = 0; i < results.size(); i++) {
+			results.get(i).appendJson(json);
+			json.append(i < results.size() - 1 ? ",\n" : "\n");
+		}
+		return json.append("]\n").toString();
+	}
+
+	/**
+	 * Append this result as a JSON object.
+	 *
+	 * @param json Text to append to
+	 */
+	private void appendJson(StringBuilder json) {
+		json.append("  {\n");
+		json.append("    \"scenario\": \"").append(scenario.getName().replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n");
+		json.append("    \"clients\": ").append(scenario.getClients()).append(",\n");
+		json.append("    \"mix\": { \"create\": ").append(scenario.getCreatePercent())
+			.append(", \"read\": ").append(scenario.getReadPercent())
+			.append(", \"mutate\": ").append(scenario.getMutatePercent()).append(" },\n");
+		json.append("    \"sessionsPerClient\": ").append(scenario.getSessionsPerClient()).append(",\n");
+		json.append("    \"attributes\": ").append(scenario.getAttributes()).append(",\n");
+		json.append("    \"attributeBytes\": ").append(scenario.getAttributeBytes()).append(",\n");
+		json.append("    \"durationMs\": ").append(durationMs).append(",\n");
+		json.append("    \"requests\": ").append(requests).append(",\n");
+		json.append("    \"errors\": ").append(errors).append(",\n");
+		json.append("    \"throughput\": ").append(String.format(Locale.ROOT, "%.2f", getThroughput())).append(",\n");
+		json.append("    \"latencyMicros\": ");
+		appendJson(json, latency);
+		json.append(",\n");
+		json.append("    \"store\": {\n");
+		json.append("      \"loadLatencyMicros\": ");
+		appendJson(json, loadLatency);
+		json.append(",\n");
+		json.append("      \"saveLatencyMicros\": ");
+		appendJson(json, saveLatency);
+		json.append(",\n");
+		json.append("      \"loads\": ").append(getLoads()).append(",\n");
+		json.append("      \"saves\": ").append(getSaves()).append(",\n");
+		json.append("      \"removes\": ").append(removes).append(",\n");
+		json.append("      \"mongoReads\": ").append(mongoReads).append(",\n");
+		json.append("      \"mongoWrites\": ").append(mongoWrites).append(",\n");
+		json.append("      \"bytesRead\": ").append(bytesRead).append(",\n");
+		json.append("      \"bytesWritten\": ").append(bytesWritten).append("\n");
+		json.append("    }\n");
+		json.append("  }");
+	}
+
+	/**
+	 * Append a histogram as a JSON object.
+	 *
+	 * @param json Text to append to
+	 * @param snapshot Histogram
+	 */
+	private static void appendJson(StringBuilder json, HistogramSnapshot snapshot) {
+		json.append("{ \"count\": ").append(snapshot.getCount())
+			.append(", \"mean\": ").append(String.format(Locale.ROOT, "%.1f", snapshot.getMean()))
+			.append(", \"p50\": ").append(snapshot.getP50())
+			.append(", \"p90\": ").append(snapshot.getP90())
+			.append(", \"p99\": ").append(snapshot.getP99())
+			.append(", \"p999\": ").append(snapshot.getP999())
+			.append(", \"max\": ").append(snapshot.getMax())
+			.append(" }");
+	}
+}
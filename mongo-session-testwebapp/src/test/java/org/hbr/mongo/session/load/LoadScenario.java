@@ -0,0 +1,132 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.mongo.session.load;
+
+/**
+ * A load test scenario: how many clients run for how long, and the mix
+ * of requests they send.
+ * <p>
+ * Each client juggles {@link #getSessionsPerClient()} sessions and picks
+ * one at random for every request, so a session sits idle between its
+ * requests for long enough to be swapped out by the manager and swapped
+ * back in by the next request.
+ * </p>
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class LoadScenario {
+
+	private final String name;
+	private final int clients;
+	private final int durationSeconds;
+	private final int createPercent;
+	private final int readPercent;
+	private final int sessionsPerClient;
+	private final int attributes;
+	private final int attributeBytes;
+
+	/**
+	 * Create a scenario.  Requests that are neither creates nor reads change
+	 * an attribute of the session.
+	 *
+	 * @param name Name used in the results
+	 * @param clients Number of concurrent clients
+	 * @param durationSeconds How long the clients send requests
+	 * @param createPercent Percentage of requests that start a new session
+	 * @param readPercent Percentage of requests that only read a session
+	 * @param sessionsPerClient Number of sessions each client uses in turn
+	 * @param attributes Number of attributes of a new session
+	 * @param attributeBytes Size of each attribute, in bytes
+	 */
+	public LoadScenario(String name, int clients, int durationSeconds, int createPercent, int readPercent,
+			int sessionsPerClient, int attributes, int attributeBytes) {
+		if (createPercent + readPercent > 100) {
+			throw new IllegalArgumentException("The create and read percentages add up to more than 100");
+		}
+		this.name = name;
+		this.clients = clients;
+		this.durationSeconds = durationSeconds;
+		this.createPercent = createPercent;
+		this.readPercent = readPercent;
+		this.sessionsPerClient = sessionsPerClient;
+		this.attributes = attributes;
+		this.attributeBytes = attributeBytes;
+	}
+
+	/**
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the clients
+	 */
+	public int getClients() {
+		return clients;
+	}
+
+	/**
+	 * @return the durationSeconds
+	 */
+	public int getDurationSeconds() {
+		return durationSeconds;
+	}
+
+	/**
+	 * @return the createPercent
+	 */
+	public int getCreatePercent() {
+		return createPercent;
+	}
+
+	/**
+	 * @return the readPercent
+	 */
+	public int getReadPercent() {
+		return readPercent;
+	}
+
+	/**
+	 * @return the mutatePercent
+	 */
+	public int getMutatePercent() {
+		return 100 - createPercent - readPercent;
+	}
+
+	/**
+	 * @return the sessionsPerClient
+	 */
+	public int getSessionsPerClient() {
+		return sessionsPerClient;
+	}
+
+	/**
+	 * @return the attributes
+	 */
+	public int getAttributes() {
+		return attributes;
+	}
+
+	/**
+	 * @return the attributeBytes
+	 */
+	public int getAttributeBytes() {
+		return attributeBytes;
+	}
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2014 Harvard Business Publishing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hbr.mongo.session.load;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Runs the standard load scenarios for a few seconds each, and checks that
+ * no session was lost while they were swapped in and out.
+ *
+ * @author <a href="mailto:kdavis@hbr.org">Kevin Davis</a>
+ *
+ */
+public class SessionLoadIT {
+
+	/**
+	 * Run the standard scenarios.
+	 * @throws Exception
+	 */
+	@Test
+	public void testDefaultScenarios() throws Exception {
+		List<LoadResult> results = LoadHarness.runDefaultScenarios(8, 5);
+		for (LoadResult result : results) {
+			System.out.println(result);
+			assertTrue(result.getRequests() > 0);
+			assertEquals(result.getScenario().getName(), 0L, result.getErrors());
+		}
+	}
+}